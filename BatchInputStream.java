@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * This class reads a directory as the stream of a batch: its manifest,
+ * then the contents of its files one after the other, each cut to the
+ * length the manifest gives it. The sender reads it like a single file.
+ * @author Diga W
+ *
+ */
+class BatchInputStream extends InputStream {
+
+    private final Path root;
+    private final BatchManifest manifest;
+    private final byte[] header;
+    private int headerOffset;
+
+    // the entry being read, and what is left of it
+    private int index = -1;
+    private InputStream file;
+    private long remaining;
+
+    /**
+     * @param root the directory the manifest was made from
+     * @param manifest
+     */
+    public BatchInputStream(Path root, BatchManifest manifest) {
+        this.root = root;
+        this.manifest = manifest;
+        this.header = manifest.encode();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] dst, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (headerOffset < header.length) {
+            int count = Math.min(length, header.length - headerOffset);
+            System.arraycopy(header, headerOffset, dst, offset, count);
+            headerOffset += count;
+            return count;
+        }
+        while (remaining == 0) {
+            if (!nextFile()) {
+                return -1;
+            }
+        }
+        int bytesRead = file.read(dst, offset,
+                (int) Math.min(length, remaining));
+        if (bytesRead < 0) {
+            throw new IOException(manifest.entries.get(index).name
+                    + " shrank while being sent");
+        }
+        remaining -= bytesRead;
+        return bytesRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            file.close();
+            file = null;
+        }
+    }
+
+    /**
+     * Move on to the next file with anything in it
+     * @return false once there are no more entries
+     * @throws IOException
+     */
+    private boolean nextFile() throws IOException {
+        close();
+        index++;
+        if (index >= manifest.entries.size()) {
+            return false;
+        }
+        BatchManifest.Entry entry = manifest.entries.get(index);
+        if (!entry.isDirectory() && entry.length > 0) {
+            file = Files.newInputStream(root.resolve(entry.name));
+            remaining = entry.length;
+        }
+        return true;
+    }
+}
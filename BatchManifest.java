@@ -0,0 +1,190 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * This class lists the files and directories of a batch, sent as one
+ * stream through one connection in place of a single file. The stream
+ * starts with the manifest, a 4-byte length and then each entry as:
+ *
+ * a kind byte, FILE or DIRECTORY;
+ * a 2-byte length and that many bytes of the entry's path, in UTF-8 with
+ * '/' between names, relative to the directory sent;
+ * the 8-byte length of the file, 0 for a directory.
+ *
+ * The contents of the files follow back to back in the order listed, so
+ * their lengths mark where one ends and the next begins, and small files
+ * share packets.
+ * @author Diga W
+ *
+ */
+class BatchManifest {
+
+    public final static int KIND_FILE = 0;
+    public final static int KIND_DIRECTORY = 1;
+
+    // 4-byte manifest length before the entries
+    public final static int LENGTH_FIELD_LENGTH = 4;
+
+    // kind, name length and file length around each name
+    private final static int ENTRY_OVERHEAD = 11;
+    private final static int MAX_NAME_LENGTH = 0xFFFF;
+
+    // a receiver takes the whole manifest into memory before any file
+    public final static int MAX_MANIFEST_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * A file or directory of the batch
+     */
+    static class Entry {
+        final int kind;
+        final String name;
+        final long length;
+
+        Entry(int kind, String name, long length) {
+            this.kind = kind;
+            this.name = name;
+            this.length = length;
+        }
+
+        boolean isDirectory() {
+            return kind == KIND_DIRECTORY;
+        }
+    }
+
+    final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * List everything under a directory, directories before what they
+     * hold. Symbolic links are left out.
+     * @param root
+     * @return
+     * @throws IOException
+     */
+    static BatchManifest scan(Path root) throws IOException {
+        BatchManifest manifest = new BatchManifest();
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (path.equals(root)) {
+                    continue;
+                }
+                String name = root.relativize(path).toString()
+                        .replace(path.getFileSystem().getSeparator(), "/");
+                if (name.getBytes(StandardCharsets.UTF_8).length
+                        > MAX_NAME_LENGTH) {
+                    throw new IOException("Path too long for a batch: "
+                            + path);
+                }
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    manifest.entries.add(new Entry(KIND_DIRECTORY, name, 0));
+                } else if (Files.isRegularFile(path,
+                        LinkOption.NOFOLLOW_LINKS)) {
+                    manifest.entries.add(
+                            new Entry(KIND_FILE, name, Files.size(path)));
+                }
+            }
+        }
+        if (manifest.getEncodedLength() > MAX_MANIFEST_LENGTH) {
+            throw new IOException("Too many entries for a batch: " + root);
+        }
+        return manifest;
+    }
+
+    /**
+     * Get the number of files, leaving out directories
+     * @return
+     */
+    public int getFileCount() {
+        int count = 0;
+        for (Entry entry : entries) {
+            if (!entry.isDirectory()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the length of the whole stream, manifest and files
+     * @return
+     */
+    public long getStreamLength() {
+        long length = LENGTH_FIELD_LENGTH + getEncodedLength();
+        for (Entry entry : entries) {
+            length += entry.length;
+        }
+        return length;
+    }
+
+    private long getEncodedLength() {
+        long length = 0;
+        for (Entry entry : entries) {
+            length += ENTRY_OVERHEAD
+                    + entry.name.getBytes(StandardCharsets.UTF_8).length;
+        }
+        return length;
+    }
+
+    /**
+     * Write the manifest, with its length in front
+     * @return
+     */
+    public byte[] encode() {
+        byte[] dst = new byte[LENGTH_FIELD_LENGTH
+                + (int) getEncodedLength()];
+        PacketHandler.putInt(dst, 0, dst.length - LENGTH_FIELD_LENGTH);
+        int offset = LENGTH_FIELD_LENGTH;
+        for (Entry entry : entries) {
+            byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+            dst[offset] = (byte) entry.kind;
+            dst[offset + 1] = (byte) (name.length >>> 8);
+            dst[offset + 2] = (byte) name.length;
+            System.arraycopy(name, 0, dst, offset + 3, name.length);
+            offset += 3 + name.length;
+            PacketHandler.putLong(dst, offset, entry.length);
+            offset += 8;
+        }
+        return dst;
+    }
+
+    /**
+     * Read a manifest written by encode(), without its length
+     * @param src
+     * @param offset
+     * @param length
+     * @return
+     * @throws IOException if it is corrupt
+     */
+    static BatchManifest decode(byte[] src, int offset, int length)
+            throws IOException {
+        BatchManifest manifest = new BatchManifest();
+        int end = offset + length;
+        while (offset < end) {
+            if (end - offset < ENTRY_OVERHEAD) {
+                throw new IOException("Corrupt batch manifest");
+            }
+            int kind = src[offset] & 0xFF;
+            int nameLength = PacketHandler.getShort(src, offset + 1);
+            offset += 3;
+            if (end - offset < nameLength + 8
+                    || (kind != KIND_FILE && kind != KIND_DIRECTORY)) {
+                throw new IOException("Corrupt batch manifest");
+            }
+            String name = new String(src, offset, nameLength,
+                    StandardCharsets.UTF_8);
+            offset += nameLength;
+            long fileLength = PacketHandler.getLong(src, offset);
+            offset += 8;
+            if (fileLength < 0) {
+                throw new IOException("Corrupt batch manifest");
+            }
+            manifest.entries.add(new Entry(kind, name, fileLength));
+        }
+        return manifest;
+    }
+}
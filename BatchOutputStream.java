@@ -0,0 +1,253 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class takes the stream of a batch and writes out the files and
+ * directories it holds under a destination directory, as the bytes come.
+ * A receiver that writes in order uses it as its output stream, and one
+ * that writes packets to their place as they arrive spools the stream to
+ * a file and unpacks that at the end.
+ *
+ * Every path in the manifest must stay inside the destination, so a batch
+ * cannot write anywhere else, not even through a symbolic link that is
+ * already in the destination.
+ * @author Diga W
+ *
+ */
+class BatchOutputStream extends OutputStream {
+
+    private final static int COPY_BUFFER_LENGTH = 64 * 1024;
+
+    private final Path root;
+
+    // the manifest is gathered whole before anything is written
+    private final byte[] lengthField =
+            new byte[BatchManifest.LENGTH_FIELD_LENGTH];
+    private int lengthFieldOffset;
+    private byte[] manifestBytes;
+    private int manifestOffset;
+    private BatchManifest manifest;
+
+    // the entry being written, and what is left of it
+    private int index = -1;
+    private OutputStream file;
+    private long remaining;
+
+    /**
+     * Get the file a batch for a directory is spooled to
+     * @param dirName
+     * @return
+     */
+    static Path getSpoolPath(String dirName) {
+        return Paths.get(dirName + ".batch");
+    }
+
+    /**
+     * Unpack a batch that was spooled to a file, then delete the spool
+     * @param spool
+     * @param dirName
+     * @return the number of files written
+     * @throws IOException if the batch is corrupt or cut short
+     */
+    static int unpack(Path spool, String dirName) throws IOException {
+        BatchOutputStream out = new BatchOutputStream(dirName);
+        byte[] buffer = new byte[COPY_BUFFER_LENGTH];
+        try (InputStream in = new BufferedInputStream(
+                Files.newInputStream(spool), COPY_BUFFER_LENGTH)) {
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) > 0) {
+                out.write(buffer, 0, bytesRead);
+            }
+        } finally {
+            out.close();
+        }
+        Files.delete(spool);
+        return out.finish();
+    }
+
+    /**
+     * @param dirName where to unpack, created if need be
+     * @throws IOException
+     */
+    public BatchOutputStream(String dirName) throws IOException {
+        Path path = Paths.get(dirName).toAbsolutePath().normalize();
+        Files.createDirectories(path);
+        root = path.toRealPath();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] src, int offset, int length) throws IOException {
+        while (length > 0) {
+            int count;
+            if (manifest == null) {
+                count = readManifest(src, offset, length);
+            } else {
+                while (remaining == 0) {
+                    if (!nextFile()) {
+                        throw new IOException(
+                                "Batch runs past its last file");
+                    }
+                }
+                count = (int) Math.min(length, remaining);
+                file.write(src, offset, count);
+                remaining -= count;
+            }
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Check that every entry of the batch was written, creating whatever
+     * comes after the last byte, i.e. empty files and directories
+     * @return the number of files written
+     * @throws IOException if the batch was cut short
+     */
+    public int finish() throws IOException {
+        if (manifest == null) {
+            throw new IOException("Batch ended before its manifest");
+        }
+        while (remaining == 0 && nextFile()) {
+            // create the empty entries at the end
+        }
+        close();
+        if (remaining > 0) {
+            throw new IOException("Batch ended in the middle of "
+                    + manifest.entries.get(index).name);
+        }
+        return manifest.getFileCount();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (file != null) {
+            file.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            file.close();
+            file = null;
+        }
+    }
+
+    /**
+     * Take bytes of the length field and manifest
+     * @param src
+     * @param offset
+     * @param length
+     * @return the number of bytes taken
+     * @throws IOException if the manifest is corrupt
+     */
+    private int readManifest(byte[] src, int offset, int length)
+            throws IOException {
+        if (manifestBytes == null) {
+            int count = Math.min(length,
+                    lengthField.length - lengthFieldOffset);
+            System.arraycopy(src, offset, lengthField, lengthFieldOffset,
+                    count);
+            lengthFieldOffset += count;
+            if (lengthFieldOffset == lengthField.length) {
+                int manifestLength = PacketHandler.getInt(lengthField, 0);
+                if (manifestLength < 0
+                        || manifestLength > BatchManifest.MAX_MANIFEST_LENGTH) {
+                    throw new IOException("Corrupt batch manifest");
+                }
+                manifestBytes = new byte[manifestLength];
+                checkManifest();
+            }
+            return count;
+        }
+        int count = Math.min(length, manifestBytes.length - manifestOffset);
+        System.arraycopy(src, offset, manifestBytes, manifestOffset, count);
+        manifestOffset += count;
+        checkManifest();
+        return count;
+    }
+
+    private void checkManifest() throws IOException {
+        if (manifestOffset < manifestBytes.length) {
+            return;
+        }
+        manifest = BatchManifest.decode(manifestBytes, 0,
+                manifestBytes.length);
+        manifestBytes = null;
+        for (BatchManifest.Entry entry : manifest.entries) {
+            resolve(entry.name);
+        }
+    }
+
+    /**
+     * Move on to the next entry, creating it
+     * @return false once there are no more entries
+     * @throws IOException
+     */
+    private boolean nextFile() throws IOException {
+        close();
+        if (index + 1 >= manifest.entries.size()) {
+            return false;
+        }
+        index++;
+        BatchManifest.Entry entry = manifest.entries.get(index);
+        Path path = resolve(entry.name);
+        checkRealPath(path, entry.name);
+        if (entry.isDirectory()) {
+            Files.createDirectories(path);
+        } else {
+            Files.createDirectories(path.getParent());
+            file = Files.newOutputStream(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS);
+            remaining = entry.length;
+        }
+        return true;
+    }
+
+    /**
+     * Get where an entry goes
+     * @param name
+     * @return
+     * @throws IOException if that is outside the destination
+     */
+    private Path resolve(String name) throws IOException {
+        Path path = root.resolve(name).normalize();
+        if (name.isEmpty() || Paths.get(name).isAbsolute()
+                || !path.startsWith(root) || path.equals(root)) {
+            throw new IOException("Batch entry outside the destination: "
+                    + name);
+        }
+        return path;
+    }
+
+    /**
+     * Check that no symbolic link on the way to an entry leads out of the
+     * destination, by the real path of the longest part of it that exists
+     * @param path
+     * @param name
+     * @throws IOException if that is outside the destination
+     */
+    private void checkRealPath(Path path, String name) throws IOException {
+        Path existing = path;
+        while (!Files.exists(existing, LinkOption.NOFOLLOW_LINKS)) {
+            existing = existing.getParent();
+        }
+        if (!existing.toRealPath().startsWith(root)) {
+            throw new IOException("Batch entry outside the destination: "
+                    + name);
+        }
+    }
+}
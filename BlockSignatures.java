@@ -0,0 +1,235 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * This class holds the signatures of the fixed-length blocks of a file, as
+ * used for a delta transfer. The receiver computes them over its existing
+ * copy of the file and hands them to the sender, which looks for the same
+ * blocks at any offset in the new file and sends references to them instead
+ * of their bytes.
+ *
+ * Each signature is a weak checksum that can be rolled along the new file a
+ * byte at a time, as in rsync, and a strong one, the first 8 bytes of the
+ * block's MD5, only computed where the weak one matches. Only whole blocks
+ * are signed, so a short tail of the old file is never reused.
+ * @author Diga W
+ *
+ */
+class BlockSignatures {
+
+    // bytes per signature when sent: weak then strong checksum
+    public final static int SIGNATURE_LENGTH = 12;
+
+    private final static int MIN_BLOCK_LENGTH = 1024;
+    private final static int MAX_BLOCK_LENGTH = 128 * 1024;
+
+    final int blockLength;
+    final int blockCount;
+    private final int[] weak;
+    private final long[] strong;
+    private final MessageDigest md5;
+
+    // open addressing index from weak checksum to block, built on the first
+    // lookup and holding index + 1, with one entry per distinct block
+    private int[] table;
+
+    /**
+     * Get the block length for a file, about the square root of its size
+     * like rsync, which balances the signatures sent against the bytes a
+     * change costs
+     * @param fileSize
+     * @return
+     */
+    static int getBlockLength(long fileSize) {
+        long length = (long) Math.sqrt(fileSize) & ~63;
+        return (int) Math.max(MIN_BLOCK_LENGTH,
+                Math.min(MAX_BLOCK_LENGTH, length));
+    }
+
+    /**
+     * Sign every whole block of a file
+     * @param fileName
+     * @return the signatures, with no blocks if the file is shorter than one
+     * @throws IOException
+     */
+    static BlockSignatures compute(String fileName) throws IOException {
+        Path path = Paths.get(fileName);
+        int blockLength = getBlockLength(Files.size(path));
+        long blockCount = Files.size(path) / blockLength;
+        BlockSignatures signatures =
+                new BlockSignatures(blockLength, (int) blockCount);
+        byte[] block = new byte[blockLength];
+        try (InputStream in = new BufferedInputStream(
+                Files.newInputStream(path), 4 * MAX_BLOCK_LENGTH)) {
+            for (int i = 0; i < blockCount; i++) {
+                if (in.readNBytes(block, 0, blockLength) < blockLength) {
+                    throw new IOException(fileName + " changed while signing");
+                }
+                signatures.weak[i] = checksum(block, 0, blockLength);
+                signatures.strong[i] = signatures.strongChecksum(block, 0);
+            }
+        }
+        return signatures;
+    }
+
+    /**
+     * @param blockLength
+     * @param blockCount
+     */
+    public BlockSignatures(int blockLength, int blockCount) {
+        this.blockLength = blockLength;
+        this.blockCount = blockCount;
+        weak = new int[blockCount];
+        strong = new long[blockCount];
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Write the signatures of up to count blocks from firstIndex on
+     * @param firstIndex
+     * @param count
+     * @return
+     */
+    public byte[] encode(int firstIndex, int count) {
+        count = firstIndex < 0 ? 0
+                : Math.max(0, Math.min(count, blockCount - firstIndex));
+        byte[] dst = new byte[count * SIGNATURE_LENGTH];
+        for (int i = 0; i < count; i++) {
+            PacketHandler.putInt(dst, i * SIGNATURE_LENGTH,
+                    weak[firstIndex + i]);
+            PacketHandler.putLong(dst, i * SIGNATURE_LENGTH + 4,
+                    strong[firstIndex + i]);
+        }
+        return dst;
+    }
+
+    /**
+     * Read signatures written by encode()
+     * @param src
+     * @param firstIndex index of the first block in src
+     * @return the number of signatures read
+     */
+    public int decode(byte[] src, int firstIndex) {
+        int count = Math.min(src.length / SIGNATURE_LENGTH,
+                blockCount - firstIndex);
+        for (int i = 0; i < count; i++) {
+            weak[firstIndex + i] =
+                    PacketHandler.getInt(src, i * SIGNATURE_LENGTH);
+            strong[firstIndex + i] =
+                    PacketHandler.getLong(src, i * SIGNATURE_LENGTH + 4);
+        }
+        return Math.max(0, count);
+    }
+
+    /**
+     * Find a block with the same content as blockLength bytes of src
+     * @param weak the weak checksum of those bytes
+     * @param src
+     * @param offset
+     * @param expected the block to try first, usually the one after the
+     * last match, so that runs of identical blocks stay in order
+     * @return the block's index, or -1 if there is none
+     */
+    public int find(int weak, byte[] src, int offset, int expected) {
+        if (table == null) {
+            buildTable();
+        }
+        boolean hasStrong = false;
+        long strong = 0;
+        if (expected >= 0 && expected < blockCount
+                && this.weak[expected] == weak) {
+            strong = strongChecksum(src, offset);
+            hasStrong = true;
+            if (this.strong[expected] == strong) {
+                return expected;
+            }
+        }
+        int mask = table.length - 1;
+        for (int slot = slot(weak, mask); table[slot] != 0;
+                slot = (slot + 1) & mask) {
+            int index = table[slot] - 1;
+            if (this.weak[index] != weak) {
+                continue;
+            }
+            if (!hasStrong) {
+                strong = strongChecksum(src, offset);
+                hasStrong = true;
+            }
+            if (this.strong[index] == strong) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private void buildTable() {
+        int size = Integer.highestOneBit(Math.max(1, blockCount) * 2) * 2;
+        table = new int[size];
+        int mask = size - 1;
+        for (int i = 0; i < blockCount; i++) {
+            int slot = slot(weak[i], mask);
+            // blocks alike, e.g. runs of zeros, only need the first entry
+            while (table[slot] != 0 && (weak[table[slot] - 1] != weak[i]
+                    || strong[table[slot] - 1] != strong[i])) {
+                slot = (slot + 1) & mask;
+            }
+            if (table[slot] == 0) {
+                table[slot] = i + 1;
+            }
+        }
+    }
+
+    private static int slot(int weak, int mask) {
+        return (weak * 0x9E3779B9 >>> 7) & mask;
+    }
+
+    /**
+     * Get the weak checksum of length bytes: their sum in the low 16 bits,
+     * and the sum of those sums in the high 16 bits
+     * @param src
+     * @param offset
+     * @param length
+     * @return
+     */
+    static int checksum(byte[] src, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += src[offset + i] & 0xFF;
+            b += a;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    /**
+     * Move a weak checksum of length bytes one byte along
+     * @param checksum
+     * @param out the byte leaving at the start
+     * @param in the byte joining at the end
+     * @param length
+     * @return
+     */
+    static int roll(int checksum, byte out, byte in, int length) {
+        int a = checksum & 0xFFFF;
+        int b = checksum >>> 16;
+        a = (a - (out & 0xFF) + (in & 0xFF)) & 0xFFFF;
+        b = (b - length * (out & 0xFF) + a) & 0xFFFF;
+        return a | (b << 16);
+    }
+
+    private long strongChecksum(byte[] src, int offset) {
+        md5.update(src, offset, blockLength);
+        return PacketHandler.getLong(md5.digest(), 0);
+    }
+}
@@ -0,0 +1,230 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * This class keeps a small journal next to a file being received, recording
+ * how many bytes of it, or of one stripe of it, are safely on disk, so that
+ * an interrupted transfer of the same file can pick up from there. The
+ * journal starts with the size and fingerprint of the file being sent, and
+ * a transfer only resumes if both match.
+ *
+ * Each checkpoint is appended as a record with its own checksum, so a
+ * record torn by a crash is ignored and the one before it counts. The data
+ * file is synced before the record that covers it is written. Both syncs
+ * run on a background thread, at most one at a time, and only every
+ * COMMIT_INTERVAL bytes, so that they do not hold up the write path.
+ * @author Diga W
+ *
+ */
+class CheckpointJournal {
+
+    public final static int COMMIT_INTERVAL = 16 * 1024 * 1024;
+
+    private final static int FINGERPRINT_BUFFER_LENGTH = 1024 * 1024;
+
+    private final static int HEADER_LENGTH = 16;
+    private final static int RECORD_LENGTH = 12;
+
+    // records kept before the journal is started over
+    private final static int MAX_RECORDS = 1024;
+
+    private final Path path;
+    private final FileChannel journal;
+    private final long fileSize;
+    private final long fingerprint;
+    private final long resumeOffset;
+    private final ExecutorService syncer = Executors.newSingleThreadExecutor();
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+    private final CRC32C crc32c = new CRC32C();
+
+    // the last offset handed to the syncer, and whether it is still busy
+    private long requested;
+    private volatile boolean isSyncing;
+    private volatile IOException failure;
+    private int recordCount;
+
+    /**
+     * Get a fingerprint of a file's content, a CRC32C over all of it, so
+     * that a partly received copy only counts as coming from the same file
+     * if no byte of it changed since. This reads the whole file once more,
+     * but CRC32C keeps up with any disk.
+     * @param fileName
+     * @return a value from 0 to 2^32 - 1
+     * @throws IOException
+     */
+    static long fingerprint(String fileName) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer =
+                ByteBuffer.allocateDirect(FINGERPRINT_BUFFER_LENGTH);
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+            return crc.getValue();
+        }
+    }
+
+    /**
+     * Get the journal of a file, or of the stripe of it starting at
+     * stripeOffset
+     * @param fileName
+     * @param stripeOffset
+     * @return
+     */
+    static Path getPath(String fileName, long stripeOffset) {
+        return Paths.get(stripeOffset > 0
+                ? fileName + "." + stripeOffset + ".journal"
+                : fileName + ".journal");
+    }
+
+    /**
+     * Open the journal, and read where the transfer left off if it was of
+     * the same file. Otherwise the journal is started over, and the
+     * transfer must start from the beginning.
+     * @param path
+     * @param fileSize size of the file being sent
+     * @param fingerprint its fingerprint
+     * @param available bytes of the file or stripe found on disk, beyond
+     * which a checkpoint cannot be right, e.g. if the file was replaced
+     * @throws IOException
+     */
+    public CheckpointJournal(Path path, long fileSize, long fingerprint,
+            long available) throws IOException {
+        this.path = path;
+        this.fileSize = fileSize;
+        this.fingerprint = fingerprint;
+        journal = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long committed = readResumeOffset();
+        resumeOffset = committed <= available ? committed : 0;
+        if (resumeOffset == 0) {
+            startOver();
+        }
+        requested = resumeOffset;
+    }
+
+    /**
+     * Get the number of bytes already received in an earlier transfer
+     * @return
+     */
+    public long getResumeOffset() {
+        return resumeOffset;
+    }
+
+    /**
+     * Note that the first committed bytes of the file or stripe have been
+     * written, and record that once enough of them have piled up since the
+     * last checkpoint. Returns at once.
+     * @param committed bytes from the start of the file or stripe that have
+     * been handed to the file system
+     * @param data the file they were written to, to be synced first
+     * @throws IOException if an earlier checkpoint failed
+     */
+    public void commit(long committed, FileChannel data) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (committed - requested < COMMIT_INTERVAL || isSyncing) {
+            return;
+        }
+        requested = committed;
+        isSyncing = true;
+        syncer.execute(() -> {
+            try {
+                data.force(false);
+                append(committed);
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                isSyncing = false;
+            }
+        });
+    }
+
+    /**
+     * Stop checkpointing, waiting for one in progress
+     * @param isComplete true if the whole file or stripe has arrived and
+     * been synced, in which case the journal is deleted
+     * @throws IOException
+     */
+    public void close(boolean isComplete) throws IOException {
+        syncer.shutdown();
+        try {
+            while (!syncer.awaitTermination(1, TimeUnit.SECONDS)) {
+                // keep waiting for the last sync
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        journal.close();
+        if (isComplete) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private long readResumeOffset() throws IOException {
+        long length = journal.size();
+        if (length < HEADER_LENGTH + RECORD_LENGTH) {
+            return 0;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        journal.read(header, 0);
+        if (header.getLong(0) != fileSize || header.getLong(8) != fingerprint) {
+            return 0;
+        }
+        // the last intact record wins
+        long count = (length - HEADER_LENGTH) / RECORD_LENGTH;
+        for (long i = count - 1; i >= 0; i--) {
+            record.clear();
+            journal.read(record, HEADER_LENGTH + i * RECORD_LENGTH);
+            long committed = record.getLong(0);
+            if (record.getInt(8) == checksum(committed)) {
+                recordCount = (int) Math.min(count, MAX_RECORDS);
+                return committed;
+            }
+        }
+        return 0;
+    }
+
+    private void startOver() throws IOException {
+        journal.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putLong(fileSize).putLong(fingerprint).flip();
+        journal.write(header, 0);
+        journal.force(false);
+        recordCount = 0;
+    }
+
+    private void append(long committed) throws IOException {
+        if (recordCount >= MAX_RECORDS) {
+            // a crash right here loses the checkpoints so far, which is
+            // rare enough at one rewrite per MAX_RECORDS of them
+            startOver();
+        }
+        record.clear();
+        record.putLong(committed).putInt(checksum(committed)).flip();
+        journal.write(record, HEADER_LENGTH + (long) recordCount * RECORD_LENGTH);
+        journal.force(false);
+        recordCount++;
+    }
+
+    private int checksum(long committed) {
+        crc32c.reset();
+        ByteBuffer fields = ByteBuffer.allocate(24);
+        fields.putLong(fileSize).putLong(fingerprint).putLong(committed).flip();
+        crc32c.update(fields);
+        return (int) crc32c.getValue();
+    }
+}
@@ -0,0 +1,202 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * This class reads a file range ahead of the sender on a background thread
+ * and deflates it one packet's worth at a time, so that compressing does
+ * not hold up the thread sending packets. Every block is compressed on its
+ * own, since the receiver must be able to inflate each packet no matter
+ * which others were lost. A block that does not get smaller is handed out
+ * as is, and after a run of those, e.g. in a file that is compressed
+ * already, fewer blocks are tried until one compresses again.
+ *
+ * Blocks are fixed up front, so they take an upper bound on their length
+ * and optionally a boundary interval, such as the end of FEC groups, that
+ * none of them may cross.
+ * @author Diga W
+ *
+ */
+class CompressingReader {
+
+    private final static int BLOCK_COUNT = 64;
+
+    // most blocks skipped between attempts after a run of incompressible ones
+    private final static int MAX_SKIPPED_BLOCKS = 64;
+
+    /**
+     * A packet's worth of the file, with its compressed form if smaller
+     */
+    static class Block {
+        final byte[] raw;
+        final byte[] compressed;
+        int rawLength;
+        int compressedLength;
+
+        Block(int maxLength) {
+            raw = new byte[maxLength];
+            compressed = new byte[maxLength];
+        }
+
+        boolean isCompressed() {
+            return compressedLength > 0;
+        }
+    }
+
+    private final BufferedInputStream bis;
+    private final MappedFile mappedFile;
+    private final long end;
+    private final int maxLength;
+    private final int boundaryInterval;
+    private final ArrayBlockingQueue<Block> freeBlocks =
+            new ArrayBlockingQueue<Block>(BLOCK_COUNT);
+    private final ArrayBlockingQueue<Block> readyBlocks =
+            new ArrayBlockingQueue<Block>(BLOCK_COUNT + 1);
+    private final Thread reader;
+    private volatile IOException failure;
+
+    // handed out once the range is used up
+    private final Block endBlock = new Block(0);
+
+    private long offset;
+    private long nextBoundary;
+
+    /**
+     * Start reading ahead
+     * @param bis the file as a stream, or null if mappedFile is given
+     * @param mappedFile the file mapped into memory, or null
+     * @param start file offset to read from, where bis is positioned
+     * @param end file offset to stop at
+     * @param maxLength the longest block
+     * @param firstBoundary file offset no block may cross
+     * @param boundaryInterval distance to each further boundary, or 0 if
+     * there are none
+     */
+    public CompressingReader(BufferedInputStream bis, MappedFile mappedFile,
+            long start, long end, int maxLength, long firstBoundary,
+            int boundaryInterval) {
+        this.bis = bis;
+        this.mappedFile = mappedFile;
+        this.offset = start;
+        this.end = end;
+        this.maxLength = maxLength;
+        this.nextBoundary = boundaryInterval > 0 ? firstBoundary : end;
+        this.boundaryInterval = boundaryInterval;
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            freeBlocks.add(new Block(maxLength));
+        }
+        reader = new Thread(this::run, "compressing-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Take the next block, waiting for it if necessary. Pass it back to
+     * release() once done with it.
+     * @return the block, or null at the end of the range
+     * @throws IOException if reading the file failed
+     */
+    public Block take() throws IOException {
+        Block block;
+        try {
+            block = readyBlocks.take();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        if (block == endBlock) {
+            // so that later calls see the end as well
+            readyBlocks.add(endBlock);
+            if (failure != null) {
+                throw failure;
+            }
+            return null;
+        }
+        return block;
+    }
+
+    public void release(Block block) {
+        freeBlocks.add(block);
+    }
+
+    /**
+     * Stop reading ahead, e.g. when the transfer is given up on
+     */
+    public void close() {
+        reader.interrupt();
+    }
+
+    private void run() {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        int skippedBlocks = 0;
+        int blocksToSkip = 0;
+        try {
+            while (offset < end) {
+                Block block = freeBlocks.take();
+                int length = (int) Math.min(maxLength,
+                        Math.min(end, nextBoundary) - offset);
+                block.rawLength = read(block.raw, length);
+                if (block.rawLength <= 0) {
+                    break;
+                }
+                offset += block.rawLength;
+                if (offset == nextBoundary) {
+                    nextBoundary += boundaryInterval;
+                }
+
+                block.compressedLength = 0;
+                if (skippedBlocks < blocksToSkip) {
+                    skippedBlocks++;
+                } else if (deflate(deflater, block)) {
+                    blocksToSkip = 0;
+                } else {
+                    skippedBlocks = 0;
+                    blocksToSkip = Math.min(MAX_SKIPPED_BLOCKS,
+                            2 * blocksToSkip + 1);
+                }
+                readyBlocks.put(block);
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            // closed
+        } finally {
+            deflater.end();
+            readyBlocks.add(endBlock);
+        }
+    }
+
+    private int read(byte[] dst, int length) throws IOException {
+        if (mappedFile == null) {
+            return bis.read(dst, 0, length);
+        }
+        // like the sender, never cross into the next mapped region
+        ByteBuffer region = mappedFile.regionFor(offset);
+        int start = (int) (offset - mappedFile.getRegionStart());
+        length = Math.min(length, region.capacity() - start);
+        region.get(start, dst, 0, length);
+        return length;
+    }
+
+    /**
+     * Compress a block's raw bytes into its compressed array
+     * @param deflater
+     * @param block
+     * @return false if they did not get smaller
+     */
+    private static boolean deflate(Deflater deflater, Block block) {
+        deflater.reset();
+        deflater.setInput(block.raw, 0, block.rawLength);
+        deflater.finish();
+        // one byte short of the raw length, so anything that does not fit
+        // is not worth sending compressed
+        int length = deflater.deflate(block.compressed, 0,
+                block.rawLength - 1);
+        if (!deflater.finished()) {
+            return false;
+        }
+        block.compressedLength = length;
+        return true;
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * This interface is a congestion control algorithm for the pipelined
+ * sender. It keeps a congestion window, in packets, that caps how many
+ * unacknowledged and unSACKed packets may be in flight. The sender detects
+ * losses and runs fast recovery itself, and only reports the events here.
+ * @author Diga W
+ *
+ */
+interface CongestionControl {
+
+    /**
+     * Get the congestion window
+     * @return the number of packets allowed in flight, at least 1
+     */
+    int getWindow();
+
+    /**
+     * Grow the window for packets newly acknowledged or SACKed. Not called
+     * during fast recovery.
+     * @param packets
+     * @param now System.nanoTime()
+     */
+    void onAck(int packets, long now);
+
+    /**
+     * Shrink the window when duplicate ACKs show a packet was lost and the
+     * sender enters fast recovery
+     * @param inFlight packets in flight when the loss was detected
+     * @param now
+     */
+    void onFastRetransmit(int inFlight, long now);
+
+    /**
+     * Called when an ACK covers everything sent before fast recovery began
+     */
+    void onRecoveryEnd();
+
+    /**
+     * Collapse the window when the retransmission timer expired
+     * @param inFlight packets in flight when the timer expired
+     * @param now
+     */
+    void onTimeout(int inFlight, long now);
+}
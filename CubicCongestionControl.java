@@ -0,0 +1,101 @@
+/**
+ * This class is CUBIC congestion control, following RFC 8312. After a loss
+ * the window grows along a cubic curve of the time since the loss, flat
+ * around the window at which the loss happened and steep away from it, so
+ * growth does not slow down on paths with long round trips. It never grows
+ * slower than Reno would.
+ * @author Diga W
+ *
+ */
+class CubicCongestionControl implements CongestionControl {
+
+    private final static double C = 0.4;
+    private final static double BETA = 0.7;
+
+    private double cwnd = RenoCongestionControl.INITIAL_WINDOW;
+    private double ssthresh = Integer.MAX_VALUE;
+
+    // window before the last reduction, and the one before that
+    private double wMax;
+    private double wLastMax;
+
+    // start of the current congestion avoidance epoch, 0 if none
+    private long epochStart;
+    private double k;
+
+    // the window Reno would have reached in this epoch
+    private double wEst;
+
+    @Override
+    public int getWindow() {
+        return (int) Math.max(1, cwnd);
+    }
+
+    @Override
+    public void onAck(int packets, long now) {
+        if (cwnd < ssthresh) {
+            cwnd += packets;
+            return;
+        }
+        if (epochStart == 0) {
+            epochStart = now;
+            if (cwnd < wMax) {
+                k = Math.cbrt((wMax - cwnd) / C);
+            } else {
+                k = 0;
+                wMax = cwnd;
+            }
+            wEst = cwnd;
+        }
+
+        double t = (now - epochStart) / 1e9;
+        double target = C * Math.pow(t - k, 3) + wMax;
+        if (target > cwnd) {
+            cwnd += (target - cwnd) / cwnd * packets;
+        } else {
+            cwnd += 0.01 * packets / cwnd;
+        }
+
+        // TCP-friendly region: grow at least as fast as Reno
+        wEst += 3 * (1 - BETA) / (1 + BETA) * packets / cwnd;
+        if (wEst > cwnd) {
+            cwnd = wEst;
+        }
+    }
+
+    @Override
+    public void onFastRetransmit(int inFlight, long now) {
+        reduce();
+    }
+
+    @Override
+    public void onRecoveryEnd() {
+        cwnd = ssthresh;
+    }
+
+    @Override
+    public void onTimeout(int inFlight, long now) {
+        reduce();
+        cwnd = 1;
+    }
+
+    private void reduce() {
+        epochStart = 0;
+        // fast convergence: release bandwidth to newer flows
+        if (cwnd < wLastMax) {
+            wLastMax = cwnd;
+            wMax = cwnd * (1 + BETA) / 2;
+        } else {
+            wLastMax = cwnd;
+            wMax = cwnd;
+        }
+        ssthresh = Math.max(cwnd * BETA, RenoCongestionControl.MIN_SSTHRESH);
+        cwnd = ssthresh;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cubic cwnd=%.1f ssthresh=%.1f wmax=%.1f",
+                cwnd, ssthresh, wMax);
+    }
+}
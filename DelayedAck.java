@@ -0,0 +1,95 @@
+/**
+ * This class decides when a receiver acknowledges data that arrived in
+ * order. Like TCP, it acknowledges every second packet, and a lone packet
+ * once a short delay passes without another, which halves the ACKs of a
+ * steady stream. Anything the sender needs to hear about at once, such as
+ * a packet out of order or one that fills a gap, the receiver acknowledges
+ * right away without asking.
+ *
+ * A sender that waits for each ACK before sending on, as stop-and-wait
+ * does and any sender at the end of its window, would be held up by the
+ * delay every time. So once the delay runs out, the next packets are
+ * acknowledged at once again, as they are at the start of a transfer,
+ * where every ACK grows the sender's window in slow start. Each time the
+ * delay runs out again, twice as many are, until two packets arriving
+ * together show that the sender does not wait.
+ * @author Diga W
+ *
+ */
+class DelayedAck {
+
+    // well under the sender's minimum retransmission timeout, even with a
+    // tick of the wheel on top
+    private final static long DELAY_NANOS = 1000000L;
+    private final static int PACKETS_PER_ACK = 2;
+    private final static int QUICK_ACK_PACKETS = 16;
+    private final static int MAX_QUICK_ACK_PACKETS = 1024;
+
+    // expires when an ACK held back is due
+    final TimerWheel.Timer timer = new TimerWheel.Timer();
+
+    private final TimerWheel timers;
+    private int unackedCount;
+    // when the oldest packet not yet acknowledged arrived
+    private long unackedSince;
+    private int quickAckCount = QUICK_ACK_PACKETS;
+    private int quickAckLimit = QUICK_ACK_PACKETS;
+
+    /**
+     * @param timers the wheel the receiver polls
+     */
+    public DelayedAck(TimerWheel timers) {
+        this.timers = timers;
+    }
+
+    /**
+     * Count a packet that arrived in order
+     * @param now
+     * @return true if the ACK should go now, false if it is held back until
+     * the timer expires or another packet arrives
+     */
+    public boolean onData(long now) {
+        if (unackedCount++ == 0) {
+            unackedSince = now;
+        }
+        if (quickAckCount > 0) {
+            quickAckCount--;
+            return true;
+        }
+        if (unackedCount >= PACKETS_PER_ACK) {
+            quickAckLimit = QUICK_ACK_PACKETS;
+            return true;
+        }
+        if (!timer.isPending()) {
+            timers.schedule(timer, DELAY_NANOS, now);
+        }
+        return false;
+    }
+
+    /**
+     * Note that the delay ran out, which the receiver follows up with the
+     * ACK held back
+     */
+    public void onExpired() {
+        quickAckCount = quickAckLimit;
+        quickAckLimit = Math.min(2 * quickAckLimit, MAX_QUICK_ACK_PACKETS);
+    }
+
+    /**
+     * Get how long the ACK about to go out kept the data it covers waiting
+     * @param now
+     * @return nanoseconds since the oldest packet it covers arrived, or -1
+     * if no packet is waiting for it
+     */
+    public long getAckDelay(long now) {
+        return unackedCount > 0 ? now - unackedSince : -1;
+    }
+
+    /**
+     * Note that an ACK went out, covering everything held back
+     */
+    public void onAckSent() {
+        unackedCount = 0;
+        timers.cancel(timer);
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * This class rebuilds a file from a delta made by DeltaEncoder and the old
+ * copy of the file that the delta refers to. The delta is received into a
+ * file of its own next to the old copy, and the new file is built next to
+ * both and then moved over the old copy, so that a failed transfer leaves
+ * the old copy as it was.
+ * @author Diga W
+ *
+ */
+class DeltaDecoder {
+
+    /**
+     * Get the file a delta against fileName is received into
+     * @param fileName
+     * @return
+     */
+    static Path getPath(String fileName) {
+        return Paths.get(fileName + ".delta");
+    }
+
+    /**
+     * Apply the delta received for a file, replacing the file, then delete
+     * the delta
+     * @param fileName
+     * @param signatures the signatures of fileName sent to the sender
+     * @param digest to digest the rebuilt file with as it is written, or
+     * null
+     * @param expected the sender's digest of the file, without which a
+     * rebuilt file with a digest does not replace the old copy
+     * @return the digest of the rebuilt file, or null if there is none
+     * @throws IOException if the delta is corrupt
+     */
+    static byte[] apply(String fileName, BlockSignatures signatures,
+            FileDigest digest, byte[] expected) throws IOException {
+        Path oldPath = Paths.get(fileName);
+        Path deltaPath = getPath(fileName);
+        Path newPath = Paths.get(fileName + ".new");
+        byte[] buffer = new byte[DeltaEncoder.MAX_LITERAL_LENGTH];
+        try (FileChannel old = FileChannel.open(oldPath,
+                        StandardOpenOption.READ);
+                DataInputStream delta = new DataInputStream(
+                        new BufferedInputStream(
+                                Files.newInputStream(deltaPath)));
+                FileChannel out = FileChannel.open(newPath,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            long written = 0;
+            while (true) {
+                int token = delta.readUnsignedByte();
+                if (token == DeltaEncoder.TOKEN_END) {
+                    if (delta.readLong() != written) {
+                        throw new IOException("Delta for " + fileName
+                                + " ends at the wrong length");
+                    }
+                    break;
+                } else if (token == DeltaEncoder.TOKEN_LITERAL) {
+                    int length = delta.readInt();
+                    if (length < 0) {
+                        throw new IOException("Corrupt delta for " + fileName);
+                    }
+                    written += length;
+                    while (length > 0) {
+                        int count = Math.min(length, buffer.length);
+                        delta.readFully(buffer, 0, count);
+                        if (digest != null) {
+                            digest.update(buffer, 0, count);
+                        }
+                        ByteBuffer literal = ByteBuffer.wrap(buffer, 0, count);
+                        while (literal.hasRemaining()) {
+                            out.write(literal);
+                        }
+                        length -= count;
+                    }
+                } else if (token == DeltaEncoder.TOKEN_COPY) {
+                    int index = delta.readInt();
+                    int count = delta.readInt();
+                    if (index < 0 || count <= 0
+                            || count > signatures.blockCount - index) {
+                        throw new IOException("Corrupt delta for " + fileName);
+                    }
+                    long position = (long) index * signatures.blockLength;
+                    long length = (long) count * signatures.blockLength;
+                    written += length;
+                    if (digest != null) {
+                        copyAndDigest(old, position, length, out, buffer,
+                                digest);
+                    } else {
+                        copy(old, position, length, out);
+                    }
+                } else {
+                    throw new IOException("Corrupt delta for " + fileName);
+                }
+            }
+            out.force(false);
+        }
+        byte[] actual = digest != null ? digest.digest() : null;
+        if (actual != null && !Arrays.equals(actual, expected)) {
+            // keep the old copy, which is at least a whole file
+            Files.delete(newPath);
+        } else {
+            Files.move(newPath, oldPath, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.delete(deltaPath);
+        return actual;
+    }
+
+    /**
+     * Copy blocks of the old copy, in the kernel where it can
+     * @param old
+     * @param position
+     * @param length
+     * @param out
+     * @throws IOException
+     */
+    private static void copy(FileChannel old, long position, long length,
+            FileChannel out) throws IOException {
+        while (length > 0) {
+            long transferred = old.transferTo(position, length, out);
+            if (transferred <= 0) {
+                // nothing left to transfer past the end of the old copy
+                throw new IOException("Old copy shrank while applying");
+            }
+            position += transferred;
+            length -= transferred;
+        }
+    }
+
+    /**
+     * Copy blocks of the old copy through a buffer rather than with
+     * transferTo(), so that they can be digested on the way
+     * @param old
+     * @param position
+     * @param length
+     * @param out
+     * @param buffer
+     * @param digest
+     * @throws IOException
+     */
+    private static void copyAndDigest(FileChannel old, long position,
+            long length, FileChannel out, byte[] buffer, FileDigest digest)
+            throws IOException {
+        while (length > 0) {
+            ByteBuffer block = ByteBuffer.wrap(buffer, 0,
+                    (int) Math.min(length, buffer.length));
+            while (block.hasRemaining()) {
+                if (old.read(block, position + block.position()) < 0) {
+                    throw new IOException("Old copy shrank while applying");
+                }
+            }
+            block.flip();
+            digest.update(block);
+            while (block.hasRemaining()) {
+                out.write(block);
+            }
+            position += block.limit();
+            length -= block.limit();
+        }
+    }
+}
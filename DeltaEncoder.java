@@ -0,0 +1,172 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * This class writes a new file as a delta against the receiver's old copy
+ * of it, given the signatures of the old copy's blocks. The delta is a
+ * sequence of tokens, each a type byte and its fields:
+ *
+ * LITERAL, a 4-byte length and that many bytes of the new file;
+ * COPY, a 4-byte block index and a 4-byte count of consecutive blocks of
+ * the old copy;
+ * END, the 8-byte length of the new file.
+ *
+ * The delta is sent in place of the file, and DeltaDecoder rebuilds the
+ * file from it and the old copy.
+ * @author Diga W
+ *
+ */
+class DeltaEncoder {
+
+    public final static int TOKEN_END = 0;
+    public final static int TOKEN_LITERAL = 1;
+    public final static int TOKEN_COPY = 2;
+
+    // longest literal before it is written out, which bounds how far the
+    // buffered data may reach back
+    public final static int MAX_LITERAL_LENGTH = 64 * 1024;
+
+    private final static int BUFFER_LENGTH = 1024 * 1024;
+
+    private final DataOutputStream out;
+    private int copyIndex = -1;
+    private int copyCount;
+    private long fileLength;
+
+    private DeltaEncoder(DataOutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Write the delta of a file against the blocks signed
+     * @param srcFileName the new file
+     * @param signatures of the old copy
+     * @param deltaFile where to write the delta
+     * @param digest to digest the new file with as it is read, or null
+     * @return the length of the delta
+     * @throws IOException
+     */
+    static long encode(String srcFileName, BlockSignatures signatures,
+            Path deltaFile, FileDigest digest) throws IOException {
+        int blockLength = signatures.blockLength;
+        byte[] buffer = new byte[BUFFER_LENGTH];
+        try (FileInputStream in = new FileInputStream(srcFileName);
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(
+                                Files.newOutputStream(deltaFile)))) {
+            DeltaEncoder encoder = new DeltaEncoder(out);
+
+            // bytes before literalStart have been encoded, and the block
+            // being matched starts at start
+            int literalStart = 0;
+            int start = 0;
+            int end = 0;
+            boolean isEof = false;
+            boolean isRolling = false;
+            int weak = 0;
+            while (true) {
+                // keep a block and the byte after it buffered, so that the
+                // checksum can roll on
+                if (!isEof && end - start <= blockLength) {
+                    System.arraycopy(buffer, literalStart, buffer, 0,
+                            end - literalStart);
+                    start -= literalStart;
+                    end -= literalStart;
+                    literalStart = 0;
+                    int bytesRead = in.read(buffer, end, buffer.length - end);
+                    if (bytesRead < 0) {
+                        isEof = true;
+                    } else {
+                        if (digest != null) {
+                            digest.update(buffer, end, bytesRead);
+                        }
+                        end += bytesRead;
+                    }
+                    continue;
+                }
+                if (end - start < blockLength) {
+                    break;
+                }
+
+                if (!isRolling) {
+                    weak = BlockSignatures.checksum(buffer, start, blockLength);
+                    isRolling = true;
+                }
+                int index = signatures.find(weak, buffer, start,
+                        encoder.getNextCopyIndex());
+                if (index >= 0) {
+                    encoder.literal(buffer, literalStart, start - literalStart);
+                    encoder.copy(index, blockLength);
+                    start += blockLength;
+                    literalStart = start;
+                    isRolling = false;
+                    continue;
+                }
+
+                // only at the end of the file is there nothing to roll into
+                if (start + blockLength == end) {
+                    break;
+                }
+                weak = BlockSignatures.roll(weak, buffer[start],
+                        buffer[start + blockLength], blockLength);
+                start++;
+                if (start - literalStart == MAX_LITERAL_LENGTH) {
+                    encoder.literal(buffer, literalStart, MAX_LITERAL_LENGTH);
+                    literalStart = start;
+                }
+            }
+            encoder.literal(buffer, literalStart, end - literalStart);
+            encoder.end();
+        }
+        return Files.size(deltaFile);
+    }
+
+    /**
+     * @return the block that would extend the current run of copied ones
+     */
+    private int getNextCopyIndex() {
+        return copyIndex < 0 ? -1 : copyIndex + copyCount;
+    }
+
+    private void literal(byte[] src, int offset, int length)
+            throws IOException {
+        if (length <= 0) {
+            return;
+        }
+        flushCopy();
+        out.writeByte(TOKEN_LITERAL);
+        out.writeInt(length);
+        out.write(src, offset, length);
+        fileLength += length;
+    }
+
+    private void copy(int index, int blockLength) throws IOException {
+        if (index != getNextCopyIndex()) {
+            flushCopy();
+            copyIndex = index;
+        }
+        copyCount++;
+        fileLength += blockLength;
+    }
+
+    private void flushCopy() throws IOException {
+        if (copyCount == 0) {
+            return;
+        }
+        out.writeByte(TOKEN_COPY);
+        out.writeInt(copyIndex);
+        out.writeInt(copyCount);
+        copyIndex = -1;
+        copyCount = 0;
+    }
+
+    private void end() throws IOException {
+        flushCopy();
+        out.writeByte(TOKEN_END);
+        out.writeLong(fileLength);
+    }
+}
@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+
+/**
+ * This class computes a digest of the bytes of a file as they stream
+ * through a transfer: on the sender as they are read, and on the receiver
+ * as they are written, so that neither side needs another pass over the
+ * file. The sender puts its digest in the FIN and the receiver answers
+ * with its own in the FIN-ACK, so that both can tell whether the file
+ * written is the file read.
+ *
+ * CRC32C costs next to nothing and catches accidents such as a lost or
+ * misplaced write. SHA-256 also rules out two different files digesting
+ * the same, at roughly the speed of a fast disk.
+ * @author Diga W
+ *
+ */
+class FileDigest {
+
+    private final static int READ_BUFFER_LENGTH = 64 * 1024;
+
+    private final MessageDigest messageDigest;
+    private final CRC32C crc32c;
+
+    // for bytes read back from a file, allocated on first use
+    private ByteBuffer readBuffer;
+
+    /**
+     * Check if a receiver can digest with an algorithm a sender offers
+     * @param algorithm
+     * @return
+     */
+    static boolean isSupported(int algorithm) {
+        return algorithm == SynOptions.DIGEST_CRC32C
+                || algorithm == SynOptions.DIGEST_SHA256;
+    }
+
+    /**
+     * Get the number of bytes of digest an algorithm gives
+     * @param algorithm
+     * @return 0 for DIGEST_NONE or an unknown algorithm
+     */
+    static int getLength(int algorithm) {
+        switch (algorithm) {
+        case SynOptions.DIGEST_CRC32C:
+            return 4;
+        case SynOptions.DIGEST_SHA256:
+            return 32;
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * @param algorithm as agreed at SYN
+     * @return the digest, or null for DIGEST_NONE or an unknown algorithm
+     */
+    static FileDigest create(int algorithm) {
+        switch (algorithm) {
+        case SynOptions.DIGEST_CRC32C:
+            return new FileDigest(null);
+        case SynOptions.DIGEST_SHA256:
+            try {
+                return new FileDigest(MessageDigest.getInstance("SHA-256"));
+            } catch (NoSuchAlgorithmException e) {
+                // every Java platform has SHA-256
+                throw new IllegalStateException(e);
+            }
+        default:
+            return null;
+        }
+    }
+
+    private FileDigest(MessageDigest messageDigest) {
+        this.messageDigest = messageDigest;
+        this.crc32c = messageDigest == null ? new CRC32C() : null;
+    }
+
+    public void update(byte[] src, int offset, int length) {
+        if (messageDigest != null) {
+            messageDigest.update(src, offset, length);
+        } else {
+            crc32c.update(src, offset, length);
+        }
+    }
+
+    /**
+     * Fold in the bytes from the buffer's position to its limit, leaving
+     * the position where it was
+     * @param src
+     */
+    public void update(ByteBuffer src) {
+        int position = src.position();
+        if (messageDigest != null) {
+            messageDigest.update(src);
+        } else {
+            crc32c.update(src);
+        }
+        src.position(position);
+    }
+
+    /**
+     * Fold in bytes already written to a file. A receiver that writes
+     * packets to their place as they arrive digests the ones that arrive
+     * in order straight from the packet, and reads back the others, from
+     * the page cache, once the gap before them is filled.
+     * @param file
+     * @param position
+     * @param length
+     * @throws IOException
+     */
+    public void update(FileChannel file, long position, long length)
+            throws IOException {
+        if (readBuffer == null) {
+            readBuffer = ByteBuffer.allocate(READ_BUFFER_LENGTH);
+        }
+        while (length > 0) {
+            readBuffer.clear().limit((int) Math.min(length, READ_BUFFER_LENGTH));
+            int bytesRead = file.read(readBuffer, position);
+            if (bytesRead <= 0) {
+                throw new IOException("File ended before its digest did");
+            }
+            readBuffer.flip();
+            update(readBuffer);
+            position += bytesRead;
+            length -= bytesRead;
+        }
+    }
+
+    /**
+     * Finish the digest
+     * @return
+     */
+    public byte[] digest() {
+        if (messageDigest != null) {
+            return messageDigest.digest();
+        }
+        byte[] digest = new byte[4];
+        PacketHandler.putInt(digest, 0, (int) crc32c.getValue());
+        return digest;
+    }
+}
@@ -1,99 +1,1085 @@
 // Author: A0114171W
 
-import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 class FileReceiver {
 
+    // unless given in bytes, the buffer holds this many packets of the
+    // size agreed with the sender
+    public final static int DEFAULT_BUFFER_PACKETS = 64;
+    private final static int LINGER_MS = 500;
+
+    // a transfer the SYN completed gave the sender no round trip sample,
+    // so its resends start from the initial timeout and soon back off to
+    // well over LINGER_MS apart
+    private final static int SYN_LINGER_MS = 4000;
+
+    // how many packets an explicitly sized buffer holds at least
+    private final static int MIN_BUFFER_PACKETS = 4;
+
+    // timers run on a wheel of millisecond ticks, a turn of which covers
+    // the ones that come up in a transfer bar the idle timeout
+    private final static long TIMER_TICK_NANOS = 1000000L;
+    private final static int TIMER_SLOTS = 512;
+
+    // longer than a sender ever waits between resends, so a transfer is
+    // only given up once its sender has stopped
+    private final static long IDLE_TIMEOUT_NANOS =
+            2 * RttEstimator.MAX_RTO_NANOS;
+
+    // how often a window the disk has closed is checked for reopening
+    private final static long WINDOW_POLL_NANOS = 1000000L;
+
     int portNo;
     PacketHandler handler;
+    int bufferSize;
+    boolean isNio;
+    int workerThreads;
+    int maxPacketSize = PacketHandler.MAX_DATAGRAM_SIZE;
+
+    // shared by every transfer a server receives
+    TransferMetrics metrics = new TransferMetrics("receiver");
+    TransferMetrics.Export export = TransferMetrics.Export.NONE;
+    int reportInterval = TransferMetrics.DEFAULT_REPORT_INTERVAL_SECS;
 
     public static void main(String[] args) {
-        // check if the number of command line argument is 1
-        if (args.length != 1) {
-            System.out.println("Usage: java FileReceiver port");
-            System.exit(1);
+        // check if the number of command line argument is at least 1
+        if (args.length < 1) {
+            printUsageAndExit();
         }
 
         FileReceiver receiver = new FileReceiver(args[0]);
 
+        // optional arguments come in "-flag value" pairs
+        for (int i = 1; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                printUsageAndExit();
+            }
+            switch (args[i]) {
+            case "-b":
+                receiver.bufferSize = Integer.parseInt(args[i + 1]);
+                break;
+            case "-t":
+                receiver.isNio = FileSender.parseTransport(args[i + 1]);
+                break;
+            case "-s":
+                receiver.workerThreads = Integer.parseInt(args[i + 1]);
+                if (receiver.workerThreads < 1) {
+                    printUsageAndExit();
+                }
+                break;
+            case "-p":
+                receiver.maxPacketSize = Integer.parseInt(args[i + 1]);
+                if (receiver.maxPacketSize < PacketHandler.MAX_PACKET_SIZE
+                        || receiver.maxPacketSize
+                                > PacketHandler.MAX_DATAGRAM_SIZE) {
+                    printUsageAndExit();
+                }
+                break;
+            case "-x":
+                receiver.export = FileSender.parseExport(args[i + 1]);
+                break;
+            case "-i":
+                receiver.reportInterval = Integer.parseInt(args[i + 1]);
+                if (receiver.reportInterval < 1) {
+                    printUsageAndExit();
+                }
+                break;
+            default:
+                printUsageAndExit();
+            }
+        }
+
         try {
-            receiver.receive();
+            receiver.metrics.start(receiver.export, receiver.reportInterval);
+            if (receiver.workerThreads > 0) {
+                new ReceiverServer(receiver.portNo, receiver.workerThreads,
+                        receiver.bufferSize, receiver.maxPacketSize,
+                        receiver.metrics).run();
+            } else {
+                receiver.receive();
+            }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
         }
     }
 
+    private static void printUsageAndExit() {
+        System.out.println("Usage: java FileReceiver port [-b bufferBytes] "
+                + "[-t io|nio] [-s workerThreads] [-p maxPacketSize] "
+                + "[-x none|text|jmx] [-i reportSecs]");
+        System.exit(1);
+    }
+
     public FileReceiver(String localPort) {
         portNo = Integer.parseInt(localPort);
         handler = new PacketHandler();
     }
 
     void receive() throws IOException {
+        if (isNio) {
+            receiveNio();
+            return;
+        }
         InetAddress ipAddress = InetAddress.getByName("localhost");
         DatagramSocket socket = new DatagramSocket(portNo);
+        System.out.println(getListeningMessage(portNo));
 
-        byte[] inBuffer = new byte[PacketHandler.MAX_PACKET_SIZE];
+        byte[] inBuffer = new byte[maxPacketSize];
         DatagramPacket pktIn = new DatagramPacket(inBuffer, inBuffer.length);
 
-        socket.receive(pktIn);
+        // wait for a good SYN, resent by the sender until it gets through
+        do {
+            socket.receive(pktIn);
+        } while (!handler.isGood(pktIn.getData())
+                || !handler.isSyn(pktIn.getData()));
+        metrics.restartClock();
 
-        byte[] outBuffer = handler.createSynPacket(new byte[0], 0, 0);
+        byte[] packet = pktIn.getData();
+        byte[] data = handler.getPayload(packet);
+        String fileName = new String(data);
+        SynOptions offered = handler.getSynOptions(packet);
+        SynOptions accepted = acceptOptions(offered);
+        BlockSignatures signatures =
+                acceptDelta(offered, accepted, fileName, false);
+        CheckpointJournal journal =
+                openJournal(offered, accepted, fileName, 0);
+        long resumeOffset = journal != null ? journal.getResumeOffset() : 0;
+        FileDigest digest = FileDigest.create(accepted.digestAlgorithm);
+        // so that a full window of packets fits in the socket as well
+        if (socket.getReceiveBufferSize() < bufferSize) {
+            socket.setReceiveBufferSize(bufferSize);
+        }
+
+        // a batch is unpacked as it arrives, a resumed transfer appends to
+        // what was checkpointed, dropping anything written after that, and
+        // a delta goes next to the file
+        BatchOutputStream batch =
+                accepted.isBatch ? new BatchOutputStream(fileName) : null;
+        FileOutputStream file = null;
+        if (batch == null) {
+            file = new FileOutputStream(signatures != null
+                    ? DeltaDecoder.getPath(fileName).toString() : fileName,
+                    resumeOffset > 0);
+        }
+        if (resumeOffset > 0) {
+            file.getChannel().truncate(resumeOffset);
+            // the sender's digest covers the part kept as well
+            if (digest != null) {
+                try (FileChannel prefix = FileChannel.open(
+                        Paths.get(fileName), StandardOpenOption.READ)) {
+                    digest.update(prefix, 0, resumeOffset);
+                }
+            }
+        }
+        // disk writes happen in the background, and the window shrinks
+        // while they lag behind; a delta is digested once it is applied
+        WriteBehindStream out = new WriteBehindStream(
+                batch != null ? batch : file, bufferSize,
+                signatures != null ? null : digest, metrics);
+
+        // offsets are tracked in 64 bits, and only truncated on the wire
+        long dataStart = handler.getSeqNo(packet) + data.length;
+        long ackNo = dataStart;
+
+        // the first bytes may come with the SYN, and may be all of them,
+        // in which case the transfer is complete
+        byte[] expected = null;
+        byte[] early = acceptFastOpen(offered, accepted);
+        if (early != null) {
+            out.write(early, 0, early.length);
+            ackNo += early.length;
+            if (accepted.isFastOpenFin) {
+                expected = offered.fastOpenDigest;
+            }
+        }
+        ReorderBuffer reorderBuffer = new ReorderBuffer(bufferSize);
+        ParityDecoder parity = newParityDecoder(accepted, ackNo);
+        PacketInflater inflater = newInflater(accepted);
+        int[] sackBlocks = new int[2 * PacketHandler.MAX_SACK_BLOCKS];
+        PacketView view = new PacketView(handler).wrap(inBuffer);
+
+        // the reply to the SYN carries the accepted options, and answers
+        // every SYN until the first data packet arrives
+        byte[] synAck = handler.createSynAckPacket((int) dataStart, accepted,
+                getWindow(out));
+        byte[] outBuffer = new byte[PacketHandler.MAX_PACKET_SIZE];
+        System.arraycopy(synAck, 0, outBuffer, 0, synAck.length);
         DatagramPacket pktOut = new DatagramPacket(
-                outBuffer, outBuffer.length, ipAddress, pktIn.getPort());
+                outBuffer, synAck.length, ipAddress, pktIn.getPort());
+
+        // after that the ACK is only re-encoded when it changes, including
+        // when the window opens up again
+        boolean isAckStale = false;
+        int window = -1;
+
+        // and only sent when a packet calls for it, or when a timer held
+        // it back or the window reopens; the receiver blocks in between
+        boolean isAckDue = true;
+        long now = System.nanoTime();
+        TimerWheel timers = new TimerWheel(TIMER_TICK_NANOS, TIMER_SLOTS, now);
+        DelayedAck delayedAck = new DelayedAck(timers);
+        TimerWheel.Timer windowTimer = new TimerWheel.Timer();
+        TimerWheel.Timer idleTimer = new TimerWheel.Timer();
+        timers.schedule(idleTimer, IDLE_TIMEOUT_NANOS, now);
+
+        while (expected == null) {
+            TimerWheel.Timer timer;
+            while ((timer = timers.poll(now)) != null) {
+                if (timer == idleTimer) {
+                    throw new IOException("Sender of " + fileName
+                            + " went quiet");
+                } else if (timer == windowTimer) {
+                    // worth telling the sender once it has grown by half
+                    isAckDue |= getWindow(out) >= window + bufferSize / 2;
+                } else {
+                    delayedAck.onExpired();
+                    isAckDue = true;
+                }
+            }
+            if (isAckDue) {
+                if (window >= 0 && getWindow(out) != window) {
+                    isAckStale = true;
+                }
+                if (isAckStale) {
+                    int blockCount = reorderBuffer.getSackBlocks(sackBlocks);
+                    window = getWindow(out);
+                    pktOut.setLength(handler.encodeAck(outBuffer, (int) ackNo,
+                            window, sackBlocks, blockCount));
+                    isAckStale = false;
+                }
+                socket.send(pktOut);
+                metrics.onAckSent(delayedAck.getAckDelay(System.nanoTime()));
+                delayedAck.onAckSent();
+                isAckDue = false;
+            }
+            // the disk is behind, so watch for it to catch up
+            if (window >= 0 && window < bufferSize / 2
+                    && !windowTimer.isPending()) {
+                timers.schedule(windowTimer, WINDOW_POLL_NANOS, now);
+            }
 
-        socket.setSoTimeout(1);
-        while (!handler.isGood(pktIn.getData())) {
-            socket.send(pktOut);
+            socket.setSoTimeout(timers.getWaitMillis(now));
             try {
                 socket.receive(pktIn);
             } catch (SocketTimeoutException e) {
+                now = System.nanoTime();
                 continue;
             }
+            now = System.nanoTime();
+            timers.schedule(idleTimer, IDLE_TIMEOUT_NANOS, now);
+            metrics.packetsReceived.increment();
+
+            if (!view.isGood()) {
+                metrics.packetsCorrupted.increment();
+                continue;
+            }
+            if (view.isCompressed()
+                    && (inflater == null || inflater.inflate(inBuffer) < 0)) {
+                continue;
+            }
+            // the sender fetches the signatures for a delta one SYN at a
+            // time, before any data
+            if (view.isSyn()) {
+                if (signatures != null && window < 0) {
+                    answerDelta(handler.getSynOptions(inBuffer), accepted,
+                            signatures);
+                    synAck = handler.createSynAckPacket((int) dataStart,
+                            accepted, getWindow(out));
+                    System.arraycopy(synAck, 0, outBuffer, 0, synAck.length);
+                    pktOut.setLength(synAck.length);
+                }
+                // the SYN-ACK may have been lost
+                isAckDue = true;
+                continue;
+            }
+
+            // hold on to packets beyond a gap until the gap is filled, and
+            // drop anything beyond the window
+            long seqNo = PacketHandler.unwrap(view.getSeqNo(), ackNo);
+            int dataLength = view.getDataLength();
+            if (view.isParity()) {
+                if (parity != null && parity.addParity(seqNo, view)) {
+                    ackNo = takeRecovered(parity, ackNo, out, reorderBuffer);
+                    isAckStale = true;
+                    isAckDue = true;
+                }
+                continue;
+            }
+            // the sender hears at once of anything but data in order, so
+            // that it can tell what is missing
+            if (seqNo != ackNo) {
+                isAckDue = true;
+                // a last data packet that comes early is kept as plain data,
+                // and the sender follows it up with a FIN of its own
+                if (!view.isSyn() && (!view.isFin() || dataLength > 0)
+                        && seqNo + dataLength - ackNo <= getWindow(out)
+                        && !reorderBuffer.contains(seqNo)
+                        && reorderBuffer.put(seqNo, inBuffer,
+                                view.getDataOffset(), dataLength, ackNo)) {
+                    isAckStale = true;
+                    if (parity != null && parity.addData(seqNo, view)) {
+                        ackNo = takeRecovered(parity, ackNo, out,
+                                reorderBuffer);
+                    }
+                }
+                continue;
+            }
+
+            // the last data packet may be the FIN as well
+            if (dataLength > 0) {
+                if (dataLength > out.getFreeSpace()) {
+                    isAckDue = true;
+                    continue;
+                }
+                // and of data that fills a gap, or part of one
+                boolean isAckNow = !reorderBuffer.isEmpty();
+                out.write(inBuffer, view.getDataOffset(), dataLength);
+                ackNo = reorderBuffer.drainTo(ackNo + dataLength, out);
+                if (parity != null && parity.addData(seqNo, view)) {
+                    ackNo = takeRecovered(parity, ackNo, out, reorderBuffer);
+                    isAckNow = true;
+                } else if (parity != null) {
+                    parity.release(ackNo);
+                }
+                isAckDue |= isAckNow || delayedAck.onData(now);
+                if (journal != null) {
+                    journal.commit(resumeOffset + out.getWrittenCount(),
+                            file.getChannel());
+                }
+                isAckStale = true;
+            }
+            if (view.isFin()) {
+                expected = view.getTrailer();
+            }
         }
 
-        byte[] packet = pktIn.getData();
+        // the FIN-ACK waits for the disk, and for the digest that comes
+        // with it
+        out.flush();
+        byte[] actual = signatures != null
+                ? DeltaDecoder.apply(fileName, signatures, digest, expected)
+                : digest != null ? digest.digest() : null;
+        // and for a batch, for every file to be complete
+        int fileCount = batch != null ? batch.finish() : 0;
+        // nothing is left to resume once the sender hears the file is done
+        if (journal != null) {
+            journal.close(true);
+        }
+        outBuffer = getFinAck(handler, accepted, dataStart, ackNo,
+                getWindow(out), actual);
+        pktOut = new DatagramPacket(
+                outBuffer, outBuffer.length, ipAddress, pktIn.getPort());
+        socket.send(pktOut);
+        metrics.finish();
+        lingerAfterFin(socket, pktIn, pktOut,
+                accepted.isFastOpenFin ? SYN_LINGER_MS : LINGER_MS);
+        if (!isDigestMatched(accepted, actual, expected)) {
+            throw new IOException(fileName + " failed the digest check");
+        }
+        System.out.println(getReceivedMessage(fileName, batch != null,
+                fileCount));
+        socket.close();
+        out.close();
+    }
+
+    /**
+     * Take a packet rebuilt from parity as if it had just arrived, then
+     * forget the groups that are behind
+     * @param parity
+     * @param ackNo the next expected offset
+     * @param out
+     * @param reorderBuffer
+     * @return the next expected offset after taking the packet
+     * @throws IOException
+     */
+    private long takeRecovered(ParityDecoder parity, long ackNo,
+            WriteBehindStream out, ReorderBuffer reorderBuffer)
+            throws IOException {
+        long seqNo = parity.getRecoveredSeqNo();
+        int length = parity.getRecoveredLength();
+        if (seqNo == ackNo && length <= out.getFreeSpace()) {
+            out.write(parity.getRecoveredData(), 0, length);
+            ackNo = reorderBuffer.drainTo(ackNo + length, out);
+        } else if (seqNo > ackNo && seqNo + length - ackNo <= getWindow(out)) {
+            reorderBuffer.put(seqNo, parity.getRecoveredData(), 0, length,
+                    ackNo);
+        }
+        parity.release(ackNo);
+        return ackNo;
+    }
+
+    /**
+     * Get the window to advertise: the bytes past the next expected one
+     * that can be both buffered out of order and queued for writing
+     * @param out
+     * @return
+     */
+    private int getWindow(WriteBehindStream out) {
+        return Math.min(bufferSize, out.getFreeSpace());
+    }
+
+    /**
+     * Receive a file over a DatagramChannel into direct buffers. Each payload
+     * is written from the receive buffer straight to its offset in the
+     * output file, so packets that arrive out of order need no copying,
+     * only a note of which ranges have arrived.
+     * @throws IOException
+     */
+    void receiveNio() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(portNo));
+        System.out.println(getListeningMessage(portNo));
+
+        ByteBuffer inBuffer = ByteBuffer.allocateDirect(maxPacketSize);
+        PacketView view = new PacketView(handler);
+
+        // wait for a good SYN, then only listen to its sender
+        SocketAddress senderAddress;
+        do {
+            inBuffer.clear();
+            senderAddress = channel.receive(inBuffer);
+            inBuffer.flip();
+        } while (!view.wrap(inBuffer).isGood() || !view.isSyn());
+        channel.connect(senderAddress);
+        metrics.restartClock();
+
+        byte[] packet = new byte[inBuffer.limit()];
+        inBuffer.get(0, packet);
         byte[] data = handler.getPayload(packet);
         String fileName = new String(data);
+        SynOptions offered = handler.getSynOptions(packet);
+        SynOptions accepted = acceptOptions(offered);
+        BlockSignatures signatures =
+                acceptDelta(offered, accepted, fileName, false);
+        CheckpointJournal journal =
+                openJournal(offered, accepted, fileName, 0);
+        if (channel.getOption(StandardSocketOptions.SO_RCVBUF) < bufferSize) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, bufferSize);
+        }
 
-        FileOutputStream fos = new FileOutputStream(fileName);
-        BufferedOutputStream bos = new BufferedOutputStream(fos);
+        // a resumed transfer writes over whatever follows the checkpoint,
+        // a delta goes next to the file, and a batch is spooled to be
+        // unpacked at the end
+        Path path = accepted.isBatch ? BatchOutputStream.getSpoolPath(fileName)
+                : signatures != null ? DeltaDecoder.getPath(fileName)
+                : Paths.get(fileName);
+        FileChannel fileChannel = journal != null
+                ? FileChannel.open(path, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+        if (journal != null) {
+            // dropping anything written after the checkpoint, or all of an
+            // older, larger file when there is none
+            fileChannel.truncate(journal.getResumeOffset());
+        }
+        FileDigest digest = FileDigest.create(accepted.digestAlgorithm);
+        // a delta is digested once it is applied, and a resumed transfer
+        // from the start of the file, the part kept included
+        FileDigest streamDigest = signatures != null ? null : digest;
+        if (journal != null && streamDigest != null) {
+            streamDigest.update(fileChannel, 0, journal.getResumeOffset());
+        }
 
-        int ackNo = 0;
+        long dataStart = handler.getSeqNo(packet) + data.length;
+        // the stream offset of the first byte of the file, which a resumed
+        // transfer starts part of the way into
+        long resumeOffset = journal != null ? journal.getResumeOffset() : 0;
+        long fileStart = dataStart - resumeOffset;
+        long ackNo = dataStart;
+        // bytes before this have been digested
+        long digestedTo = dataStart;
 
-        while (true) {
-            ackNo = handler.getSeqNo(packet) + data.length;
-            outBuffer = handler.createAckPacket(ackNo);
-            pktOut = new DatagramPacket(
-                        outBuffer, outBuffer.length, ipAddress, pktIn.getPort());
-            do {
-                socket.send(pktOut);
+        // the first bytes may come with the SYN, and may be all of them,
+        // in which case the transfer is complete
+        byte[] expected = null;
+        byte[] early = acceptFastOpen(offered, accepted);
+        if (early != null) {
+            ByteBuffer payload = ByteBuffer.wrap(early);
+            if (streamDigest != null) {
+                streamDigest.update(payload);
+            }
+            write(fileChannel, payload, dataStart - fileStart, metrics);
+            ackNo += early.length;
+            digestedTo = ackNo;
+            if (accepted.isFastOpenFin) {
+                expected = offered.fastOpenDigest;
+            }
+        }
+        ReorderBuffer reorderBuffer = new ReorderBuffer(bufferSize);
+        ParityDecoder parity = newParityDecoder(accepted, ackNo);
+        PacketInflater inflater = newInflater(accepted);
+        int[] sackBlocks = new int[2 * PacketHandler.MAX_SACK_BLOCKS];
+
+        byte[] outBuffer = new byte[PacketHandler.MAX_PACKET_SIZE];
+        // payloads are written as they arrive, so only the reorder buffer
+        // limits the window
+        byte[] synAck = handler.createSynAckPacket((int) dataStart, accepted,
+                bufferSize);
+        System.arraycopy(synAck, 0, outBuffer, 0, synAck.length);
+        ByteBuffer ackOut = ByteBuffer.wrap(outBuffer, 0, synAck.length);
+        boolean isAckStale = false;
+
+        // an ACK is only sent when a packet calls for it, or when a timer
+        // held it back; the receiver blocks in the selector in between
+        boolean isAckDue = true;
+        long now = System.nanoTime();
+        TimerWheel timers = new TimerWheel(TIMER_TICK_NANOS, TIMER_SLOTS, now);
+        DelayedAck delayedAck = new DelayedAck(timers);
+        TimerWheel.Timer idleTimer = new TimerWheel.Timer();
+        timers.schedule(idleTimer, IDLE_TIMEOUT_NANOS, now);
+
+        channel.configureBlocking(false);
+        Selector selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+
+        while (expected == null) {
+            TimerWheel.Timer timer;
+            while ((timer = timers.poll(now)) != null) {
+                if (timer == idleTimer) {
+                    throw new IOException("Sender of " + fileName
+                            + " went quiet");
+                }
+                delayedAck.onExpired();
+                isAckDue = true;
+            }
+            if (isAckDue) {
+                if (isAckStale) {
+                    int blockCount = reorderBuffer.getSackBlocks(sackBlocks);
+                    ackOut.limit(handler.encodeAck(outBuffer, (int) ackNo,
+                            bufferSize, sackBlocks, blockCount));
+                    isAckStale = false;
+                }
                 try {
-                    socket.receive(pktIn);
-                } catch (SocketTimeoutException e) {
+                    channel.write(ackOut.rewind());
+                } catch (PortUnreachableException e) {
+                    // the sender's port went away, for now or for good,
+                    // which the idle timer settles; the ACK is lost
+                }
+                metrics.onAckSent(delayedAck.getAckDelay(System.nanoTime()));
+                delayedAck.onAckSent();
+                isAckDue = false;
+            }
+
+            selector.select(timers.getWaitMillis(now));
+            selector.selectedKeys().clear();
+            now = System.nanoTime();
+            inBuffer.clear();
+            try {
+                if (channel.read(inBuffer) <= 0) {
                     continue;
                 }
-            } while (handler.isCorruptedOrDuplicate(pktIn.getData(), ackNo));
+            } catch (PortUnreachableException e) {
+                // an earlier ACK found no sender
+                continue;
+            }
+            inBuffer.flip();
+            timers.schedule(idleTimer, IDLE_TIMEOUT_NANOS, now);
+            metrics.packetsReceived.increment();
 
-            if (handler.isFin(packet)) {
-                outBuffer = handler.createAckFinPacket(ackNo);
-                pktOut = new DatagramPacket(
-                        outBuffer, outBuffer.length, ipAddress, pktIn.getPort());
-                socket.send(pktOut);
-                System.out.println(fileName + " received.");
-                break;
+            if (!view.wrap(inBuffer).isGood()) {
+                metrics.packetsCorrupted.increment();
+                continue;
+            }
+            if (view.isCompressed() && (inflater == null
+                    || inflater.inflate(inBuffer) < 0)) {
+                continue;
+            }
+            // the sender fetches the signatures for a delta one SYN at a
+            // time, before any data
+            if (view.isSyn()) {
+                if (signatures != null && ackNo == dataStart) {
+                    byte[] syn = new byte[inBuffer.limit()];
+                    inBuffer.get(0, syn);
+                    answerDelta(handler.getSynOptions(syn), accepted,
+                            signatures);
+                    synAck = handler.createSynAckPacket((int) dataStart,
+                            accepted, bufferSize);
+                    System.arraycopy(synAck, 0, outBuffer, 0, synAck.length);
+                    ackOut.limit(synAck.length);
+                }
+                // the SYN-ACK may have been lost
+                isAckDue = true;
+                continue;
+            }
+            long seqNo = PacketHandler.unwrap(view.getSeqNo(), ackNo);
+            int dataLength = view.getDataLength();
+
+            // a FIN is only taken in order, and the last data packet may be
+            // the FIN as well
+            if (view.isFin() && seqNo == ackNo) {
+                expected = view.getTrailer();
+            }
+
+            if (view.isParity()) {
+                if (parity != null && parity.addParity(seqNo, view)) {
+                    ackNo = takeRecovered(parity, ackNo, fileStart,
+                            fileChannel, reorderBuffer);
+                    digestedTo = digestWritten(streamDigest, fileChannel,
+                            digestedTo, ackNo, fileStart);
+                    isAckStale = true;
+                    isAckDue = true;
+                }
+                continue;
+            }
+
+            // the sender hears at once of anything but data in order, so
+            // that it can tell what is missing, and of data that fills a
+            // gap, or part of one
+            boolean isAckNow = seqNo != ackNo || !reorderBuffer.isEmpty();
+
+            // anything within the buffer goes straight to its place
+            if (dataLength > 0 && (seqNo == ackNo
+                    || reorderBuffer.isInWindow(seqNo, dataLength, ackNo))) {
+                boolean isRecovered = parity != null
+                        && (seqNo == ackNo || !reorderBuffer.contains(seqNo))
+                        && parity.addData(seqNo, view);
+                ByteBuffer payload = view.payloadBuffer();
+                if (streamDigest != null && seqNo == digestedTo) {
+                    streamDigest.update(payload);
+                    digestedTo += dataLength;
+                }
+                write(fileChannel, payload, seqNo - fileStart, metrics);
+                if (seqNo == ackNo) {
+                    ackNo = reorderBuffer.advance(ackNo + dataLength);
+                } else {
+                    reorderBuffer.mark(seqNo, dataLength, ackNo);
+                }
+                if (isRecovered) {
+                    ackNo = takeRecovered(parity, ackNo, fileStart,
+                            fileChannel, reorderBuffer);
+                } else if (parity != null) {
+                    parity.release(ackNo);
+                }
+                digestedTo = digestWritten(streamDigest, fileChannel,
+                        digestedTo, ackNo, fileStart);
+                if (journal != null) {
+                    journal.commit(ackNo - fileStart, fileChannel);
+                }
+                isAckStale = true;
+                isAckDue |= isAckNow || isRecovered || delayedAck.onData(now);
+            } else {
+                isAckDue = true;
+            }
+        }
+
+        // a delta is only acknowledged once the file is rebuilt
+        fileChannel.force(false);
+        byte[] actual = signatures != null
+                ? DeltaDecoder.apply(fileName, signatures, digest, expected)
+                : digest != null ? digest.digest() : null;
+        int fileCount = accepted.isBatch
+                && isDigestMatched(accepted, actual, expected)
+                ? BatchOutputStream.unpack(path, fileName) : 0;
+        if (journal != null) {
+            journal.close(true);
+        }
+        ByteBuffer finAck = ByteBuffer.wrap(getFinAck(handler, accepted,
+                dataStart, ackNo, bufferSize, actual));
+        try {
+            channel.write(finAck);
+        } catch (PortUnreachableException e) {
+            // left over from an ACK, and the FIN-ACK is lost; lingering
+            // answers the sender's next FIN
+        }
+        metrics.finish();
+        lingerAfterFin(channel, selector, inBuffer, view, finAck,
+                accepted.isFastOpenFin ? SYN_LINGER_MS : LINGER_MS);
+        if (!isDigestMatched(accepted, actual, expected)) {
+            throw new IOException(fileName + " failed the digest check");
+        }
+        System.out.println(getReceivedMessage(fileName, accepted.isBatch,
+                fileCount));
+        selector.close();
+        channel.close();
+        fileChannel.close();
+    }
+
+    /**
+     * Take a packet rebuilt from parity as if it had just arrived, writing
+     * it to its place in the file, then forget the groups that are behind
+     * @param parity
+     * @param ackNo the next expected offset
+     * @param fileStart offset of the first byte of the file
+     * @param fileChannel
+     * @param reorderBuffer
+     * @return the next expected offset after taking the packet
+     * @throws IOException
+     */
+    private long takeRecovered(ParityDecoder parity, long ackNo,
+            long fileStart, FileChannel fileChannel,
+            ReorderBuffer reorderBuffer) throws IOException {
+        long seqNo = parity.getRecoveredSeqNo();
+        int length = parity.getRecoveredLength();
+        if (seqNo == ackNo || (reorderBuffer.isInWindow(seqNo, length, ackNo)
+                && !reorderBuffer.contains(seqNo))) {
+            ByteBuffer payload =
+                    ByteBuffer.wrap(parity.getRecoveredData(), 0, length);
+            write(fileChannel, payload, seqNo - fileStart, metrics);
+            if (seqNo == ackNo) {
+                ackNo = reorderBuffer.advance(ackNo + length);
+            } else {
+                reorderBuffer.mark(seqNo, length, ackNo);
+            }
+        }
+        parity.release(ackNo);
+        return ackNo;
+    }
+
+    /**
+     * Write a payload to its place in the file, timing the write
+     * @param fileChannel
+     * @param payload
+     * @param position
+     * @param metrics
+     * @throws IOException
+     */
+    static void write(FileChannel fileChannel, ByteBuffer payload,
+            long position, TransferMetrics metrics) throws IOException {
+        int length = payload.remaining();
+        long startedAt = System.nanoTime();
+        while (payload.hasRemaining()) {
+            position += fileChannel.write(payload, position);
+        }
+        metrics.onWrite(length, System.nanoTime() - startedAt);
+    }
+
+    /**
+     * Digest the bytes up to ackNo that were written before the gap ahead
+     * of them was filled, reading them back from the file
+     * @param digest or null if the data is not digested
+     * @param fileChannel
+     * @param digestedTo offset of the first byte not yet digested
+     * @param ackNo the next expected offset
+     * @param fileStart offset of the first byte of the file
+     * @return the new offset of the first byte not yet digested
+     * @throws IOException
+     */
+    static long digestWritten(FileDigest digest, FileChannel fileChannel,
+            long digestedTo, long ackNo, long fileStart) throws IOException {
+        if (digest == null || digestedTo >= ackNo) {
+            return digestedTo;
+        }
+        digest.update(fileChannel, digestedTo - fileStart, ackNo - digestedTo);
+        return ackNo;
+    }
+
+    /**
+     * Check a received file against the digest in the sender's FIN
+     * @param accepted
+     * @param actual the receiver's digest
+     * @param expected
+     * @return true if no digest was agreed, or if both are there and equal
+     */
+    static boolean isDigestMatched(SynOptions accepted, byte[] actual,
+            byte[] expected) {
+        if (accepted.digestAlgorithm == SynOptions.DIGEST_NONE) {
+            return true;
+        }
+        return actual != null && Arrays.equals(actual, expected);
+    }
+
+    /**
+     * Take the first bytes of the file if the sender put them in the SYN.
+     * A delta or a resumed transfer starts from what the receiver already
+     * has, so never comes with any.
+     * @param offered
+     * @param accepted
+     * @return the bytes, or null if there are none to take
+     */
+    static byte[] acceptFastOpen(SynOptions offered, SynOptions accepted) {
+        if (!offered.isFastOpen || accepted.isDelta || accepted.isResumable) {
+            return null;
+        }
+        accepted.isFastOpen = true;
+        accepted.isFastOpenFin = offered.isFastOpenFin;
+        return offered.fastOpenData;
+    }
+
+    /**
+     * Get the reply that completes a transfer: the FIN-ACK, or if the SYN
+     * brought all of the file, the reply to the SYN with the digest in it
+     * @param handler
+     * @param accepted
+     * @param dataStart offset of the first data byte
+     * @param ackNo the offset following the last data byte
+     * @param window
+     * @param actual the receiver's digest, or null if none was agreed
+     * @return
+     */
+    static byte[] getFinAck(PacketHandler handler, SynOptions accepted,
+            long dataStart, long ackNo, int window, byte[] actual) {
+        if (!accepted.isFastOpenFin) {
+            return handler.createAckFinPacket((int) ackNo, actual);
+        }
+        if (actual != null) {
+            accepted.fastOpenDigest = actual;
+        }
+        return handler.createSynAckPacket((int) dataStart, accepted, window);
+    }
+
+    /**
+     * Get the line reporting that the port is bound, so that packets sent
+     * to it from now on are received
+     * @param portNo
+     * @return
+     */
+    static String getListeningMessage(int portNo) {
+        return "Listening on port " + portNo + ".";
+    }
+
+    /**
+     * Get the line reporting a completed transfer
+     * @param fileName
+     * @param isBatch true if fileName is the directory a batch went into
+     * @param fileCount number of files in the batch
+     * @return
+     */
+    static String getReceivedMessage(String fileName, boolean isBatch,
+            int fileCount) {
+        return isBatch ? fileCount + " files received into " + fileName + "."
+                : fileName + " received.";
+    }
+
+    /**
+     * Keep answering retransmitted FINs for a while on a non-blocking
+     * channel, in case the FIN-ACK was lost. A transfer the SYN completed
+     * answers retransmitted SYNs the same way.
+     * @param channel
+     * @param selector
+     * @param inBuffer
+     * @param view
+     * @param finAck
+     * @param lingerMs how long to wait for another packet
+     * @throws IOException
+     */
+    private void lingerAfterFin(DatagramChannel channel, Selector selector,
+            ByteBuffer inBuffer, PacketView view, ByteBuffer finAck,
+            int lingerMs) throws IOException {
+        try {
+            while (selector.select(lingerMs) > 0) {
+                selector.selectedKeys().clear();
+                inBuffer.clear();
+                while (channel.read(inBuffer) > 0) {
+                    inBuffer.flip();
+                    if (view.wrap(inBuffer).isGood()
+                            && (view.isFin() || view.isSyn())) {
+                        channel.write(finAck.rewind());
+                    }
+                    inBuffer.clear();
+                }
+            }
+        } catch (PortUnreachableException e) {
+            // the sender is gone, so it has no FIN left to resend
+        }
+    }
+
+    /**
+     * Pick the options offered in the SYN that this receiver supports, and
+     * switch to them. The buffer is sized for the packets agreed on.
+     * @param offered
+     * @return the options to confirm to the sender
+     */
+    private SynOptions acceptOptions(SynOptions offered) {
+        SynOptions accepted = new SynOptions();
+        accepted.isCrc32c = offered.isCrc32c;
+        handler.setCrc32c(accepted.isCrc32c);
+        if (accepted.isCrc32c) {
+            accepted.packetSize =
+                    acceptPacketSize(offered, maxPacketSize, bufferSize);
+        }
+        if (accepted.packetSize > 0) {
+            handler.setPacketSize(accepted.packetSize);
+        }
+        accepted.parityGroupSize = offered.parityGroupSize;
+        if (offered.compression == SynOptions.COMPRESSION_DEFLATE) {
+            accepted.compression = offered.compression;
+        }
+        if (FileDigest.isSupported(offered.digestAlgorithm)) {
+            accepted.digestAlgorithm = offered.digestAlgorithm;
+        }
+        accepted.isBatch = offered.isBatch;
+        bufferSize = getBufferSize(bufferSize, handler);
+        return accepted;
+    }
+
+    /**
+     * Open the journal of a file, or of one stripe of it, if the sender
+     * offered to resume, and answer with how much of it is already here
+     * @param offered
+     * @param accepted
+     * @param fileName
+     * @param stripeOffset
+     * @return null if the sender cannot resume
+     * @throws IOException
+     */
+    static CheckpointJournal openJournal(SynOptions offered,
+            SynOptions accepted, String fileName, long stripeOffset)
+            throws IOException {
+        if (!offered.isResumable || offered.resumeOffset >= 0
+                || accepted.isDelta || accepted.isBatch) {
+            return null;
+        }
+        // a stripe's file is sized up front, so only the journal can tell
+        // how much of it is there
+        Path path = Paths.get(fileName);
+        long available = Files.exists(path)
+                ? Files.size(path) - stripeOffset : 0;
+        CheckpointJournal journal = new CheckpointJournal(
+                CheckpointJournal.getPath(fileName, stripeOffset),
+                offered.resumeFileSize, offered.fingerprint, available);
+        accepted.isResumable = true;
+        accepted.resumeOffset = journal.getResumeOffset();
+        return journal;
+    }
+
+    /**
+     * Sign the receiver's copy of a file if the sender offered a delta
+     * against it, and answer with the first of the signatures
+     * @param offered
+     * @param accepted
+     * @param fileName
+     * @param isStripe true if the transfer is one stripe of the file, which
+     * rules out a delta
+     * @return null if there is no copy at least a block long
+     * @throws IOException
+     */
+    static BlockSignatures acceptDelta(SynOptions offered, SynOptions accepted,
+            String fileName, boolean isStripe) throws IOException {
+        if (!offered.isDelta || offered.deltaSignatures != null || isStripe
+                || offered.isBatch
+                || !Files.isRegularFile(Paths.get(fileName))) {
+            return null;
+        }
+        BlockSignatures signatures = BlockSignatures.compute(fileName);
+        if (signatures.blockCount == 0) {
+            return null;
+        }
+        answerDelta(offered, accepted, signatures);
+        return signatures;
+    }
+
+    /**
+     * Answer a SYN with the block signatures it asks for, as many as fit in
+     * a reply of MAX_PACKET_SIZE, which is all the sender reads at SYN
+     * @param offered
+     * @param accepted
+     * @param signatures
+     */
+    static void answerDelta(SynOptions offered, SynOptions accepted,
+            BlockSignatures signatures) {
+        accepted.isDelta = true;
+        accepted.deltaBlockLength = signatures.blockLength;
+        accepted.deltaBlockCount = signatures.blockCount;
+        accepted.deltaIndex = offered.deltaIndex;
+        accepted.deltaSignatures = new byte[0];
+        int count = (PacketHandler.MAX_PAYLOAD_LENGTH
+                - accepted.getEncodedLength())
+                / BlockSignatures.SIGNATURE_LENGTH;
+        accepted.deltaSignatures =
+                signatures.encode(offered.deltaIndex, count);
+    }
+
+    /**
+     * Set up decompression for a transfer if it was agreed on
+     * @param accepted
+     * @return null if the sender sends no compressed packets
+     */
+    private PacketInflater newInflater(SynOptions accepted) {
+        return accepted.compression == SynOptions.COMPRESSION_NONE
+                ? null : new PacketInflater(handler);
+    }
+
+    /**
+     * Set up FEC for a transfer if it was agreed on
+     * @param accepted
+     * @param dataStart offset of the first data byte
+     * @return null if the sender sends no parity
+     */
+    private ParityDecoder newParityDecoder(SynOptions accepted,
+            long dataStart) {
+        if (accepted.parityGroupSize <= 0) {
+            return null;
+        }
+        return new ParityDecoder(dataStart,
+                ParityGroup.getGroupLength(accepted.parityGroupSize, handler),
+                ParityGroup.getMaxDataLength(handler));
+    }
+
+    /**
+     * Settle on a packet size from the one offered at SYN, which needs the
+     * compact format to be accepted as well
+     * @param offered
+     * @param maxPacketSize the largest packet the receiver can take
+     * @param bufferSize buffer size given in bytes, or 0 for the default
+     * @return the packet size to confirm, or 0 to keep MAX_PACKET_SIZE
+     */
+    static int acceptPacketSize(SynOptions offered, int maxPacketSize,
+            int bufferSize) {
+        int packetSize = Math.min(offered.packetSize, maxPacketSize);
+        if (bufferSize > 0) {
+            packetSize = Math.min(packetSize, bufferSize / MIN_BUFFER_PACKETS);
+        }
+        return packetSize > PacketHandler.MAX_PACKET_SIZE ? packetSize : 0;
+    }
+
+    /**
+     * Get the buffer size of a transfer once its packet size is known
+     * @param bufferSize buffer size given in bytes, or 0 for the default
+     * @param handler
+     * @return
+     */
+    static int getBufferSize(int bufferSize, PacketHandler handler) {
+        return bufferSize > 0 ? bufferSize
+                : DEFAULT_BUFFER_PACKETS * handler.getMaxPayloadLength();
+    }
+
+    /**
+     * Keep answering retransmitted FINs for a while, in case the FIN-ACK
+     * was lost and the sender is still waiting for it. A transfer the SYN
+     * completed answers retransmitted SYNs the same way.
+     * @param socket
+     * @param pktIn
+     * @param finAck
+     * @param lingerMs how long to wait for another packet
+     * @throws IOException
+     */
+    private void lingerAfterFin(DatagramSocket socket, DatagramPacket pktIn,
+            DatagramPacket finAck, int lingerMs) throws IOException {
+        socket.setSoTimeout(lingerMs);
+        while (true) {
+            try {
+                socket.receive(pktIn);
+            } catch (SocketTimeoutException e) {
+                return;
+            }
+            if (handler.isGood(pktIn.getData())
+                    && (handler.isFin(pktIn.getData())
+                            || handler.isSyn(pktIn.getData()))) {
+                socket.send(finAck);
             }
-            packet = pktIn.getData();
-            data = handler.getPayload(packet);
-            bos.write(data);
         }
-        socket.close();
-        bos.close();
     }
 }
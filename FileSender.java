@@ -3,37 +3,405 @@
 import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
 
 class FileSender {
 
+    /**
+     * How outgoing data packets are scheduled once the connection is set up
+     */
+    enum Mode {
+        STOP_AND_WAIT, GO_BACK_N, SELECTIVE_REPEAT
+    }
+
+    /**
+     * Which congestion control limits the pipelined modes
+     */
+    enum Congestion {
+        NONE, RENO, CUBIC
+    }
+
+    public final static int DEFAULT_WINDOW_SIZE = 32;
+
+    // duplicate ACKs that trigger a fast retransmit
+    private final static int DUP_ACK_THRESHOLD = 3;
+
+    // packet sizes probed below the negotiated one: jumbo and plain
+    // Ethernet frames less the IP and UDP headers
+    private final static int[] PROBE_PACKET_SIZES = { 9000 - 28, 1500 - 28 };
+    private final static int PROBE_ATTEMPTS = 3;
+
     String srcFileName, hostname, destFileName;
     int portNo;
     PacketHandler handler;
+    Mode mode = Mode.STOP_AND_WAIT;
+    int windowSize = DEFAULT_WINDOW_SIZE;
+    Congestion congestion = Congestion.NONE;
+    boolean isCrc32cOffered = true;
+    boolean isNio;
+    int stripeCount = 1;
+
+    // larger packets must be agreed with the receiver, and are only worth
+    // it where nothing on the path caps them at 1000 bytes like UnreliNET
+    int packetSize = PacketHandler.MAX_PACKET_SIZE;
+    boolean isPacketSizeProbed;
+
+    // data packets per FEC parity packet, 0 for none
+    int parityGroupSize;
+    long parityPacketsSent;
+
+    // the group being built once the receiver agreed to parity, and the
+    // sequence number it ends at, which no packet may cross
+    private ParityGroup parity;
+    private int parityGroupLength;
+    private int parityEnd;
+    private byte[] parityBuffer;
+    private DatagramPacket parityPacket;
+
+    // payloads are deflated once the receiver agreed to it
+    boolean isCompressionOffered;
+    private boolean isCompressing;
+    long rawBytesSent;
+    long compressedBytesSent;
+
+    // a receiver that kept a journal of an earlier, interrupted transfer of
+    // the same file can tell us to skip what it already has
+    boolean isResumeOffered;
+    long bytesSkipped;
+
+    // a receiver that has an older copy of the file can have just the
+    // difference sent, which is worked out into a file of its own
+    boolean isDeltaOffered;
+    private Path deltaFile;
+    long deltaLength = -1;
+
+    // the file is digested as it is read, and the digest sent in the FIN
+    // for the receiver to check; a delta is digested as it is worked out,
+    // over the whole file it rebuilds, so the data read is not
+    int digestAlgorithm = SynOptions.DIGEST_CRC32C;
+    private FileDigest digest;
+    private FileDigest readDigest;
+
+    // a directory is sent as a batch, its manifest and then its files back
+    // to back, through the one connection
+    private BatchManifest batch;
+
+    // the first bytes can ride in the SYN, and once the receiver took them
+    // the last data packet doubles as the FIN, so a small file takes about
+    // one round trip
+    boolean isFastOpenOffered;
+    long fastOpenBytes;
+    private boolean isFinPiggybacked;
+
+    // set once the receiver acknowledged the FIN, with its digest
+    private boolean isFinAcked;
+    private byte[] peerDigest;
+    private byte[] fileDigest;
+
+    RttEstimator rttEstimator = new RttEstimator();
+
+    // the sequence number of the SYN, random unless set, e.g. to one just
+    // short of a wraparound
+    Integer initialSeqNo;
+
+    // shared by the stripes of a transfer
+    TransferMetrics metrics = new TransferMetrics("sender");
+    TransferMetrics.Export export = TransferMetrics.Export.NONE;
+    int reportInterval = TransferMetrics.DEFAULT_REPORT_INTERVAL_SECS;
+
+    // bytes the receiver has room for past its ACK number, as advertised
+    int peerWindow = Integer.MAX_VALUE;
+
+    // the byte range of the file this flow sends, when it is one stripe
+    boolean isStripe;
+    long rangeStart;
+    long rangeEnd = Long.MAX_VALUE;
+
+    // of the whole file, to resume from, worked out once for all the
+    // stripes since it reads every byte; -1 until then
+    long fingerprint = -1;
+
+    // on the first stripe only, the length of every stripe, once it is
+    // worked out from the packet size agreed
+    private CompletableFuture<Long> stripeLength;
 
     public static void main(String[] args) {
 
-        // check if the number of command line argument is 3
-        if (args.length != 3) {
-            System.out.println("Usage: java FileSender <path/filename> "
-                    + "<rcvPort> <rcvFileName>");
-            System.exit(1);
+        // check if the number of command line argument is at least 3
+        if (args.length < 3) {
+            printUsageAndExit();
         }
 
         FileSender sender = new FileSender(args[0], "localhost", args[1], args[2]);
 
+        // optional arguments come in "-flag value" pairs
+        for (int i = 3; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                printUsageAndExit();
+            }
+            switch (args[i]) {
+            case "-m":
+                sender.mode = parseMode(args[i + 1]);
+                break;
+            case "-w":
+                sender.windowSize = Integer.parseInt(args[i + 1]);
+                break;
+            case "-c":
+                sender.isCrc32cOffered = parseChecksum(args[i + 1]);
+                break;
+            case "-t":
+                sender.isNio = parseTransport(args[i + 1]);
+                break;
+            case "-cc":
+                sender.congestion = parseCongestion(args[i + 1]);
+                break;
+            case "-k":
+                sender.stripeCount = Integer.parseInt(args[i + 1]);
+                break;
+            case "-z":
+                sender.isCompressionOffered = parseCompression(args[i + 1]);
+                break;
+            case "-r":
+                sender.isResumeOffered = parseSwitch(args[i + 1]);
+                break;
+            case "-d":
+                sender.isDeltaOffered = parseSwitch(args[i + 1]);
+                break;
+            case "-e":
+                sender.digestAlgorithm = parseDigest(args[i + 1]);
+                break;
+            case "-o":
+                sender.isFastOpenOffered = parseSwitch(args[i + 1]);
+                break;
+            case "-f":
+                sender.parityGroupSize = Integer.parseInt(args[i + 1]);
+                break;
+            case "-x":
+                sender.export = parseExport(args[i + 1]);
+                break;
+            case "-i":
+                sender.reportInterval = Integer.parseInt(args[i + 1]);
+                break;
+            case "-p":
+                if (args[i + 1].equals("auto")) {
+                    sender.packetSize = PacketHandler.MAX_DATAGRAM_SIZE;
+                    sender.isPacketSizeProbed = true;
+                } else {
+                    sender.packetSize = Integer.parseInt(args[i + 1]);
+                }
+                break;
+            default:
+                printUsageAndExit();
+            }
+        }
+        if (sender.windowSize < 1 || sender.stripeCount < 1
+                || sender.parityGroupSize < 0 || sender.reportInterval < 1
+                || sender.packetSize < PacketHandler.MAX_PACKET_SIZE
+                || sender.packetSize > PacketHandler.MAX_DATAGRAM_SIZE) {
+            printUsageAndExit();
+        }
+
         try {
-            sender.send();
+            sender.metrics.start(sender.export, sender.reportInterval);
+            if (sender.stripeCount > 1) {
+                sender.sendStriped();
+            } else {
+                sender.send();
+            }
+            sender.metrics.finish();
             System.out.println(args[0] + " is successfully sent as " + args[2]);
+            System.out.println(sender.metrics.packetsSent.sum()
+                    + " packets sent, " + sender.metrics.packetsResent.sum()
+                    + " of them resent"
+                    + (sender.parityPacketsSent > 0 ? ", "
+                            + sender.parityPacketsSent + " parity packets"
+                            : "")
+                    + (sender.rawBytesSent > 0 ? String.format(
+                            ", payload compressed to %.1f%%",
+                            100.0 * sender.compressedBytesSent
+                                    / sender.rawBytesSent)
+                            : "")
+                    + (sender.bytesSkipped > 0 ? ", resumed after "
+                            + sender.bytesSkipped + " bytes" : "")
+                    + (sender.deltaLength >= 0 ? ", sent as a delta of "
+                            + sender.deltaLength + " bytes" : "")
+                    + (sender.batch != null ? ", "
+                            + sender.batch.getFileCount()
+                            + " files in one batch" : "")
+                    + (sender.fastOpenBytes > 0 ? ", "
+                            + sender.fastOpenBytes + " bytes sent with the SYN"
+                            : ""));
         } catch (IOException | InterruptedException e) {
             e.printStackTrace();
             System.exit(1);
         }
     }
 
+    private static void printUsageAndExit() {
+        System.out.println("Usage: java FileSender <path/filename|dir> "
+                + "<rcvPort> <rcvFileName> [-m saw|gbn|sr] [-w windowSize] "
+                + "[-c crc32|crc32c] [-t io|nio] [-k stripes] "
+                + "[-cc none|reno|cubic] [-p packetSize|auto] "
+                + "[-f parityGroupSize] [-z none|deflate] [-r on|off] "
+                + "[-d on|off] [-e none|crc32c|sha256] [-o on|off] "
+                + "[-x none|text|jmx] [-i reportSecs]");
+        System.exit(1);
+    }
+
+    private static Mode parseMode(String arg) {
+        switch (arg) {
+        case "saw":
+            return Mode.STOP_AND_WAIT;
+        case "gbn":
+            return Mode.GO_BACK_N;
+        case "sr":
+            return Mode.SELECTIVE_REPEAT;
+        default:
+            printUsageAndExit();
+            return null;
+        }
+    }
+
+    private static Congestion parseCongestion(String arg) {
+        switch (arg) {
+        case "none":
+            return Congestion.NONE;
+        case "reno":
+            return Congestion.RENO;
+        case "cubic":
+            return Congestion.CUBIC;
+        default:
+            printUsageAndExit();
+            return null;
+        }
+    }
+
+    /**
+     * @param arg
+     * @return true if CRC32C should be offered to the receiver
+     */
+    private static boolean parseChecksum(String arg) {
+        switch (arg) {
+        case "crc32":
+            return false;
+        case "crc32c":
+            return true;
+        default:
+            printUsageAndExit();
+            return false;
+        }
+    }
+
+    /**
+     * @param arg
+     * @return true if deflate should be offered to the receiver
+     */
+    private static boolean parseCompression(String arg) {
+        switch (arg) {
+        case "none":
+            return false;
+        case "deflate":
+            return true;
+        default:
+            printUsageAndExit();
+            return false;
+        }
+    }
+
+    /**
+     * @param arg
+     * @return the algorithm to digest the file with
+     */
+    private static int parseDigest(String arg) {
+        switch (arg) {
+        case "none":
+            return SynOptions.DIGEST_NONE;
+        case "crc32c":
+            return SynOptions.DIGEST_CRC32C;
+        case "sha256":
+            return SynOptions.DIGEST_SHA256;
+        default:
+            printUsageAndExit();
+            return SynOptions.DIGEST_NONE;
+        }
+    }
+
+    /**
+     * @param arg
+     * @return true if the option, e.g. resuming an interrupted transfer,
+     * should be offered
+     */
+    private static boolean parseSwitch(String arg) {
+        switch (arg) {
+        case "off":
+            return false;
+        case "on":
+            return true;
+        default:
+            printUsageAndExit();
+            return false;
+        }
+    }
+
+    /**
+     * @param arg
+     * @return how to report the transfer's metrics
+     */
+    static TransferMetrics.Export parseExport(String arg) {
+        switch (arg) {
+        case "none":
+            return TransferMetrics.Export.NONE;
+        case "text":
+            return TransferMetrics.Export.TEXT;
+        case "jmx":
+            return TransferMetrics.Export.JMX;
+        default:
+            printUsageAndExit();
+            return null;
+        }
+    }
+
+    /**
+     * @param arg
+     * @return true for the NIO transport
+     */
+    static boolean parseTransport(String arg) {
+        switch (arg) {
+        case "io":
+            return false;
+        case "nio":
+            return true;
+        default:
+            printUsageAndExit();
+            return false;
+        }
+    }
+
     public FileSender(String fileToOpen, String host, String port,
             String rcvFileName) {
         srcFileName = fileToOpen;
@@ -45,54 +413,1033 @@ class FileSender {
 
     void send() throws IOException, InterruptedException {
         InetAddress rcvAddress = InetAddress.getByName(hostname);
+        Path srcPath = Paths.get(srcFileName);
+        if (Files.isDirectory(srcPath)) {
+            batch = BatchManifest.scan(srcPath);
+        }
+        // a batch is read file by file, so there is nothing to map
+        if (isNio && batch == null) {
+            sendNio(rcvAddress);
+            return;
+        }
         DatagramSocket socket = new DatagramSocket();
-        socket.setSoTimeout(100);
+        int seqNo = setupConnection(rcvAddress, socket, destFileName);
+
+        InputStream in;
+        if (batch != null) {
+            in = new BatchInputStream(srcPath, batch);
+            // past whatever went with the SYN
+            in.skipNBytes(rangeStart);
+            rangeEnd = batch.getStreamLength();
+        } else {
+            // which may have settled on sending a delta instead of the file
+            FileInputStream fis = new FileInputStream(getSourceFileName());
+            fis.getChannel().position(rangeStart);
+            rangeEnd = Math.min(rangeEnd, fis.getChannel().size());
+            in = fis;
+        }
+        BufferedInputStream bis = new BufferedInputStream(in);
+        if (isPacketSizeProbed) {
+            seqNo += probePacketSize(rcvAddress, socket, bis, null, seqNo);
+        }
+        layOutStripes();
+
+        // compressed packets come out of a pipeline, which only the
+        // pipelined sender takes them from
+        if (mode == Mode.STOP_AND_WAIT && !isCompressing) {
+            seqNo = sendStopAndWait(rcvAddress, socket, bis, seqNo);
+        } else {
+            seqNo = sendPipelined(rcvAddress, socket, bis, null, seqNo);
+        }
+        closeConnection(rcvAddress, socket, seqNo);
+        socket.close();
+        bis.close();
+        if (deltaFile != null) {
+            Files.delete(deltaFile);
+        }
+    }
+
+    /**
+     * Split the file into stripeCount byte ranges and send each one as a
+     * separate flow with its own socket and sequence space. The receiver
+     * must be a ReceiverServer, which writes every stripe to its place in
+     * the output file. The first stripe sets up its connection alone, so
+     * that the stripes can be laid out in packets of the size it agreed,
+     * and the others follow. Returns once every stripe has been FIN-acked.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    void sendStriped() throws IOException, InterruptedException {
+        // a batch goes through one connection, and a file that fits in a
+        // packet is not worth striping
+        if (Files.isDirectory(Paths.get(srcFileName))
+                || Files.size(Paths.get(srcFileName))
+                        <= PacketHandler.MAX_PAYLOAD_LENGTH) {
+            send();
+            return;
+        }
+        long fileSize = Files.size(Paths.get(srcFileName));
+        if (isResumeOffered) {
+            fingerprint = CheckpointJournal.fingerprint(srcFileName);
+        }
+
+        FileSender first = createStripe(0, fileSize);
+        first.stripeCount = stripeCount;
+        first.stripeLength = new CompletableFuture<Long>();
+        List<FileSender> stripes = new ArrayList<FileSender>();
+        stripes.add(first);
+
+        ExecutorService pool = Executors.newCachedThreadPool();
+        try {
+            // take results as they complete, so that one failed stripe is
+            // reported without waiting for the others
+            CompletionService<Void> results =
+                    new ExecutorCompletionService<Void>(pool);
+            results.submit(() -> {
+                try {
+                    first.send();
+                } finally {
+                    // no length if it failed before laying the stripes out
+                    first.stripeLength.complete(0L);
+                }
+                return null;
+            });
+            long stripeLength = first.stripeLength.get();
+            for (long start = stripeLength; stripeLength > 0
+                    && start < fileSize; start += stripeLength) {
+                FileSender stripe = createStripe(start,
+                        Math.min(fileSize, start + stripeLength));
+                stripes.add(stripe);
+                results.submit(() -> {
+                    stripe.send();
+                    return null;
+                });
+            }
+            for (int i = 0; i < stripes.size(); i++) {
+                results.take().get();
+            }
+            for (FileSender stripe : stripes) {
+                parityPacketsSent += stripe.parityPacketsSent;
+                rawBytesSent += stripe.rawBytesSent;
+                compressedBytesSent += stripe.compressedBytesSent;
+                bytesSkipped += stripe.bytesSkipped;
+                fastOpenBytes += stripe.fastOpenBytes;
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 
-        byte[] dataBuffer = new byte[PacketHandler.MAX_PAYLOAD_LENGTH];
+    /**
+     * Create the sender of one stripe of the file, with the options of this
+     * one
+     * @param start
+     * @param end
+     * @return
+     */
+    private FileSender createStripe(long start, long end) {
+        FileSender stripe = new FileSender(srcFileName, hostname,
+                String.valueOf(portNo), destFileName);
+        stripe.mode = mode;
+        stripe.windowSize = windowSize;
+        stripe.isCrc32cOffered = isCrc32cOffered;
+        stripe.isNio = isNio;
+        stripe.congestion = congestion;
+        stripe.packetSize = packetSize;
+        stripe.isPacketSizeProbed = isPacketSizeProbed;
+        stripe.parityGroupSize = parityGroupSize;
+        stripe.isCompressionOffered = isCompressionOffered;
+        stripe.isResumeOffered = isResumeOffered;
+        stripe.fingerprint = fingerprint;
+        stripe.digestAlgorithm = digestAlgorithm;
+        stripe.isFastOpenOffered = isFastOpenOffered;
+        stripe.metrics = metrics;
+        stripe.isStripe = true;
+        stripe.rangeStart = start;
+        stripe.rangeEnd = end;
+        return stripe;
+    }
 
-        FileInputStream fis = new FileInputStream(srcFileName);
-        BufferedInputStream bis = new BufferedInputStream(fis);
+    /**
+     * On the first stripe, once the packet size is agreed, work out how
+     * long each stripe is, end this one there and hand the length on to
+     * sendStriped for the others. Nothing to do on any other sender.
+     */
+    private void layOutStripes() {
+        if (stripeLength == null) {
+            return;
+        }
+        // keep stripes a whole number of packets long, and this one past
+        // whatever it has sent or resumed from already
+        int payloadLength = handler.getMaxPayloadLength();
+        long packets = (rangeEnd + payloadLength - 1) / payloadLength;
+        long length = Math.max(rangeStart,
+                (packets + stripeCount - 1) / stripeCount * payloadLength);
+        rangeEnd = Math.min(rangeEnd, length);
+        stripeLength.complete(length);
+    }
+
+    /**
+     * Send the file over a connected DatagramChannel, gathering each packet
+     * from a small header buffer and a slice of the memory-mapped file so
+     * that the payload is never copied on the Java heap. ACKs are still read
+     * through the channel's socket adaptor.
+     * @param rcvAddress
+     * @throws IOException
+     */
+    private void sendNio(InetAddress rcvAddress) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.connect(new InetSocketAddress(rcvAddress, portNo));
+        DatagramSocket socket = channel.socket();
 
         int seqNo = setupConnection(rcvAddress, socket, destFileName);
-        int bytesRead;
+        MappedFile mappedFile = new MappedFile(getSourceFileName());
+        rangeEnd = Math.min(rangeEnd, mappedFile.size());
+        if (isPacketSizeProbed) {
+            seqNo += probePacketSize(rcvAddress, socket, null, mappedFile,
+                    seqNo);
+        }
+        layOutStripes();
+        seqNo = sendPipelined(rcvAddress, socket, null, mappedFile, seqNo);
+        closeConnection(rcvAddress, socket, seqNo);
+        channel.close();
+        mappedFile.close();
+        if (deltaFile != null) {
+            Files.delete(deltaFile);
+        }
+    }
 
-        while ((bytesRead = bis.read(dataBuffer)) > 0) {
-            byte[] outBuffer =
-                    handler.createOutgoingPacket(dataBuffer, bytesRead, seqNo);
-            DatagramPacket pktOut =
-                    new DatagramPacket(outBuffer, outBuffer.length, rcvAddress, portNo);
+    /**
+     * Get the file to read from once the connection is set up
+     * @return the delta if the receiver asked for one, otherwise the file
+     */
+    private String getSourceFileName() {
+        return deltaFile != null ? deltaFile.toString() : srcFileName;
+    }
 
-            byte[] inBuffer = new byte[PacketHandler.MAX_PACKET_SIZE];
-            DatagramPacket pktIn = new DatagramPacket(inBuffer, inBuffer.length);
+    /**
+     * Send the file one packet at a time, waiting for each ACK
+     * @param rcvAddress
+     * @param socket
+     * @param bis
+     * @param seqNo sequence number of the first data byte
+     * @return the sequence number following the last data byte
+     * @throws IOException
+     */
+    private int sendStopAndWait(InetAddress rcvAddress, DatagramSocket socket,
+            BufferedInputStream bis, int seqNo) throws IOException {
+        byte[] outBuffer = new byte[handler.getPacketSize()];
+        DatagramPacket pktOut =
+                new DatagramPacket(outBuffer, outBuffer.length, rcvAddress, portNo);
+
+        byte[] inBuffer = new byte[PacketHandler.MAX_PACKET_SIZE];
+        DatagramPacket pktIn = new DatagramPacket(inBuffer, inBuffer.length);
 
+        long fileOffset = rangeStart;
+        int bytesRead;
+        while ((bytesRead = bis.read(outBuffer, handler.getHeaderLength(),
+                getMaxPayloadLength(fileOffset, seqNo))) > 0) {
+            if (readDigest != null) {
+                readDigest.update(outBuffer, handler.getHeaderLength(),
+                        bytesRead);
+            }
+            pktOut.setLength(
+                    encodeData(outBuffer, bytesRead, seqNo, fileOffset));
+
+            metrics.bytesSent.add(bytesRead);
             seqNo += bytesRead;
+            fileOffset += bytesRead;
             sendUntilReplied(socket, pktOut, pktIn, seqNo);
+            if (handler.isFin(inBuffer)) {
+                isFinAcked = true;
+                peerDigest = handler.getPayload(inBuffer);
+            }
         }
-        closeConnection(rcvAddress, socket, seqNo);
-        socket.close();
-        bis.close();
+        return seqNo;
     }
 
-    private void closeConnection(InetAddress rcvAddress, DatagramSocket socket,
-            int seqNo) throws IOException {
-        byte[] outBuffer =
-                handler.createFinPacket(seqNo);
+    /**
+     * Send the file keeping up to windowSize packets in flight. Go-Back-N
+     * resends every outstanding packet when the oldest one times out, while
+     * Selective Repeat only resends the packets whose own timer expired.
+     * Stop-and-wait is the same with a window of one.
+     *
+     * A packet is also resent as soon as three duplicate ACKs show it was
+     * lost. Fast recovery then resends each further hole that a partial ACK
+     * reveals, NewReno style, until everything sent before the loss has been
+     * acknowledged. With congestion control, the packets in flight are
+     * further limited to its window, and packets given up on by a timeout
+     * are resent only as that window allows.
+     * @param rcvAddress
+     * @param socket
+     * @param bis the file as a stream, or null if mappedFile is given
+     * @param mappedFile the file mapped into memory, or null
+     * @param seqNo sequence number of the first data byte
+     * @return the sequence number following the last data byte
+     * @throws IOException
+     */
+    private int sendPipelined(InetAddress rcvAddress, DatagramSocket socket,
+            BufferedInputStream bis, MappedFile mappedFile, int seqNo)
+            throws IOException {
+        int windowSize = mode == Mode.STOP_AND_WAIT ? 1 : this.windowSize;
+        SendWindow window = new SendWindow(windowSize, handler.getPacketSize(),
+                rcvAddress, portNo);
+        CongestionControl congestionControl =
+                mode == Mode.STOP_AND_WAIT ? null : newCongestionControl();
+        long fileOffset = rangeStart;
+        // the longest block is that of a packet not cut short by a group
+        // boundary or the end of the range
+        CompressingReader reader = !isCompressing ? null
+                : new CompressingReader(bis, mappedFile, fileOffset, rangeEnd,
+                        parity == null ? handler.getMaxPayloadLength()
+                                : handler.getMaxPayloadLength()
+                                        - ParityGroup.HEADER_LENGTH,
+                        fileOffset + (parity == null ? 0 : parityEnd - seqNo),
+                        parityGroupLength);
+
+        byte[] inBuffer = new byte[PacketHandler.MAX_PACKET_SIZE];
+        DatagramPacket pktIn = new DatagramPacket(inBuffer, inBuffer.length);
+        PacketView reply = new PacketView(handler).wrap(inBuffer);
+        int[] sackBlocks = new int[2 * PacketHandler.MAX_SACK_BLOCKS];
+
+        int lastAckNo = seqNo;
+        int dupAckCount = 0;
+
+        // a lost packet may still be rebuilt from its group's parity, which
+        // follows up to a group of packets behind it, so wait for that
+        // before resending. This counts agreed group sizes, even once a
+        // probe has lowered the packet size and groups hold more packets.
+        int dupAckThreshold = parity == null ? DUP_ACK_THRESHOLD
+                : DUP_ACK_THRESHOLD + parityGroupSize;
+
+        boolean isRecovering = false;
+        int recoveryPoint = 0;
+
+        // while the receiver's window is closed, a packet is sent anyway
+        // every timeout to learn when it opens again
+        boolean isProbeDue = false;
+
+        boolean isEof = false;
+        while (!isEof || !window.isEmpty()) {
+            // resend the packets a timeout gave up on, as the window allows
+            SendWindow.Segment lost;
+            while (congestionControl != null && window.getInFlight()
+                    < congestionControl.getWindow()
+                    && (lost = window.firstLost()) != null) {
+                window.markLost(lost, false);
+                transmit(lost, socket);
+            }
+
+            // fill up the window with new packets
+            while (!isEof && window.size() < windowSize
+                    && (congestionControl == null || window.getInFlight()
+                            < congestionControl.getWindow())) {
+                int maxLength = getMaxPayloadLength(fileOffset, seqNo);
+                if (maxLength > 0 && !isProbeDue
+                        && seqNo - lastAckNo > peerWindow - maxLength) {
+                    break;
+                }
+                isProbeDue = false;
+                SendWindow.Segment segment = window.nextFree();
+                int bytesRead = maxLength <= 0 ? -1 : reader != null
+                        ? fillSegment(segment, reader, fileOffset, seqNo)
+                        : mappedFile != null
+                        ? fillSegment(segment, mappedFile, fileOffset, seqNo,
+                                maxLength)
+                        : fillSegment(segment, bis, fileOffset, seqNo,
+                                maxLength);
+                if (bytesRead <= 0) {
+                    isEof = true;
+                    // the last group is short, but still gets its parity
+                    if (parity != null && parity.getCount() > 0) {
+                        sendParity(socket);
+                    }
+                    break;
+                }
+                window.append();
+                transmit(segment, socket);
+                seqNo += bytesRead;
+                fileOffset += bytesRead;
+                if (parity != null && seqNo == parityEnd) {
+                    sendParity(socket);
+                }
+            }
+            if (window.isEmpty() && isEof) {
+                break;
+            }
+
+            // the wait is rounded up, or a timer under a millisecond off
+            // would either fire early or, as 0, block forever
+            long now = System.nanoTime();
+            long waitNanos = window.isEmpty() ? rttEstimator.getRtoNanos()
+                    : nextDeadline(window) - now;
+            boolean isTimedOut = waitNanos <= 0;
+            if (!isTimedOut) {
+                socket.setSoTimeout(Math.min(rttEstimator.getRtoMillis(),
+                        toWaitMillis(waitNanos)));
+                try {
+                    socket.receive(pktIn);
+                    metrics.packetsReceived.increment();
+                } catch (SocketTimeoutException e) {
+                    isTimedOut = true;
+                    now = System.nanoTime();
+                } catch (PortUnreachableException e) {
+                    // the connected channel of the NIO transport hears of a
+                    // receiver that is not up yet, which is just another
+                    // lost packet, so wait on for the timer
+                    continue;
+                }
+            }
+            if (isTimedOut && window.isEmpty()) {
+                isProbeDue = true;
+                continue;
+            }
+            if (isTimedOut) {
+                int inFlight = window.getInFlight();
+                boolean isBaseExpired = congestionControl == null
+                        ? retransmitExpired(socket, window, now)
+                        : markExpiredLost(window, now);
+                if (isBaseExpired) {
+                    isRecovering = false;
+                    dupAckCount = 0;
+                    if (congestionControl != null) {
+                        congestionControl.onTimeout(inFlight, now);
+                    }
+                }
+                continue;
+            }
+
+            if (!reply.isGood()) {
+                metrics.packetsCorrupted.increment();
+                continue;
+            }
+            if (!reply.isAck()) {
+                continue;
+            }
+            metrics.acksReceived.increment();
+
+            // ACKs are cumulative, so everything below ackNo has arrived
+            int ackNo = reply.getAckNo();
+            // and a FIN-ACK took the last data packet as the FIN as well
+            if (reply.isFin()) {
+                isFinAcked = true;
+                peerDigest = handler.getPayload(inBuffer);
+            }
+            boolean isWindowUpdate = false;
+            if (PacketHandler.compareSeqNo(ackNo, lastAckNo) >= 0
+                    && reply.getWindow() >= 0) {
+                isWindowUpdate = reply.getWindow() != peerWindow;
+                peerWindow = reply.getWindow();
+            }
+            int deliveredCount = 0;
+            SendWindow.Segment lastAcked = null;
+            boolean isAckOfResent = false;
+            while (!window.isEmpty() && PacketHandler.compareSeqNo(ackNo,
+                    window.first().getEnd()) >= 0) {
+                lastAcked = window.removeFirst();
+                if (!lastAcked.isSacked) {
+                    deliveredCount++;
+                }
+                isAckOfResent |= lastAcked.transmitCount > 1;
+            }
+            // Karn's rule: a resent packet's ACK is ambiguous, so skip it,
+            // along with the packets after it that the same ACK covers,
+            // since they may have waited at the receiver for it, and keep
+            // the backed-off timeout until a sample. A SACKed packet arrived
+            // long before this ACK, so skip it too.
+            if (lastAcked != null && !isAckOfResent
+                    && !lastAcked.isSacked) {
+                addRttSample(System.nanoTime() - lastAcked.sentAt);
+            }
+
+            // the receiver holds these out of order, so never resend them
+            if (mode == Mode.SELECTIVE_REPEAT && !reply.isFin()) {
+                int blockCount = handler.getSackBlocks(inBuffer, sackBlocks);
+                for (int i = 0; i < blockCount; i++) {
+                    deliveredCount += markSacked(window, sackBlocks[2 * i],
+                            sackBlocks[2 * i + 1]);
+                }
+            }
+
+            if (PacketHandler.compareSeqNo(ackNo, lastAckNo) < 0) {
+                continue;
+            }
+            if (mode == Mode.STOP_AND_WAIT) {
+                lastAckNo = ackNo;
+                continue;
+            }
+            now = System.nanoTime();
+            if (ackNo == lastAckNo) {
+                // a later packet arrived ahead of a gap at ackNo. With SACK
+                // we can tell this from the ACK of a resent duplicate.
+                boolean isDuplicate = !isWindowUpdate
+                        && (mode == Mode.GO_BACK_N || deliveredCount > 0);
+                if (isDuplicate && !window.isEmpty() && !isRecovering
+                        && ++dupAckCount == dupAckThreshold) {
+                    if (congestionControl != null) {
+                        congestionControl.onFastRetransmit(
+                                window.getInFlight(), now);
+                    }
+                    isRecovering = true;
+                    recoveryPoint = seqNo;
+                    window.markLost(window.first(), false);
+                    transmit(window.first(), socket);
+                }
+            } else {
+                lastAckNo = ackNo;
+                dupAckCount = 0;
+                if (isRecovering
+                        && PacketHandler.compareSeqNo(ackNo, recoveryPoint)
+                                >= 0) {
+                    if (congestionControl != null) {
+                        congestionControl.onRecoveryEnd();
+                    }
+                    isRecovering = false;
+                } else if (isRecovering && !window.isEmpty()
+                        && window.first().transmitCount == 1) {
+                    // a partial ACK stops at the next lost packet, unless it
+                    // was resent already and is up to its timer again
+                    window.markLost(window.first(), false);
+                    transmit(window.first(), socket);
+                }
+            }
+            if (congestionControl != null && !isRecovering
+                    && deliveredCount > 0) {
+                congestionControl.onAck(deliveredCount, now);
+            }
+        }
+        if (reader != null) {
+            reader.close();
+        }
+        return seqNo;
+    }
+
+    private CongestionControl newCongestionControl() {
+        switch (congestion) {
+        case RENO:
+            return new RenoCongestionControl();
+        case CUBIC:
+            return new CubicCongestionControl();
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Send a data packet, counting it for the transfer's statistics
+     * @param segment
+     * @param socket
+     * @throws IOException
+     */
+    private void transmit(SendWindow.Segment segment, DatagramSocket socket)
+            throws IOException {
+        if (segment.transmitCount == 0) {
+            metrics.bytesSent.add(segment.length);
+        }
+        metrics.onPacketSent(segment.transmitCount > 0);
+        segment.transmit(socket, rttEstimator.getRtoNanos());
+    }
+
+    /**
+     * Read the next packet's payload from the stream straight into the
+     * segment's packet buffer and encode the header around it
+     * @param segment
+     * @param bis
+     * @param fileOffset
+     * @param seqNo
+     * @param maxLength
+     * @return the number of payload bytes, or -1 at the end of the file
+     * @throws IOException
+     */
+    private int fillSegment(SendWindow.Segment segment,
+            BufferedInputStream bis, long fileOffset, int seqNo,
+            int maxLength) throws IOException {
+        int bytesRead = bis.read(segment.packet,
+                handler.getHeaderLength(), maxLength);
+        if (bytesRead > 0) {
+            if (parity != null) {
+                parity.add(seqNo - (int) parity.start, segment.packet,
+                        handler.getHeaderLength(), bytesRead);
+            }
+            if (readDigest != null) {
+                readDigest.update(segment.packet, handler.getHeaderLength(),
+                        bytesRead);
+            }
+            int packetLength = encodeData(segment.packet, bytesRead, seqNo,
+                    fileOffset);
+            segment.reset(seqNo, bytesRead, packetLength);
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Point the segment at the next slice of the mapped file and encode the
+     * header and trailer to go around it. A packet never spans two mapped
+     * regions. The last one is copied instead when it carries the FIN,
+     * since the digest follows its data.
+     * @param segment
+     * @param mappedFile
+     * @param fileOffset
+     * @param seqNo
+     * @param maxLength
+     * @return the number of payload bytes
+     * @throws IOException
+     */
+    private int fillSegment(SendWindow.Segment segment, MappedFile mappedFile,
+            long fileOffset, int seqNo, int maxLength) throws IOException {
+        ByteBuffer region = mappedFile.regionFor(fileOffset);
+        int start = (int) (fileOffset - mappedFile.getRegionStart());
+        int length = Math.min(maxLength, region.capacity() - start);
+        if (parity != null) {
+            parity.add(seqNo - (int) parity.start, region, start, length);
+        }
+        if (readDigest != null) {
+            readDigest.update(region.slice(start, length));
+        }
+        int packetLength;
+        if (isLastPacket(fileOffset, length)) {
+            region.get(start, segment.packet, handler.getHeaderLength(),
+                    length);
+            segment.ungather();
+            packetLength = encodeData(segment.packet, length, seqNo,
+                    fileOffset);
+        } else {
+            ByteBuffer[] gather = segment.gather(region, start, length);
+            packetLength = handler.encodeGather(
+                    gather[0], gather[1], gather[2], seqNo, 0, 0);
+        }
+        segment.reset(seqNo, length, packetLength);
+        return length;
+    }
+
+    /**
+     * Take the next block from the compressing reader and encode it into
+     * the segment's packet buffer, deflated if that made it smaller. The
+     * last one goes as it is when it carries the FIN, whose ACK number
+     * field holds where the data ends and the digest starts instead.
+     * @param segment
+     * @param reader
+     * @param fileOffset
+     * @param seqNo
+     * @return the number of uncompressed payload bytes, or -1 at the end of
+     * the file
+     * @throws IOException
+     */
+    private int fillSegment(SendWindow.Segment segment,
+            CompressingReader reader, long fileOffset, int seqNo)
+            throws IOException {
+        CompressingReader.Block block = reader.take();
+        if (block == null) {
+            return -1;
+        }
+        // parity covers the data as the receiver will have it, inflated
+        if (parity != null) {
+            parity.add(seqNo - (int) parity.start, block.raw, 0,
+                    block.rawLength);
+        }
+        if (readDigest != null) {
+            readDigest.update(block.raw, 0, block.rawLength);
+        }
+        int packetLength;
+        if (block.isCompressed()
+                && !isLastPacket(fileOffset, block.rawLength)) {
+            packetLength = handler.encode(segment.packet, block.compressed, 0,
+                    block.compressedLength, seqNo, block.rawLength,
+                    PacketHandler.FLAG_COMPRESSED);
+            compressedBytesSent += block.compressedLength;
+        } else {
+            System.arraycopy(block.raw, 0, segment.packet,
+                    handler.getHeaderLength(), block.rawLength);
+            packetLength = encodeData(segment.packet, block.rawLength, seqNo,
+                    fileOffset);
+            compressedBytesSent += block.rawLength;
+        }
+        rawBytesSent += block.rawLength;
+        segment.reset(seqNo, block.rawLength, packetLength);
+        reader.release(block);
+        return segment.length;
+    }
+
+    /**
+     * Encode a data packet whose payload is already in place, flagged FIN
+     * with the digest after the data if it is the last one and may close
+     * the transfer
+     * @param packet
+     * @param dataLength
+     * @param seqNo
+     * @param fileOffset offset of the packet's first data byte
+     * @return the number of bytes to send
+     */
+    private int encodeData(byte[] packet, int dataLength, int seqNo,
+            long fileOffset) {
+        if (isLastPacket(fileOffset, dataLength)) {
+            return handler.encodeFinInPlace(packet, dataLength, seqNo,
+                    getFileDigest());
+        }
+        return handler.encodeInPlace(packet, dataLength, seqNo, 0, 0);
+    }
+
+    /**
+     * Check if a packet is the last of the range and can carry the FIN,
+     * which needs a receiver that took the first bytes with the SYN and
+     * room for the digest. Otherwise a FIN of its own follows it.
+     * @param fileOffset offset of the packet's first data byte
+     * @param dataLength
+     * @return
+     */
+    private boolean isLastPacket(long fileOffset, int dataLength) {
+        if (!isFinPiggybacked || fileOffset + dataLength != rangeEnd) {
+            return false;
+        }
+        byte[] digest = getFileDigest();
+        return dataLength + (digest != null ? digest.length : 0)
+                <= handler.getMaxPayloadLength();
+    }
+
+    /**
+     * Finish the digest of the data sent, once all of it has been read
+     * @return null if no digest was agreed
+     */
+    private byte[] getFileDigest() {
+        if (fileDigest == null && digest != null) {
+            fileDigest = digest.digest();
+        }
+        return fileDigest;
+    }
+
+    /**
+     * Get how much of the range is left for the packet at fileOffset. With
+     * parity on, packets leave room for the parity header and stop at the
+     * end of their group.
+     * @param fileOffset
+     * @param seqNo the packet's sequence number
+     * @return the payload length to read, at most a full packet's
+     */
+    private int getMaxPayloadLength(long fileOffset, int seqNo) {
+        int maxLength = parity == null ? handler.getMaxPayloadLength()
+                : Math.min(handler.getMaxPayloadLength()
+                        - ParityGroup.HEADER_LENGTH, parityEnd - seqNo);
+        return (int) Math.min(maxLength, Math.max(0, rangeEnd - fileOffset));
+    }
+
+    /**
+     * Send the parity of the packets folded in since the last one, and
+     * start the next group where this one ends. Parity packets are sent
+     * once and never resent, since a resend is as costly as resending the
+     * lost packet itself.
+     * @param socket
+     * @throws IOException
+     */
+    private void sendParity(DatagramSocket socket) throws IOException {
+        int length = parity.encode(parityBuffer, handler.getHeaderLength());
+        parityPacket.setLength(handler.encodeInPlace(parityBuffer, length,
+                (int) parity.start, parity.getCount(),
+                PacketHandler.FLAG_PARITY));
+        try {
+            socket.send(parityPacket);
+        } catch (PortUnreachableException e) {
+            // lost like any other packet, and parity is never resent
+        }
+        parityPacketsSent++;
+        parity.reset(parityEnd);
+        parityEnd += parityGroupLength;
+    }
+
+    /**
+     * Find the largest packet size, up to the negotiated one, that gets to
+     * the receiver. The first data packet is sent at decreasing sizes until
+     * one is acknowledged, with a few tries each since a probe may also be
+     * lost like any packet. If none is, packets go back to MAX_PACKET_SIZE.
+     * The probe's data counts as sent, so the range is advanced past it.
+     * @param rcvAddress
+     * @param socket
+     * @param bis the file as a stream, or null if mappedFile is given
+     * @param mappedFile the file mapped into memory, or null
+     * @param seqNo sequence number of the first data byte
+     * @return the number of data bytes the probe delivered
+     * @throws IOException
+     */
+    private int probePacketSize(InetAddress rcvAddress, DatagramSocket socket,
+            BufferedInputStream bis, MappedFile mappedFile, int seqNo)
+            throws IOException {
+        byte[] outBuffer = new byte[handler.getPacketSize()];
         DatagramPacket pktOut =
                 new DatagramPacket(outBuffer, outBuffer.length, rcvAddress, portNo);
-
         byte[] inBuffer = new byte[PacketHandler.MAX_PACKET_SIZE];
         DatagramPacket pktIn = new DatagramPacket(inBuffer, inBuffer.length);
 
-        sendUntilReplied(socket, pktOut, pktIn, seqNo);
+        for (int packetSize = handler.getPacketSize();
+                packetSize > PacketHandler.MAX_PACKET_SIZE;
+                packetSize = getNextProbeSize(packetSize)) {
+            handler.setPacketSize(packetSize);
+            int length = getMaxPayloadLength(rangeStart, seqNo);
+            if (length > 0 && mappedFile != null) {
+                ByteBuffer region = mappedFile.regionFor(rangeStart);
+                int start = (int) (rangeStart - mappedFile.getRegionStart());
+                length = Math.min(length, region.capacity() - start);
+                region.get(start, outBuffer, handler.getHeaderLength(), length);
+            } else if (length > 0) {
+                bis.mark(length);
+                length = bis.read(outBuffer, handler.getHeaderLength(), length);
+            }
+            if (length <= 0) {
+                // nothing to send, so nothing to gain from probing
+                return 0;
+            }
+            pktOut.setLength(
+                    handler.encodeInPlace(outBuffer, length, seqNo, 0, 0));
+            if (sendUntilReplied(socket, pktOut, pktIn, seqNo + length,
+                    PROBE_ATTEMPTS)) {
+                if (parity != null) {
+                    parity.add(0, outBuffer, handler.getHeaderLength(),
+                            length);
+                    if (seqNo + length == parityEnd) {
+                        sendParity(socket);
+                    }
+                }
+                if (readDigest != null) {
+                    readDigest.update(outBuffer, handler.getHeaderLength(),
+                            length);
+                }
+                rangeStart += length;
+                return length;
+            }
+            if (bis != null) {
+                bis.reset();
+            }
+            // a probe lost to its size says nothing about congestion
+            rttEstimator.resetBackoff();
+        }
+        handler.setPacketSize(PacketHandler.MAX_PACKET_SIZE);
+        return 0;
+    }
+
+    /**
+     * Round a wait up to whole milliseconds for DatagramSocket.setSoTimeout,
+     * which takes 0 as forever
+     * @param waitNanos more than 0
+     * @return at least 1
+     */
+    private static int toWaitMillis(long waitNanos) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                (waitNanos + 999999) / 1000000));
+    }
+
+    /**
+     * Get the next packet size to probe after one that did not get through
+     * @param packetSize
+     * @return
+     */
+    private static int getNextProbeSize(int packetSize) {
+        for (int probeSize : PROBE_PACKET_SIZES) {
+            if (probeSize < packetSize) {
+                return probeSize;
+            }
+        }
+        return PacketHandler.MAX_PACKET_SIZE;
+    }
+
+    /**
+     * Mark the segments lying entirely inside a SACK block as received,
+     * sampling the round trip time of those sent only once
+     * @param window
+     * @param start
+     * @param end
+     * @return the number of segments newly marked
+     */
+    private int markSacked(SendWindow window, int start, int end) {
+        // anything else is not a SACK block, e.g. the options of a late
+        // reply to the SYN, and would pass the comparisons below by chance
+        if (window.isEmpty()
+                || PacketHandler.compareSeqNo(start, window.first().seqNo) < 0
+                || PacketHandler.compareSeqNo(end, start) <= 0
+                || PacketHandler.compareSeqNo(
+                        window.get(window.size() - 1).getEnd(), end) < 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        int count = 0;
+        for (int i = 0; i < window.size(); i++) {
+            SendWindow.Segment segment = window.get(i);
+            if (PacketHandler.compareSeqNo(segment.seqNo, start) >= 0
+                    && PacketHandler.compareSeqNo(end, segment.getEnd()) >= 0
+                    && window.markSacked(segment)) {
+                count++;
+                if (segment.transmitCount == 1) {
+                    addRttSample(now - segment.sentAt);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the time at which the next retransmission is due
+     * @param window
+     * @return deadline in System.nanoTime() units
+     */
+    private long nextDeadline(SendWindow window) {
+        if (mode == Mode.GO_BACK_N) {
+            return window.first().deadline;
+        }
+        long deadline = Long.MAX_VALUE;
+        for (int i = 0; i < window.size(); i++) {
+            SendWindow.Segment segment = window.get(i);
+            if (!segment.isSacked && !segment.isLost) {
+                deadline = Math.min(deadline, segment.deadline);
+            }
+        }
+        return deadline;
+    }
+
+    /**
+     * Resend the packets in the window according to the sending mode
+     * @param socket
+     * @param window
+     * @param now
+     * @return true if the oldest packet's timer expired
+     * @throws IOException
+     */
+    private boolean retransmitExpired(DatagramSocket socket,
+            SendWindow window, long now) throws IOException {
+        // only the oldest packet's timer backs off, like TCP's single timer
+        boolean isBaseExpired = window.first().deadline <= now;
+        if (isBaseExpired) {
+            rttEstimator.backoff();
+            metrics.timeouts.increment();
+        } else if (mode == Mode.GO_BACK_N) {
+            return false;
+        }
+
+        for (int i = 0; i < window.size(); i++) {
+            SendWindow.Segment segment = window.get(i);
+            if (mode == Mode.GO_BACK_N
+                    || (!segment.isSacked && segment.deadline <= now)) {
+                transmit(segment, socket);
+            }
+        }
+        return isBaseExpired;
+    }
+
+    /**
+     * Mark the packets whose timer expired as lost, to be resent as the
+     * congestion window allows. Go-Back-N gives up on the whole window.
+     * @param window
+     * @param now
+     * @return true if the oldest packet's timer expired
+     */
+    private boolean markExpiredLost(SendWindow window, long now) {
+        SendWindow.Segment first = window.first();
+        boolean isBaseExpired = !first.isLost && first.deadline <= now;
+        if (isBaseExpired) {
+            rttEstimator.backoff();
+            metrics.timeouts.increment();
+        } else if (mode == Mode.GO_BACK_N) {
+            return false;
+        }
+
+        for (int i = 0; i < window.size(); i++) {
+            SendWindow.Segment segment = window.get(i);
+            if (!segment.isSacked && (mode == Mode.GO_BACK_N
+                    || segment.deadline <= now)) {
+                window.markLost(segment, true);
+            }
+        }
+        return isBaseExpired;
+    }
+
+    /**
+     * Send the FIN until it is acknowledged, unless the SYN or the last
+     * data packet closed the transfer already, and check that the receiver
+     * wrote the file with the same digest as was sent
+     * @param rcvAddress
+     * @param socket
+     * @param seqNo sequence number following the last data byte
+     * @throws IOException if the digests differ
+     */
+    private void closeConnection(InetAddress rcvAddress, DatagramSocket socket,
+            int seqNo) throws IOException {
+        byte[] expected = getFileDigest();
+        if (!isFinAcked) {
+            byte[] outBuffer =
+                    handler.createFinPacket(seqNo, expected);
+            DatagramPacket pktOut = new DatagramPacket(
+                    outBuffer, outBuffer.length, rcvAddress, portNo);
+
+            byte[] inBuffer = new byte[PacketHandler.MAX_PACKET_SIZE];
+            DatagramPacket pktIn =
+                    new DatagramPacket(inBuffer, inBuffer.length);
+
+            // a late ACK of the last data packet carries the same ackNo
+            do {
+                sendUntilReplied(socket, pktOut, pktIn, seqNo);
+            } while (!handler.isFin(pktIn.getData()));
+            peerDigest = handler.getPayload(inBuffer);
+        }
+        if (expected != null && !Arrays.equals(peerDigest, expected)) {
+            throw new IOException(destFileName
+                    + " failed the digest check at the receiver");
+        }
     }
 
     private int setupConnection(InetAddress rcvAddress, DatagramSocket socket,
             String fileName) throws IOException {
         byte[] data = fileName.getBytes();
 
-        int seqNo = 0;
+        SynOptions offered = new SynOptions();
+        offered.isCrc32c = isCrc32cOffered;
+        offered.hasConnectionId = isCrc32cOffered;
+        if (isStripe) {
+            offered.isStripe = true;
+            offered.stripeOffset = rangeStart;
+            offered.fileSize = Files.size(Paths.get(srcFileName));
+        }
+        // larger packets need the compact format
+        if (isCrc32cOffered && packetSize > PacketHandler.MAX_PACKET_SIZE) {
+            offered.packetSize = packetSize;
+        }
+        // a lone packet in flight gains nothing from parity over a resend
+        if (mode != Mode.STOP_AND_WAIT) {
+            offered.parityGroupSize = parityGroupSize;
+        }
+        if (isCompressionOffered) {
+            offered.compression = SynOptions.COMPRESSION_DEFLATE;
+        }
+        // a delta rebuilds the whole file, so it cannot be striped, and the
+        // receiver's copy it is made against is not a partial one to resume;
+        // a batch is neither a file to diff nor one to fingerprint
+        if (batch != null) {
+            offered.isBatch = true;
+        } else if (isDeltaOffered && !isStripe) {
+            offered.isDelta = true;
+        } else if (isResumeOffered) {
+            offered.isResumable = true;
+            offered.resumeFileSize = Files.size(Paths.get(srcFileName));
+            if (fingerprint < 0) {
+                fingerprint = CheckpointJournal.fingerprint(srcFileName);
+            }
+            offered.fingerprint = fingerprint;
+        }
+        offered.digestAlgorithm = digestAlgorithm;
+        // the first bytes may go with the SYN, unless the transfer starts
+        // from data the receiver already has
+        if (isFastOpenOffered && !offered.isDelta && !offered.isResumable) {
+            offerFastOpen(offered, data.length);
+        }
+
+        // start at a random sequence number, which also means sequence
+        // numbers wrap around in the middle of some transfers, so that is
+        // always exercised rather than only for files over 4 GB
+        int isn = initialSeqNo != null ? initialSeqNo
+                : ThreadLocalRandom.current().nextInt();
+        int seqNo = isn;
         byte[] outBuffer =
-                handler.createSynPacket(data, data.length, seqNo);
+                handler.createSynPacket(data, data.length, seqNo, offered);
         DatagramPacket pktOut =
                 new DatagramPacket(outBuffer, outBuffer.length, rcvAddress, portNo);
 
@@ -102,25 +1449,303 @@ class FileSender {
         seqNo += data.length;
         sendUntilReplied(socket, pktOut, pktIn, seqNo);
 
+        // an old receiver accepts nothing, so we keep the original format
+        SynOptions accepted = decodeSynAck(inBuffer);
+        handler.setCrc32c(offered.isCrc32c && accepted.isCrc32c);
+        if (handler.getWindow(inBuffer) >= 0) {
+            peerWindow = handler.getWindow(inBuffer);
+        }
+        if (handler.isCrc32c() && accepted.connectionId != 0) {
+            handler.setConnectionId(accepted.connectionId);
+        }
+        if (handler.isCrc32c()
+                && accepted.packetSize > PacketHandler.MAX_PACKET_SIZE) {
+            handler.setPacketSize(Math.min(packetSize, accepted.packetSize));
+        }
+        isCompressing = offered.compression != SynOptions.COMPRESSION_NONE
+                && accepted.compression == offered.compression;
+        if (offered.digestAlgorithm != SynOptions.DIGEST_NONE
+                && accepted.digestAlgorithm == offered.digestAlgorithm) {
+            digest = FileDigest.create(accepted.digestAlgorithm);
+            readDigest = digest;
+        }
+        // the receiver took the first bytes from the SYN, and if that was
+        // all of them, its reply carries its digest like a FIN-ACK
+        if (offered.isFastOpen && accepted.isFastOpen) {
+            int length = offered.fastOpenData.length;
+            if (readDigest != null) {
+                readDigest.update(offered.fastOpenData, 0, length);
+            }
+            fastOpenBytes = length;
+            rangeStart += length;
+            seqNo += length;
+            isFinPiggybacked = true;
+            if (offered.isFastOpenFin && accepted.isFastOpenFin) {
+                isFinAcked = true;
+                peerDigest = accepted.fastOpenDigest;
+            }
+        }
+        // groups are sized for the agreed packet size, which a probe only
+        // ever lowers
+        if (offered.parityGroupSize > 0 && accepted.parityGroupSize > 0) {
+            parity = new ParityGroup(ParityGroup.getMaxDataLength(handler));
+            parity.reset(seqNo);
+            parityGroupLength = ParityGroup.getGroupLength(
+                    offered.parityGroupSize, handler);
+            parityEnd = seqNo + parityGroupLength;
+            parityBuffer = new byte[handler.getPacketSize()];
+            parityPacket = new DatagramPacket(parityBuffer,
+                    parityBuffer.length, rcvAddress, portNo);
+        }
+        // the sequence space starts over, only the file range moves up
+        if (offered.isResumable && accepted.resumeOffset > 0
+                && accepted.resumeOffset
+                        <= Math.min(rangeEnd, offered.resumeFileSize)
+                                - rangeStart) {
+            bytesSkipped = accepted.resumeOffset;
+            // the digest still covers the whole file or stripe, so that the
+            // part the receiver kept is checked along with the rest
+            if (readDigest != null) {
+                try (FileChannel file = FileChannel.open(
+                        Paths.get(srcFileName), StandardOpenOption.READ)) {
+                    readDigest.update(file, rangeStart, bytesSkipped);
+                }
+            }
+            rangeStart += bytesSkipped;
+        }
+        if (offered.isDelta && accepted.isDelta
+                && accepted.deltaSignatures != null) {
+            BlockSignatures signatures = fetchSignatures(socket, pktOut,
+                    pktIn, data, isn, offered, accepted);
+            deltaFile = Files.createTempFile("delta", null);
+            deltaLength = DeltaEncoder.encode(srcFileName, signatures,
+                    deltaFile, digest);
+            readDigest = null;
+        }
+        // otherwise it would take this stripe for the whole file
+        if (isStripe && !accepted.isStripe) {
+            throw new IOException("Receiver does not accept striped "
+                    + "transfers, run it with -s");
+        }
+        // or the batch for a file
+        if (offered.isBatch && !accepted.isBatch) {
+            throw new IOException("Receiver does not accept directories");
+        }
+
         return seqNo;
     }
 
     /**
+     * Put as much of the start of the range in the SYN as fits after the
+     * file name and the other options, and if that is all of it, the
+     * digest of it as well, so that the reply to the SYN can finish the
+     * transfer
+     * @param offered
+     * @param nameLength
+     * @throws IOException
+     */
+    private void offerFastOpen(SynOptions offered, int nameLength)
+            throws IOException {
+        int digestLength = FileDigest.getLength(offered.digestAlgorithm);
+        int capacity = PacketHandler.MAX_PAYLOAD_LENGTH - nameLength
+                - offered.getEncodedLength()
+                - SynOptions.getFastOpenOverhead(digestLength);
+        if (capacity < 0) {
+            return;
+        }
+        Path srcPath = Paths.get(srcFileName);
+        long length = (batch != null ? batch.getStreamLength()
+                : Math.min(rangeEnd, Files.size(srcPath))) - rangeStart;
+        byte[] data;
+        if (batch != null) {
+            try (InputStream in = new BatchInputStream(srcPath, batch)) {
+                data = in.readNBytes((int) Math.min(capacity, length));
+            }
+        } else {
+            data = new byte[(int) Math.min(capacity, length)];
+            try (RandomAccessFile file =
+                    new RandomAccessFile(srcFileName, "r")) {
+                file.seek(rangeStart);
+                file.readFully(data);
+            }
+        }
+        offered.isFastOpen = true;
+        offered.fastOpenData = data;
+        if (data.length == length) {
+            offered.isFastOpenFin = true;
+            FileDigest digest = FileDigest.create(offered.digestAlgorithm);
+            if (digest != null) {
+                digest.update(data, 0, data.length);
+                offered.fastOpenDigest = digest.digest();
+            }
+        }
+    }
+
+    /**
+     * Fetch the signatures of the blocks of the receiver's copy of the file,
+     * as many at a time as fit in its reply to a SYN, asking for the ones
+     * still missing by the index of the first
      * @param socket
      * @param pktOut
      * @param pktIn
-     * @param seqNo
+     * @param fileName the file name sent in each SYN
+     * @param isn the sequence number of the SYN
+     * @param offered
+     * @param accepted the reply to the first SYN
+     * @return
+     * @throws IOException
+     */
+    private BlockSignatures fetchSignatures(DatagramSocket socket,
+            DatagramPacket pktOut, DatagramPacket pktIn, byte[] fileName,
+            int isn, SynOptions offered, SynOptions accepted)
+            throws IOException {
+        BlockSignatures signatures = new BlockSignatures(
+                accepted.deltaBlockLength, accepted.deltaBlockCount);
+        int index = signatures.decode(accepted.deltaSignatures, 0);
+        while (index < signatures.blockCount) {
+            offered.deltaIndex = index;
+            byte[] syn = handler.createSynPacket(fileName, fileName.length,
+                    isn, offered);
+            pktOut.setData(syn, 0, syn.length);
+            // replies to earlier SYNs carry the same ACK number, so they are
+            // told apart by the index of their first signature
+            int requested = index;
+            sendUntilReplied(socket, pktOut, pktIn, isn + fileName.length,
+                    Integer.MAX_VALUE, reply -> {
+                        SynOptions options = decodeSynAck(reply);
+                        return options.deltaSignatures != null
+                                && options.deltaIndex == requested;
+                    });
+            SynOptions reply = decodeSynAck(pktIn.getData());
+            int count = signatures.decode(reply.deltaSignatures, index);
+            if (count == 0) {
+                throw new IOException("Receiver sent no block signatures");
+            }
+            index += count;
+        }
+        return signatures;
+    }
+
+    /**
+     * Read the options a receiver accepted from its reply to a SYN
+     * @param packet
+     * @return
+     */
+    private SynOptions decodeSynAck(byte[] packet) {
+        return SynOptions.decode(packet, handler.getDataOffset(packet),
+                handler.getDataLength(packet));
+    }
+
+    /**
+     * Send the packet and keep resending it every retransmission timeout
+     * until the expected reply arrives
+     * @param socket
+     * @param pktOut
+     * @param pktIn
+     * @param seqNo the ACK number expected in the reply
      * @throws IOException
      */
     private void sendUntilReplied(DatagramSocket socket, DatagramPacket pktOut,
             DatagramPacket pktIn, int seqNo) throws IOException {
-        do {
-            socket.send(pktOut);
+        sendUntilReplied(socket, pktOut, pktIn, seqNo, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Send the packet and resend it every retransmission timeout until the
+     * expected reply arrives, at most maxTransmits times in all
+     * @param socket
+     * @param pktOut
+     * @param pktIn
+     * @param seqNo the ACK number expected in the reply
+     * @param maxTransmits
+     * @return false if there was no reply
+     * @throws IOException
+     */
+    private boolean sendUntilReplied(DatagramSocket socket,
+            DatagramPacket pktOut, DatagramPacket pktIn, int seqNo,
+            int maxTransmits) throws IOException {
+        return sendUntilReplied(socket, pktOut, pktIn, seqNo, maxTransmits,
+                reply -> true);
+    }
+
+    /**
+     * Send the packet and resend it every retransmission timeout until a
+     * reply arrives that also passes a check of its own, at most
+     * maxTransmits times in all. Replies that fail the check are ignored
+     * like stale ones.
+     * @param socket
+     * @param pktOut
+     * @param pktIn
+     * @param seqNo the ACK number expected in the reply
+     * @param maxTransmits
+     * @param isExpected
+     * @return true if the reply arrived
+     * @throws IOException
+     */
+    private boolean sendUntilReplied(DatagramSocket socket,
+            DatagramPacket pktOut, DatagramPacket pktIn, int seqNo,
+            int maxTransmits, Predicate<byte[]> isExpected)
+            throws IOException {
+        int transmitCount = 0;
+        while (transmitCount < maxTransmits) {
             try {
-                socket.receive(pktIn);
-            } catch (SocketTimeoutException e) {
-                continue;
+                socket.send(pktOut);
+            } catch (PortUnreachableException e) {
+                // reported for an earlier packet, and this one dropped, on
+                // the connected channel of the NIO transport; the timer
+                // below resends it
+            }
+            transmitCount++;
+            metrics.onPacketSent(transmitCount > 1);
+            long sentAt = System.nanoTime();
+            long deadline = sentAt + rttEstimator.getRtoNanos();
+
+            // ignore stale or corrupted replies until the timer expires
+            long waitNanos;
+            while ((waitNanos = deadline - System.nanoTime()) > 0) {
+                socket.setSoTimeout(toWaitMillis(waitNanos));
+                try {
+                    socket.receive(pktIn);
+                } catch (SocketTimeoutException e) {
+                    break;
+                } catch (PortUnreachableException e) {
+                    // as if the packet was lost, like with an unconnected
+                    // socket, which never hears of it
+                    continue;
+                }
+                metrics.packetsReceived.increment();
+                if (!handler.isCorruptedReply(pktIn.getData(), seqNo)
+                        && isExpected.test(pktIn.getData())) {
+                    metrics.acksReceived.increment();
+                    // Karn's rule: a resent packet's reply gives no
+                    // sample, and the backed-off timeout stays until the
+                    // reply to a packet sent once gives one
+                    if (transmitCount == 1) {
+                        addRttSample(System.nanoTime() - sentAt);
+                    }
+                    return true;
+                }
             }
-        } while (handler.isCorruptedReply(pktIn.getData(), seqNo));
+            rttEstimator.backoff();
+            metrics.timeouts.increment();
+        }
+        return false;
+    }
+
+    /**
+     * Feed a round trip time to the estimate, and to the metrics
+     * @param rttNanos
+     */
+    private void addRttSample(long rttNanos) {
+        rttEstimator.addSample(rttNanos);
+        metrics.rtt.record(rttNanos);
+    }
+
+    /**
+     * Get the round trip estimate of the connection, for diagnostics
+     * @return
+     */
+    RttEstimator getRttEstimator() {
+        return rttEstimator;
     }
 }
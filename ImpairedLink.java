@@ -0,0 +1,300 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class is one direction of the link UnreliNET emulates. Each packet
+ * goes through the same stages as on a real path:
+ *
+ * loss, either uniform or in bursts, from a Gilbert-Elliott model that
+ * moves between a good state with the uniform loss rate and a bad one
+ * with a much higher rate;
+ * corruption of some of its bytes;
+ * a bottleneck with a bandwidth limit, a token bucket that lets a burst
+ * through at once, and a finite queue in front of it, which drops packets
+ * that arrive to find it full;
+ * a one-way delay with jitter;
+ * reordering, where some packets are held back for a while longer after
+ * their delay, so that the ones behind them overtake them.
+ *
+ * Every decision comes from one random generator seeded up front, so the
+ * same seed impairs the same packets of a run the same way. Packets wait
+ * out their delay on a DelayQueue, which a thread of their own drains as
+ * they come due, rather than the receiving thread sleeping per packet.
+ * A packet that goes straight through is sent from the caller's buffer,
+ * and one that waits is copied into a direct buffer recycled after it is
+ * sent, so the link allocates nothing per packet once it is warm.
+ * @author Diga W
+ *
+ */
+class ImpairedLink implements Runnable {
+
+    // what became of a packet handed to the link
+    public final static int FORWARDED = 0;
+    public final static int LOST = 1;
+    public final static int QUEUE_FULL = 2;
+
+    // or'ed into FORWARDED or QUEUE_FULL for a packet corrupted on the way,
+    // whether or not it then found the queue full
+    public final static int CORRUPTED = 4;
+
+    // how many bytes of a corrupted packet are changed, roughly
+    private final static float BYTE_CORRUPT_RATE = 0.3f;
+
+    // the longest a reordered packet is held back beyond its delay, unless
+    // the delay and jitter are longer
+    private final static long MIN_REORDER_HOLD_NANOS = 2000000L;
+
+    // recycled packets kept for reuse
+    private final static int MAX_FREE_PACKETS = 1024;
+
+    /**
+     * How the link impairs packets beyond the uniform loss and corruption
+     * rates, the same in both directions
+     */
+    static class Settings {
+        long delayNanos;
+        long jitterNanos;
+        float reorderRate;
+
+        // 0 for no bandwidth limit
+        long rateBytesPerSec;
+        long burstBytes;
+        int queueLimit = 1000;
+
+        // 0 for uniform loss
+        float burstEnterRate;
+        float burstExitRate;
+        float burstLossRate = 1;
+
+        long seed;
+
+        /**
+         * @return true if packets have to wait in the link rather than go
+         * straight through
+         */
+        boolean isShaping() {
+            return delayNanos > 0 || jitterNanos > 0 || rateBytesPerSec > 0
+                    || reorderRate > 0;
+        }
+    }
+
+    /**
+     * A packet on its way through the link
+     */
+    private static class Packet implements Delayed {
+        final ByteBuffer data;
+        SocketAddress target;
+        long releaseAt;
+        long order;
+
+        Packet(int capacity) {
+            data = ByteBuffer.allocateDirect(capacity);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(releaseAt - System.nanoTime(),
+                    TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            Packet packet = (Packet) other;
+            // packets due at the same time leave in the order they came
+            int order = Long.compare(releaseAt - packet.releaseAt, 0);
+            return order != 0 ? order : Long.compare(this.order, packet.order);
+        }
+    }
+
+    private final Settings settings;
+    private final float lossRate;
+    private final float corruptRate;
+    private final DatagramChannel channel;
+    private final int maxPacketLength;
+    private final Random random;
+
+    // only touched by the thread handing packets to the link
+    private boolean isBurst;
+    private long order;
+
+    // the bottleneck, as the time its token bucket would be full again if
+    // nothing else came, and when each packet queued at it leaves it
+    private long fullAt;
+    private final long[] departures;
+    private int departureHead;
+    private int departureCount;
+
+    private final DelayQueue<Packet> inFlight = new DelayQueue<Packet>();
+    private final ArrayBlockingQueue<Packet> freePackets =
+            new ArrayBlockingQueue<Packet>(MAX_FREE_PACKETS);
+
+    /**
+     * @param settings
+     * @param seed for this direction
+     * @param lossRate of every packet, or of those in the good state with
+     * burst loss
+     * @param corruptRate
+     * @param channel to send the packets out of
+     * @param maxPacketLength
+     */
+    public ImpairedLink(Settings settings, long seed, float lossRate,
+            float corruptRate, DatagramChannel channel, int maxPacketLength) {
+        this.settings = settings;
+        this.lossRate = lossRate;
+        this.corruptRate = corruptRate;
+        this.channel = channel;
+        this.maxPacketLength = maxPacketLength;
+        this.random = new Random(seed);
+        this.departures = new long[Math.max(1, settings.queueLimit)];
+        this.fullAt = System.nanoTime();
+    }
+
+    /**
+     * Start the thread that sends packets once they are due, if packets
+     * are held at all
+     */
+    public void start() {
+        if (settings.isShaping()) {
+            Thread thread = new Thread(this, "ImpairedLink");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Put a packet on the link, which sends it on to its destination
+     * unless it is lost on the way. Called by one thread only.
+     * @param src the packet, from its position to its limit, which the
+     * link may change and consumes
+     * @param target
+     * @return FORWARDED, LOST or QUEUE_FULL, with CORRUPTED or'ed in if
+     * the packet was corrupted
+     * @throws IOException
+     */
+    public int forward(ByteBuffer src, SocketAddress target)
+            throws IOException {
+        if (isLost()) {
+            return LOST;
+        }
+        int verdict = FORWARDED;
+        if (random.nextFloat() <= corruptRate) {
+            for (int i = src.position(); i < src.limit(); i++) {
+                if (random.nextFloat() <= BYTE_CORRUPT_RATE) {
+                    src.put(i, (byte) ((src.get(i) + 1) % 10));
+                }
+            }
+            verdict = CORRUPTED;
+        }
+        if (!settings.isShaping()) {
+            channel.send(src, target);
+            return verdict;
+        }
+
+        long now = System.nanoTime();
+        long departure = depart(src.remaining(), now);
+        if (departure < 0) {
+            return QUEUE_FULL | (verdict & CORRUPTED);
+        }
+        long delay = settings.delayNanos;
+        if (settings.jitterNanos > 0) {
+            delay += (long) ((2 * random.nextDouble() - 1)
+                    * settings.jitterNanos);
+        }
+        // held back for up to about as long again as the delay, so that it
+        // is overtaken whether or not the delay is long
+        if (random.nextFloat() < settings.reorderRate) {
+            delay += (long) (random.nextDouble() * Math.max(
+                    MIN_REORDER_HOLD_NANOS,
+                    settings.delayNanos + settings.jitterNanos));
+        }
+
+        Packet packet = freePackets.poll();
+        if (packet == null) {
+            packet = new Packet(maxPacketLength);
+        }
+        packet.data.clear();
+        packet.data.put(src).flip();
+        packet.target = target;
+        packet.releaseAt = departure + Math.max(0, delay);
+        packet.order = order++;
+        inFlight.add(packet);
+        return verdict;
+    }
+
+    /**
+     * Send packets as they come due
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Packet packet = inFlight.take();
+                channel.send(packet.data, packet.target);
+                freePackets.offer(packet);
+            }
+        } catch (InterruptedException e) {
+            // the link is shut down with the program
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Decide if the next packet is lost, moving between the good and bad
+     * states first when losses come in bursts
+     * @return
+     */
+    private boolean isLost() {
+        if (settings.burstEnterRate > 0) {
+            if (!isBurst && random.nextFloat() < settings.burstEnterRate) {
+                isBurst = true;
+            } else if (isBurst
+                    && random.nextFloat() < settings.burstExitRate) {
+                isBurst = false;
+            }
+        }
+        return random.nextFloat()
+                <= (isBurst ? settings.burstLossRate : lossRate);
+    }
+
+    /**
+     * Take a packet through the bottleneck, whose queue holds the packets
+     * that have not been sent on from it yet
+     * @param length
+     * @param now
+     * @return when the last byte of the packet leaves the bottleneck, or -1
+     * if its queue is full
+     */
+    private long depart(int length, long now) {
+        if (settings.rateBytesPerSec <= 0) {
+            return now;
+        }
+        while (departureCount > 0 && departures[departureHead] <= now) {
+            departureHead = (departureHead + 1) % departures.length;
+            departureCount--;
+        }
+        if (departureCount >= settings.queueLimit) {
+            return -1;
+        }
+        // the bucket is full again once every byte so far has been paid
+        // for at the rate, and a packet may leave as soon as the bucket
+        // holds its length, i.e. burstBytes before that
+        long sendNanos = length * 1000000000L / settings.rateBytesPerSec;
+        long burstNanos = settings.burstBytes * 1000000000L
+                / settings.rateBytesPerSec;
+        fullAt = Math.max(fullAt, now) + sendNanos;
+        long departure = Math.max(now + sendNanos, fullAt - burstNanos);
+        departures[(departureHead + departureCount) % departures.length] =
+                departure;
+        departureCount++;
+        return departure;
+    }
+}
@@ -0,0 +1,132 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class counts latencies in nanoseconds into buckets laid out like an
+ * HDR histogram: a bucket for each value below 128, then 64 buckets for each
+ * further power of two, so that every value is kept to within 1/64 of
+ * itself over the whole range of a long. Recording takes a few atomic
+ * adds and never allocates or locks, so any number of threads may record
+ * while another takes snapshots.
+ * @author Diga W
+ *
+ */
+class LatencyHistogram {
+
+    // each power of two from 2^SUB_BUCKET_BITS up is split into
+    // SUB_BUCKET_HALF buckets
+    private final static int SUB_BUCKET_BITS = 7;
+    private final static int SUB_BUCKET_HALF = 1 << (SUB_BUCKET_BITS - 1);
+    private final static int BUCKET_COUNT =
+            (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKET_HALF;
+
+    /**
+     * The count, mean, percentiles and maximum of the values recorded up to
+     * some point, in nanoseconds. A percentile is the highest value of its
+     * bucket, so it is never below the true one.
+     */
+    static class Snapshot {
+        final long count;
+        final long mean;
+        final long p50;
+        final long p90;
+        final long p99;
+        final long max;
+
+        Snapshot(long count, long mean, long p50, long p90, long p99,
+                long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Count a value
+     * @param nanos negative values count as 0
+     */
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        counts.incrementAndGet(getIndex(nanos));
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * Take the statistics of the values recorded so far. Values recorded
+     * meanwhile may be left out of some of them.
+     * @return
+     */
+    public Snapshot snapshot() {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return new Snapshot(0, 0, 0, 0, 0, 0);
+        }
+        long max = this.max.get();
+        return new Snapshot(count, sum.sum() / count,
+                getPercentile(snapshot, count, 50, max),
+                getPercentile(snapshot, count, 90, max),
+                getPercentile(snapshot, count, 99, max), max);
+    }
+
+    /**
+     * @param snapshot bucket counts
+     * @param count total of the bucket counts
+     * @param percent
+     * @param max the largest value recorded
+     * @return the highest value of the bucket the percentile falls into
+     */
+    private static long getPercentile(long[] snapshot, long count,
+            int percent, long max) {
+        // the rank of the value, rounded up
+        long rank = Math.max(1, (count * percent + 99) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(max, getHighestValue(i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @param value not negative
+     * @return the bucket the value is counted in
+     */
+    static int getIndex(long value) {
+        if (value < 2 * SUB_BUCKET_HALF) {
+            return (int) value;
+        }
+        // how far the value is shifted to keep SUB_BUCKET_BITS of it
+        int shift = Long.SIZE - Long.numberOfLeadingZeros(value)
+                - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+    }
+
+    /**
+     * @param index
+     * @return the highest value counted in the bucket
+     */
+    static long getHighestValue(int index) {
+        if (index < 2 * SUB_BUCKET_HALF) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_HALF - 1;
+        long subBucket = index - shift * SUB_BUCKET_HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
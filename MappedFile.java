@@ -0,0 +1,61 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class gives read access to a file through memory-mapped regions, so
+ * that packets can be sent straight out of the page cache. Only one region
+ * is mapped at a time, which keeps files of any size within reach of a
+ * single int-indexed buffer.
+ * @author Diga W
+ *
+ */
+class MappedFile implements Closeable {
+
+    public final static long REGION_SIZE = 1L << 30;
+
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer region;
+    private long regionStart = -1;
+
+    public MappedFile(String fileName) throws IOException {
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        size = channel.size();
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Get the mapped region holding the byte at offset. Its index 0 is at
+     * getRegionStart() in the file.
+     * @param offset
+     * @return
+     * @throws IOException
+     */
+    public ByteBuffer regionFor(long offset) throws IOException {
+        if (region == null || offset < regionStart
+                || offset >= regionStart + region.capacity()) {
+            regionStart = offset - offset % REGION_SIZE;
+            long length = Math.min(REGION_SIZE, size - regionStart);
+            region = channel.map(FileChannel.MapMode.READ_ONLY,
+                    regionStart, length);
+        }
+        return region;
+    }
+
+    public long getRegionStart() {
+        return regionStart;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -1,9 +1,46 @@
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.zip.CRC32;
-import java.util.zip.Checksum;
+import java.util.zip.CRC32C;
 
 /**
- * This class handles packets management
+ * This class handles packets management. Packets can be created as new
+ * arrays, or encoded into and read from buffers owned by the caller without
+ * allocating. A handler reuses its checksum state, so each thread should
+ * use its own handler.
+ *
+ * There are two packet formats. The original one is always MAX_PACKET_SIZE
+ * bytes with a CRC32 over the first 992 bytes stored as a long at the end.
+ * The compact one, marked by FLAG_CRC32C and used once both ends agree on
+ * it at SYN, is only as long as its header and payload plus a 4-byte CRC32C
+ * of them. Packets are read according to their own flag; the handler's
+ * checksum mode only decides how outgoing packets are written.
+ *
+ * A compact packet may also carry FLAG_CONNECTION_ID, in which case a 4-byte
+ * connection ID assigned by the receiver at SYN follows the header and the
+ * payload starts after it.
+ *
+ * An ACK may carry FLAG_WINDOW, in which case its otherwise unused sequence
+ * number field holds the receiver's window: how many bytes from the ACK
+ * number on it has room for.
+ *
+ * A packet with FLAG_PARITY carries the XOR of a group of data packets
+ * instead of data, as built by ParityGroup. Its sequence number is that of
+ * the group's first byte and its ACK number the number of packets in the
+ * group.
+ *
+ * A data packet with FLAG_COMPRESSED carries its payload deflated, as made
+ * by CompressingReader, and its otherwise unused ACK number field holds the
+ * uncompressed length. Sequence numbers count uncompressed bytes.
+ *
+ * A FIN without FLAG_ACK carries the sender's digest of the file. Its
+ * otherwise unused ACK number field holds the length of any data before
+ * the digest, the last data of the file, so that the last data packet can
+ * close the transfer as well. A FIN of its own has no data.
+ *
+ * Compact packets are at most MAX_PACKET_SIZE bytes unless both ends agree
+ * on a larger packet size at SYN, up to MAX_DATAGRAM_SIZE. The original
+ * format always stays at MAX_PACKET_SIZE.
  * @author Diga W
  *
  */
@@ -12,13 +49,120 @@ class PacketHandler {
     public final static int MAX_PACKET_SIZE = 1000;
     public final static int MAX_PAYLOAD_LENGTH = 981;
 
-    // private final static int HEADER_LENGTH = 11;
+    // the largest UDP payload over IPv4
+    public final static int MAX_DATAGRAM_SIZE = 65507;
+    public final static int MAX_SACK_BLOCKS = 16;
+    public final static int HEADER_LENGTH = 11;
+
+    public final static int FLAG_SYN = 1;
+    public final static int FLAG_ACK = 2;
+    public final static int FLAG_FIN = 4;
+    public final static int FLAG_CRC32C = 8;
+    public final static int FLAG_CONNECTION_ID = 16;
+    public final static int FLAG_WINDOW = 32;
+    public final static int FLAG_PARITY = 64;
+    public final static int FLAG_COMPRESSED = 128;
+
+    public final static int MAX_HEADER_LENGTH = HEADER_LENGTH + 4;
+
     private final static int OFFSET_SEQ_NO = 0;
     private final static int OFFSET_ACK_NO = 4;
     private final static int OFFSET_FLAGS = 8;
     private final static int OFFSET_DATA_LENGTH = 9;
-    private final static int OFFSET_DATA = 11;
+    private final static int OFFSET_CONNECTION_ID = HEADER_LENGTH;
+    private final static int OFFSET_DATA = HEADER_LENGTH;
     private final static int OFFSET_CHECKSUM = 992;
+    private final static int CRC32C_LENGTH = 4;
+
+    /**
+     * Capacity a trailer buffer needs for encodeGather() in either format
+     */
+    public final static int MAX_TRAILER_LENGTH =
+            MAX_PACKET_SIZE - HEADER_LENGTH;
+
+    private final static byte[] EMPTY = new byte[0];
+
+    private final CRC32 crc32 = new CRC32();
+    private final CRC32C crc32c = new CRC32C();
+    private boolean isCrc32c;
+    private boolean hasConnectionId;
+    private int connectionId;
+    private int packetSize = MAX_PACKET_SIZE;
+
+    /**
+     * Choose the format of outgoing packets, once negotiated
+     * @param isCrc32c true for the compact CRC32C format
+     */
+    public void setCrc32c(boolean isCrc32c) {
+        this.isCrc32c = isCrc32c;
+    }
+
+    public boolean isCrc32c() {
+        return isCrc32c;
+    }
+
+    /**
+     * Stamp outgoing packets with the connection ID agreed at SYN. Only
+     * the compact format has room for it.
+     * @param connectionId
+     */
+    public void setConnectionId(int connectionId) {
+        this.connectionId = connectionId;
+        this.hasConnectionId = true;
+    }
+
+    /**
+     * Allow outgoing compact packets up to the size agreed at SYN
+     * @param packetSize
+     */
+    public void setPacketSize(int packetSize) {
+        if (packetSize < MAX_PACKET_SIZE || packetSize > MAX_DATAGRAM_SIZE) {
+            throw new IllegalArgumentException("Packet size must be between "
+                    + MAX_PACKET_SIZE + " and " + MAX_DATAGRAM_SIZE);
+        }
+        this.packetSize = packetSize;
+    }
+
+    /**
+     * Get the size of the largest packet this handler writes or expects,
+     * which is what a buffer needs to hold one
+     * @return
+     */
+    public int getPacketSize() {
+        return isCrc32c ? packetSize : MAX_PACKET_SIZE;
+    }
+
+    /**
+     * Get the largest payload an outgoing data packet can carry. It is the
+     * same with or without a connection ID, so that packets keep their
+     * length whichever header they get.
+     * @return
+     */
+    public int getMaxPayloadLength() {
+        return isCrc32c
+                ? packetSize - MAX_HEADER_LENGTH - CRC32C_LENGTH
+                : MAX_PAYLOAD_LENGTH;
+    }
+
+    /**
+     * Get the header length of outgoing packets, which is where their
+     * payload starts
+     * @return
+     */
+    public int getHeaderLength() {
+        return isCrc32c && hasConnectionId ? MAX_HEADER_LENGTH : HEADER_LENGTH;
+    }
+
+    /**
+     * Get the flags every outgoing packet carries on top of its type
+     * @return
+     */
+    private int getFormatFlags() {
+        if (!isCrc32c) {
+            return 0;
+        }
+        return hasConnectionId ? FLAG_CRC32C | FLAG_CONNECTION_ID : FLAG_CRC32C;
+    }
 
     /**
      * Create a general outgoing packet
@@ -29,7 +173,7 @@ class PacketHandler {
      */
     public byte[] createOutgoingPacket(
             byte[] data, int argDataLength, int seqNo) {
-        return createPacket(data, argDataLength, seqNo, 0, false, false, false);
+        return createPacket(data, argDataLength, seqNo, 0, 0);
     }
 
     /**
@@ -40,7 +184,63 @@ class PacketHandler {
      * @return
      */
     public byte[] createSynPacket(byte[] data, int argDataLength, int seqNo) {
-        return createPacket(data, argDataLength, seqNo, 0, true, false, false);
+        return createPacket(data, argDataLength, seqNo, 0, FLAG_SYN);
+    }
+
+    /**
+     * Create a SYN-flagged packet offering options to the receiver. It is
+     * always in the original format, so that any receiver can read it.
+     * @param data
+     * @param argDataLength
+     * @param seqNo
+     * @param options
+     * @return
+     */
+    public byte[] createSynPacket(byte[] data, int argDataLength, int seqNo,
+            SynOptions options) {
+        int optionsLength = options.getEncodedLength();
+        if (argDataLength + optionsLength > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException(
+                    "Data and options cannot exceed MAX_PAYLOAD_LENGTH");
+        }
+        byte[] packet = new byte[MAX_PACKET_SIZE];
+        System.arraycopy(data, 0, packet, OFFSET_DATA, argDataLength);
+        options.encode(packet, OFFSET_DATA + argDataLength);
+        encodeOriginal(packet, argDataLength, seqNo, optionsLength, FLAG_SYN,
+                argDataLength + optionsLength);
+        return packet;
+    }
+
+    /**
+     * Get the options offered by a SYN packet
+     * @param packet
+     * @return
+     */
+    public SynOptions getSynOptions(byte[] packet) {
+        int dataLength = getDataLength(packet);
+        int optionsLength = Math.min(getAckNo(packet),
+                MAX_PAYLOAD_LENGTH - dataLength);
+        if (getFlag(packet, FLAG_CRC32C) || optionsLength <= 0) {
+            return new SynOptions();
+        }
+        return SynOptions.decode(packet, OFFSET_DATA + dataLength,
+                optionsLength);
+    }
+
+    /**
+     * Create the reply to a SYN, carrying the options the receiver accepted
+     * and its initial window
+     * @param ackNo
+     * @param options
+     * @param window
+     * @return
+     */
+    public byte[] createSynAckPacket(int ackNo, SynOptions options,
+            int window) {
+        byte[] data = new byte[options.getEncodedLength()];
+        options.encode(data, 0);
+        return createPacket(data, data.length, window, ackNo,
+                FLAG_ACK | FLAG_WINDOW);
     }
 
     /**
@@ -49,68 +249,333 @@ class PacketHandler {
      * @return
      */
     public byte[] createAckPacket(int ackNo) {
-        return createPacket(new byte[0], 0, 0, ackNo, false, true, false);
+        return createPacket(EMPTY, 0, 0, ackNo, FLAG_ACK);
+    }
+
+    /**
+     * Create a ACK-flagged packet that also reports the byte ranges received
+     * beyond ackNo. Each SACK block is a [start, end) pair of sequence
+     * numbers carried in the payload, so peers that ignore the payload
+     * still see a plain cumulative ACK.
+     * @param ackNo
+     * @param sackBlocks start and end of each block, one after the other
+     * @param blockCount
+     * @return
+     */
+    public byte[] createAckPacket(int ackNo, int[] sackBlocks, int blockCount) {
+        byte[] packet = new byte[MAX_PACKET_SIZE];
+        encodeAck(packet, ackNo, sackBlocks, blockCount);
+        return packet;
     }
 
     /**
      * Create a FIN-flagged packet
-     * @param data
-     * @param argDataLength
      * @param seqNo
      * @return
      */
     public byte[] createFinPacket(int seqNo) {
-        return createPacket(new byte[0], 0, seqNo, 0, false, false, true);
+        return createFinPacket(seqNo, null);
+    }
+
+    /**
+     * Create a FIN that carries the digest of the file sent
+     * @param seqNo
+     * @param digest or null for none
+     * @return
+     */
+    public byte[] createFinPacket(int seqNo, byte[] digest) {
+        byte[] data = digest != null ? digest : EMPTY;
+        return createPacket(data, data.length, seqNo, 0, FLAG_FIN);
+    }
+
+    /**
+     * Encode the last data packet of a file into a caller-owned array whose
+     * payload has already been placed at getHeaderLength(), flagged FIN and
+     * followed by the digest of the file sent
+     * @param packet
+     * @param dataLength
+     * @param seqNo
+     * @param digest or null for none
+     * @return the number of bytes to send
+     */
+    public int encodeFinInPlace(byte[] packet, int dataLength, int seqNo,
+            byte[] digest) {
+        byte[] trailer = digest != null ? digest : EMPTY;
+        checkDataLength(dataLength + trailer.length);
+        System.arraycopy(trailer, 0, packet, getHeaderLength() + dataLength,
+                trailer.length);
+        return encodeInPlace(packet, dataLength + trailer.length, seqNo,
+                dataLength, FLAG_FIN);
     }
 
     public byte[] createAckFinPacket(int ackNo) {
-        return createPacket(new byte[0], 0, 0, ackNo, false, true, true);
+        return createAckFinPacket(ackNo, null);
+    }
+
+    /**
+     * Create a FIN-ACK that carries the digest of the file received
+     * @param ackNo
+     * @param digest or null for none
+     * @return
+     */
+    public byte[] createAckFinPacket(int ackNo, byte[] digest) {
+        byte[] data = digest != null ? digest : EMPTY;
+        return createPacket(data, data.length, 0, ackNo, FLAG_ACK | FLAG_FIN);
     }
+
     /**
      * The generic method to create an outgoing packet with the arguments given
      * @param data
      * @param argDataLength
      * @param seqNo
      * @param ackNo
-     * @param isSyn
-     * @param isAck
-     * @param isFin
+     * @param flags
      * @return
      */
     private byte[] createPacket(byte[] data, int argDataLength,
-            int seqNo, int ackNo,
-            boolean isSyn, boolean isAck, boolean isFin) {
-        if (data.length > MAX_PAYLOAD_LENGTH ||
-                argDataLength > MAX_PAYLOAD_LENGTH) {
+            int seqNo, int ackNo, int flags) {
+        if (data.length > getMaxPayloadLength()) {
             throw new IllegalArgumentException(
-                    "Data length cannot exceed MAX_PAYLOAD_LENGTH");
+                    "Data length cannot exceed getMaxPayloadLength()");
         }
+        byte[] packet = new byte[getPacketSize()];
+        int length = encode(packet, data, 0, argDataLength, seqNo, ackNo, flags);
+        return length < packet.length ? Arrays.copyOf(packet, length) : packet;
+    }
 
-        byte flags = 0;
-        flags = (byte) (isSyn ? flags | 1 : flags | 0);
-        flags = (byte) (isAck ? flags | 2 : flags | 0);
-        flags = (byte) (isFin ? flags | 4 : flags | 0);
+    /**
+     * Encode a packet into a caller-owned array, copying the payload in
+     * @param packet destination, at least getPacketSize() long
+     * @param data
+     * @param dataOffset
+     * @param dataLength
+     * @param seqNo
+     * @param ackNo
+     * @param flags
+     * @return the number of bytes to send
+     */
+    public int encode(byte[] packet, byte[] data, int dataOffset,
+            int dataLength, int seqNo, int ackNo, int flags) {
+        checkDataLength(dataLength);
+        System.arraycopy(data, dataOffset, packet, getHeaderLength(),
+                dataLength);
+        return encodeInPlace(packet, dataLength, seqNo, ackNo, flags);
+    }
 
-        short dataLength = (short)argDataLength;
+    /**
+     * Encode a packet whose payload has already been placed at
+     * getHeaderLength() of the array, e.g. by reading a file straight into it
+     * @param packet
+     * @param dataLength
+     * @param seqNo
+     * @param ackNo
+     * @param flags
+     * @return the number of bytes to send
+     */
+    public int encodeInPlace(byte[] packet, int dataLength,
+            int seqNo, int ackNo, int flags) {
+        checkDataLength(dataLength);
+        if (!isCrc32c) {
+            return encodeOriginal(packet, dataLength, seqNo, ackNo, flags,
+                    dataLength);
+        }
+        putHeader(packet, dataLength, seqNo, ackNo, flags | getFormatFlags());
+        int end = getHeaderLength() + dataLength;
+        crc32c.reset();
+        crc32c.update(packet, 0, end);
+        putInt(packet, end, (int) crc32c.getValue());
+        return end + CRC32C_LENGTH;
+    }
 
-        byte[] buffer = ByteBuffer.allocate(OFFSET_CHECKSUM)
-                        .putInt(seqNo)
-                        .putInt(ackNo)
-                        .put(flags)
-                        .putShort(dataLength)
-                        .put(data)
-                        .array();
+    /**
+     * Encode a packet in the original fixed-size CRC32 format
+     * @param packet
+     * @param dataLength
+     * @param seqNo
+     * @param ackNo
+     * @param flags
+     * @param usedLength bytes after the header to keep, the rest is cleared
+     * @return the number of bytes to send
+     */
+    private int encodeOriginal(byte[] packet, int dataLength,
+            int seqNo, int ackNo, int flags, int usedLength) {
+        putHeader(packet, dataLength, seqNo, ackNo, flags);
+        // the unused tail is covered by the checksum, so clear it
+        for (int i = OFFSET_DATA + usedLength; i < OFFSET_CHECKSUM; i++) {
+            packet[i] = 0;
+        }
 
-        Checksum crc32 = new CRC32();
-        crc32.update(buffer, 0, OFFSET_CHECKSUM);
-        long rawChecksum = crc32.getValue();
-        byte[] checksum = ByteBuffer.allocate(8).putLong(rawChecksum).array();
+        crc32.reset();
+        crc32.update(packet, 0, OFFSET_CHECKSUM);
+        putLong(packet, OFFSET_CHECKSUM, crc32.getValue());
+        return MAX_PACKET_SIZE;
+    }
 
-        byte[] packet = new byte[MAX_PACKET_SIZE];
-        System.arraycopy(buffer, 0, packet, 0, OFFSET_CHECKSUM);
-        System.arraycopy(checksum, 0, packet, OFFSET_CHECKSUM, 8);
+    private void putHeader(byte[] packet, int dataLength,
+            int seqNo, int ackNo, int flags) {
+        putInt(packet, OFFSET_SEQ_NO, seqNo);
+        putInt(packet, OFFSET_ACK_NO, ackNo);
+        packet[OFFSET_FLAGS] = (byte) flags;
+        packet[OFFSET_DATA_LENGTH] = (byte) (dataLength >>> 8);
+        packet[OFFSET_DATA_LENGTH + 1] = (byte) dataLength;
+        if ((flags & FLAG_CONNECTION_ID) != 0) {
+            putInt(packet, OFFSET_CONNECTION_ID, connectionId);
+        }
+    }
 
-        return packet;
+    /**
+     * Encode an ACK packet carrying SACK blocks into a caller-owned array
+     * @param packet
+     * @param ackNo
+     * @param sackBlocks
+     * @param blockCount
+     * @return the number of bytes to send
+     */
+    public int encodeAck(byte[] packet, int ackNo,
+            int[] sackBlocks, int blockCount) {
+        putSackBlocks(packet, sackBlocks, blockCount);
+        return encodeInPlace(packet, 8 * blockCount, 0, ackNo, FLAG_ACK);
+    }
+
+    /**
+     * Encode an ACK packet carrying SACK blocks and the receiver's window
+     * into a caller-owned array
+     * @param packet
+     * @param ackNo
+     * @param window bytes the receiver has room for from ackNo on
+     * @param sackBlocks
+     * @param blockCount
+     * @return the number of bytes to send
+     */
+    public int encodeAck(byte[] packet, int ackNo, int window,
+            int[] sackBlocks, int blockCount) {
+        putSackBlocks(packet, sackBlocks, blockCount);
+        return encodeInPlace(packet, 8 * blockCount, window, ackNo,
+                FLAG_ACK | FLAG_WINDOW);
+    }
+
+    private void putSackBlocks(byte[] packet, int[] sackBlocks,
+            int blockCount) {
+        if (blockCount > MAX_SACK_BLOCKS) {
+            throw new IllegalArgumentException(
+                    "Block count cannot exceed MAX_SACK_BLOCKS");
+        }
+        for (int i = 0; i < 2 * blockCount; i++) {
+            putInt(packet, getHeaderLength() + 4 * i, sackBlocks[i]);
+        }
+    }
+
+    /**
+     * Encode a packet into a caller-owned buffer, e.g. a direct one, from
+     * its position. The payload is read from its position to its limit,
+     * and neither buffer's position is changed.
+     * @param packet
+     * @param data
+     * @param seqNo
+     * @param ackNo
+     * @param flags
+     * @return the number of bytes to send
+     */
+    public int encode(ByteBuffer packet, ByteBuffer data,
+            int seqNo, int ackNo, int flags) {
+        int dataLength = data.remaining();
+        checkDataLength(dataLength);
+        int start = packet.position();
+        int headerLength = getHeaderLength();
+        flags |= getFormatFlags();
+        packet.putInt(start + OFFSET_SEQ_NO, seqNo);
+        packet.putInt(start + OFFSET_ACK_NO, ackNo);
+        packet.put(start + OFFSET_FLAGS, (byte) flags);
+        packet.putShort(start + OFFSET_DATA_LENGTH, (short) dataLength);
+        if ((flags & FLAG_CONNECTION_ID) != 0) {
+            packet.putInt(start + OFFSET_CONNECTION_ID, connectionId);
+        }
+        packet.put(start + headerLength, data, data.position(), dataLength);
+
+        int limit = packet.limit();
+        if (isCrc32c) {
+            int end = start + headerLength + dataLength;
+            packet.limit(end);
+            crc32c.reset();
+            crc32c.update(packet);
+            packet.limit(limit);
+            packet.position(start);
+            packet.putInt(end, (int) crc32c.getValue());
+            return headerLength + dataLength + CRC32C_LENGTH;
+        }
+
+        for (int i = OFFSET_DATA + dataLength; i < OFFSET_CHECKSUM; i++) {
+            packet.put(start + i, (byte) 0);
+        }
+        packet.limit(start + OFFSET_CHECKSUM);
+        crc32.reset();
+        crc32.update(packet);
+        packet.limit(limit);
+        packet.position(start);
+        packet.putLong(start + OFFSET_CHECKSUM, crc32.getValue());
+        return MAX_PACKET_SIZE;
+    }
+
+    /**
+     * Encode a packet as separate header and trailer buffers around a
+     * payload that stays where it is, e.g. a slice of a memory-mapped file,
+     * ready for a gathering write. Both buffers are left flipped for
+     * writing, and the payload buffer's position is not changed.
+     * @param header at least MAX_HEADER_LENGTH long
+     * @param data
+     * @param trailer at least MAX_TRAILER_LENGTH long
+     * @param seqNo
+     * @param ackNo
+     * @param flags
+     * @return the number of bytes to send
+     */
+    public int encodeGather(ByteBuffer header, ByteBuffer data,
+            ByteBuffer trailer, int seqNo, int ackNo, int flags) {
+        int dataLength = data.remaining();
+        checkDataLength(dataLength);
+        flags |= getFormatFlags();
+        header.clear();
+        header.putInt(seqNo)
+                .putInt(ackNo)
+                .put((byte) flags)
+                .putShort((short) dataLength);
+        if ((flags & FLAG_CONNECTION_ID) != 0) {
+            header.putInt(connectionId);
+        }
+        header.flip();
+        trailer.clear();
+
+        int dataStart = data.position();
+        if (isCrc32c) {
+            crc32c.reset();
+            crc32c.update(header);
+            crc32c.update(data);
+            trailer.putInt((int) crc32c.getValue());
+        } else {
+            // the original format pads the payload out to a fixed size
+            int padding = OFFSET_CHECKSUM - OFFSET_DATA - dataLength;
+            for (int i = 0; i < padding; i++) {
+                trailer.put((byte) 0);
+            }
+            trailer.flip();
+            crc32.reset();
+            crc32.update(header);
+            crc32.update(data);
+            crc32.update(trailer);
+            trailer.limit(trailer.capacity());
+            trailer.putLong(crc32.getValue());
+        }
+        header.rewind();
+        data.position(dataStart);
+        trailer.flip();
+        return header.remaining() + dataLength + trailer.remaining();
+    }
+
+    private void checkDataLength(int dataLength) {
+        if (dataLength < 0 || dataLength > getMaxPayloadLength()) {
+            throw new IllegalArgumentException(
+                    "Data length cannot exceed getMaxPayloadLength()");
+        }
     }
 
     /**
@@ -119,13 +584,104 @@ class PacketHandler {
      * @return
      */
     public byte[] getPayload(byte[] packet) {
-        short dataLength =
-                ByteBuffer.wrap(packet, OFFSET_DATA_LENGTH, 2).getShort();
-        byte[] data = new byte[dataLength];
-        ByteBuffer.wrap(packet, OFFSET_DATA, dataLength).get(data);
+        byte[] data = new byte[getDataLength(packet)];
+        System.arraycopy(packet, getDataOffset(packet), data, 0, data.length);
         return data;
     }
 
+    /**
+     * Get the number of payload bytes in the packet
+     * @param packet
+     * @return
+     */
+    public int getDataLength(byte[] packet) {
+        return getShort(packet, OFFSET_DATA_LENGTH);
+    }
+
+    /**
+     * Get the number of bytes of digest at the end of a FIN's payload
+     * @param packet
+     * @return 0 for any other packet
+     */
+    public int getTrailerLength(byte[] packet) {
+        return getTrailerLength(getFlags(packet), getAckNo(packet),
+                getDataLength(packet));
+    }
+
+    public int getTrailerLength(ByteBuffer packet) {
+        return getTrailerLength(getFlags(packet), getAckNo(packet),
+                getDataLength(packet));
+    }
+
+    private static int getTrailerLength(int flags, int ackNo,
+            int dataLength) {
+        if ((flags & (FLAG_FIN | FLAG_ACK)) != FLAG_FIN) {
+            return 0;
+        }
+        return dataLength - Math.max(0, Math.min(ackNo, dataLength));
+    }
+
+    /**
+     * Get the index in the packet at which the payload starts
+     * @param packet
+     * @return
+     */
+    public int getDataOffset(byte[] packet) {
+        return getDataOffset(getFlags(packet));
+    }
+
+    public int getDataOffset(ByteBuffer packet) {
+        return getDataOffset(getFlags(packet));
+    }
+
+    private static int getDataOffset(int flags) {
+        int mask = FLAG_CRC32C | FLAG_CONNECTION_ID;
+        return (flags & mask) == mask ? MAX_HEADER_LENGTH : OFFSET_DATA;
+    }
+
+    /**
+     * Get the connection ID of the packet
+     * @param packet
+     * @return 0 if the packet carries none
+     */
+    public int getConnectionId(byte[] packet) {
+        return getDataOffset(packet) == MAX_HEADER_LENGTH
+                ? getInt(packet, OFFSET_CONNECTION_ID) : 0;
+    }
+
+    public int getConnectionId(ByteBuffer packet) {
+        return getDataOffset(packet) == MAX_HEADER_LENGTH
+                ? packet.getInt(OFFSET_CONNECTION_ID) : 0;
+    }
+
+    /**
+     * Get the window advertised by an ACK packet
+     * @param packet
+     * @return the window in bytes, or -1 if the packet carries none
+     */
+    public int getWindow(byte[] packet) {
+        return (getFlags(packet) & FLAG_WINDOW) != 0 ? getSeqNo(packet) : -1;
+    }
+
+    public int getWindow(ByteBuffer packet) {
+        return (getFlags(packet) & FLAG_WINDOW) != 0 ? getSeqNo(packet) : -1;
+    }
+
+    /**
+     * Get the SACK blocks carried by an ACK packet
+     * @param packet
+     * @param sackBlocks destination array, two entries per block
+     * @return the number of blocks read
+     */
+    public int getSackBlocks(byte[] packet, int[] sackBlocks) {
+        int blockCount =
+                Math.min(getDataLength(packet) / 8, sackBlocks.length / 2);
+        for (int i = 0; i < 2 * blockCount; i++) {
+            sackBlocks[i] = getInt(packet, getDataOffset(packet) + 4 * i);
+        }
+        return blockCount;
+    }
+
     /**
      * Checks if the packet's checksum matches the content and if
      * the acknowledgement number is correct
@@ -154,11 +710,73 @@ class PacketHandler {
      * @return false if packet is corrupted, true otherwise
      */
     public boolean isGood(byte[] packet) {
-        Checksum crc32 = new CRC32();
+        if (getFlag(packet, FLAG_CRC32C)) {
+            int dataOffset = getDataOffset(packet);
+            int end = dataOffset + getDataLength(packet);
+            if (end < dataOffset || end + CRC32C_LENGTH > packet.length) {
+                return false;
+            }
+            crc32c.reset();
+            crc32c.update(packet, 0, end);
+            return (int) crc32c.getValue() == getInt(packet, end);
+        }
+        crc32.reset();
         crc32.update(packet, 0, OFFSET_CHECKSUM);
-        long rawChecksum = crc32.getValue();
-        long checksum = ByteBuffer.wrap(packet, OFFSET_CHECKSUM, 8).getLong();
-        return rawChecksum == checksum;
+        return crc32.getValue() == getLong(packet, OFFSET_CHECKSUM);
+    }
+
+    /**
+     * Checks whether a packet held in a buffer, e.g. a direct one, from index
+     * 0 to its limit, is corrupted or not. The position is not changed.
+     * @param packet
+     * @return false if packet is corrupted, true otherwise
+     */
+    public boolean isGood(ByteBuffer packet) {
+        if (packet.limit() < HEADER_LENGTH) {
+            return false;
+        }
+        int position = packet.position();
+        int limit = packet.limit();
+        boolean isGood;
+        if ((getFlags(packet) & FLAG_CRC32C) != 0) {
+            int dataOffset = getDataOffset(packet);
+            int end = dataOffset + getDataLength(packet);
+            if (end < dataOffset || end + CRC32C_LENGTH > limit) {
+                return false;
+            }
+            packet.position(0).limit(end);
+            crc32c.reset();
+            crc32c.update(packet);
+            packet.limit(limit);
+            isGood = (int) crc32c.getValue() == packet.getInt(end);
+        } else {
+            if (limit < MAX_PACKET_SIZE) {
+                return false;
+            }
+            packet.position(0).limit(OFFSET_CHECKSUM);
+            crc32.reset();
+            crc32.update(packet);
+            packet.limit(limit);
+            isGood = crc32.getValue() == packet.getLong(OFFSET_CHECKSUM);
+        }
+        packet.position(position);
+        return isGood;
+    }
+
+    public int getSeqNo(ByteBuffer packet) {
+        return packet.getInt(OFFSET_SEQ_NO);
+    }
+
+    public int getAckNo(ByteBuffer packet) {
+        return packet.getInt(OFFSET_ACK_NO);
+    }
+
+    public int getFlags(ByteBuffer packet) {
+        return packet.get(OFFSET_FLAGS) & 0xFF;
+    }
+
+    public int getDataLength(ByteBuffer packet) {
+        return packet.getShort(OFFSET_DATA_LENGTH) & 0xFFFF;
     }
 
     /**
@@ -189,8 +807,7 @@ class PacketHandler {
      * @return
      */
     public int getSeqNo(byte[] packet) {
-        int seqNo = ByteBuffer.wrap(packet, OFFSET_SEQ_NO, 4).getInt();
-        return seqNo;
+        return getInt(packet, OFFSET_SEQ_NO);
     }
 
     /**
@@ -199,8 +816,16 @@ class PacketHandler {
      * @return
      */
     public int getAckNo(byte[] packet) {
-        int ackNo = ByteBuffer.wrap(packet, OFFSET_ACK_NO, 4).getInt();
-        return ackNo;
+        return getInt(packet, OFFSET_ACK_NO);
+    }
+
+    /**
+     * Get all the flags of the packet as a bit mask
+     * @param packet
+     * @return
+     */
+    public int getFlags(byte[] packet) {
+        return packet[OFFSET_FLAGS] & 0xFF;
     }
 
     /**
@@ -209,7 +834,7 @@ class PacketHandler {
      * @return
      */
     public boolean isSyn(byte[] packet) {
-        return getFlag(packet, 1);
+        return getFlag(packet, FLAG_SYN);
     }
 
     /**
@@ -218,7 +843,7 @@ class PacketHandler {
      * @return
      */
     public boolean isAck(byte[] packet) {
-        return getFlag(packet, 2);
+        return getFlag(packet, FLAG_ACK);
     }
 
     /**
@@ -227,7 +852,7 @@ class PacketHandler {
      * @return
      */
     public boolean isFin(byte[] packet) {
-        return getFlag(packet, 4);
+        return getFlag(packet, FLAG_FIN);
     }
 
     /**
@@ -238,7 +863,62 @@ class PacketHandler {
      * @return
      */
     private boolean getFlag(byte[] packet, int mask) {
-        byte rawTypes = ByteBuffer.wrap(packet, OFFSET_FLAGS, 1).get();
-        return (rawTypes & mask) == mask;
+        return (getFlags(packet) & mask) == mask;
+    }
+
+    /**
+     * Extend a 32-bit sequence number from the wire to the 64-bit stream
+     * offset closest to a reference offset, so that transfers may run past
+     * 4 GB and the numbers may wrap around. The two must lie within 2 GB of
+     * each other, which any window does.
+     * @param seqNo
+     * @param reference e.g. the next expected offset
+     * @return
+     */
+    static long unwrap(int seqNo, long reference) {
+        return reference + (seqNo - (int) reference);
+    }
+
+    /**
+     * Compare two 32-bit sequence numbers from the wire in serial number
+     * arithmetic, which holds across a wraparound as long as the two lie
+     * within 2 GB of each other
+     * @param a
+     * @param b
+     * @return negative if a comes before b, 0 if they are equal, and
+     * positive if a comes after b
+     */
+    static int compareSeqNo(int a, int b) {
+        return a - b;
+    }
+
+    // big-endian field access, without wrapping the array in a ByteBuffer
+
+    static int getShort(byte[] array, int offset) {
+        return (array[offset] & 0xFF) << 8 | (array[offset + 1] & 0xFF);
+    }
+
+    static int getInt(byte[] array, int offset) {
+        return array[offset] << 24
+                | (array[offset + 1] & 0xFF) << 16
+                | (array[offset + 2] & 0xFF) << 8
+                | (array[offset + 3] & 0xFF);
+    }
+
+    static long getLong(byte[] array, int offset) {
+        return (long) getInt(array, offset) << 32
+                | (getInt(array, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    static void putInt(byte[] array, int offset, int value) {
+        array[offset] = (byte) (value >>> 24);
+        array[offset + 1] = (byte) (value >>> 16);
+        array[offset + 2] = (byte) (value >>> 8);
+        array[offset + 3] = (byte) value;
+    }
+
+    static void putLong(byte[] array, int offset, long value) {
+        putInt(array, offset, (int) (value >>> 32));
+        putInt(array, offset + 4, (int) value);
     }
 }
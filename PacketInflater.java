@@ -0,0 +1,96 @@
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * This class turns a received packet with FLAG_COMPRESSED back into the
+ * plain data packet it was made from, in the same array or buffer. Every
+ * other part of the receiver then handles it like any packet, since
+ * sequence numbers, ACKs and parity all count the uncompressed bytes.
+ * @author Diga W
+ *
+ */
+class PacketInflater {
+
+    private final PacketHandler handler;
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] input;
+    private final byte[] output;
+
+    /**
+     * @param handler the receiver's handler, with the agreed packet size
+     */
+    public PacketInflater(PacketHandler handler) {
+        this.handler = handler;
+        input = new byte[handler.getMaxPayloadLength()];
+        output = new byte[handler.getMaxPayloadLength()];
+    }
+
+    /**
+     * Inflate a packet in place
+     * @param packet a good packet with FLAG_COMPRESSED
+     * @return the length of the plain packet, or -1 if the payload does not
+     * inflate to the length the packet gives
+     */
+    public int inflate(byte[] packet) {
+        int length = handler.getDataLength(packet);
+        if (length > input.length) {
+            return -1;
+        }
+        System.arraycopy(packet, handler.getDataOffset(packet), input, 0,
+                length);
+        int rawLength = inflate(length, handler.getAckNo(packet));
+        if (rawLength < 0) {
+            return -1;
+        }
+        return handler.encode(packet, output, 0, rawLength,
+                handler.getSeqNo(packet), 0, 0);
+    }
+
+    /**
+     * Inflate a packet held in a buffer from index 0 to its limit, which is
+     * moved to the end of the plain packet
+     * @param packet a good packet with FLAG_COMPRESSED
+     * @return the length of the plain packet, or -1 if the payload does not
+     * inflate to the length the packet gives
+     */
+    public int inflate(ByteBuffer packet) {
+        int length = handler.getDataLength(packet);
+        if (length > input.length) {
+            return -1;
+        }
+        packet.get(handler.getDataOffset(packet), input, 0, length);
+        int rawLength = inflate(length, handler.getAckNo(packet));
+        if (rawLength < 0) {
+            return -1;
+        }
+        packet.clear();
+        int packetLength = handler.encode(packet,
+                ByteBuffer.wrap(output, 0, rawLength),
+                handler.getSeqNo(packet), 0, 0);
+        packet.limit(packetLength);
+        return packetLength;
+    }
+
+    /**
+     * @param length compressed length in input
+     * @param rawLength uncompressed length, from the ACK number field
+     * @return the uncompressed length in output, or -1
+     */
+    private int inflate(int length, int rawLength) {
+        if (rawLength <= 0 || rawLength > output.length) {
+            return -1;
+        }
+        inflater.reset();
+        inflater.setInput(input, 0, length);
+        try {
+            if (inflater.inflate(output, 0, rawLength) != rawLength
+                    || !inflater.finished()) {
+                return -1;
+            }
+        } catch (DataFormatException e) {
+            return -1;
+        }
+        return rawLength;
+    }
+}
@@ -0,0 +1,173 @@
+import java.nio.ByteBuffer;
+
+/**
+ * This class is a reusable read-only view over a received packet. It reads
+ * the header fields straight out of the array or buffer it wraps, so one
+ * view can be pointed at every incoming packet without allocating.
+ * @author Diga W
+ *
+ */
+class PacketView {
+
+    private final PacketHandler handler;
+    private byte[] packet;
+    private ByteBuffer buffer;
+
+    public PacketView(PacketHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Point the view at another packet
+     * @param packet
+     * @return this view
+     */
+    public PacketView wrap(byte[] packet) {
+        this.packet = packet;
+        this.buffer = null;
+        return this;
+    }
+
+    /**
+     * Point the view at a packet held in a buffer from index 0 to its limit,
+     * e.g. a direct buffer filled by a DatagramChannel
+     * @param buffer
+     * @return this view
+     */
+    public PacketView wrap(ByteBuffer buffer) {
+        this.packet = null;
+        this.buffer = buffer;
+        return this;
+    }
+
+    /**
+     * @return the wrapped array, or null if a buffer is wrapped
+     */
+    public byte[] array() {
+        return packet;
+    }
+
+    /**
+     * @return the wrapped buffer, or null if an array is wrapped
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public boolean isGood() {
+        return packet != null ? handler.isGood(packet) : handler.isGood(buffer);
+    }
+
+    public int getSeqNo() {
+        return packet != null
+                ? handler.getSeqNo(packet) : handler.getSeqNo(buffer);
+    }
+
+    public int getAckNo() {
+        return packet != null
+                ? handler.getAckNo(packet) : handler.getAckNo(buffer);
+    }
+
+    public int getFlags() {
+        return packet != null
+                ? handler.getFlags(packet) : handler.getFlags(buffer);
+    }
+
+    public boolean isSyn() {
+        return (getFlags() & PacketHandler.FLAG_SYN) != 0;
+    }
+
+    public boolean isAck() {
+        return (getFlags() & PacketHandler.FLAG_ACK) != 0;
+    }
+
+    public boolean isFin() {
+        return (getFlags() & PacketHandler.FLAG_FIN) != 0;
+    }
+
+    public boolean isParity() {
+        return (getFlags() & PacketHandler.FLAG_PARITY) != 0;
+    }
+
+    public boolean isCompressed() {
+        return (getFlags() & PacketHandler.FLAG_COMPRESSED) != 0;
+    }
+
+    public int getDataOffset() {
+        return packet != null
+                ? handler.getDataOffset(packet) : handler.getDataOffset(buffer);
+    }
+
+    /**
+     * @return the connection ID, or 0 if the packet carries none
+     */
+    public int getConnectionId() {
+        return packet != null
+                ? handler.getConnectionId(packet)
+                : handler.getConnectionId(buffer);
+    }
+
+    /**
+     * @return the window advertised by an ACK, or -1 if it carries none
+     */
+    public int getWindow() {
+        return packet != null
+                ? handler.getWindow(packet) : handler.getWindow(buffer);
+    }
+
+    /**
+     * @return the number of data bytes, leaving out the digest at the end
+     * of a FIN
+     */
+    public int getDataLength() {
+        if (packet != null) {
+            return handler.getDataLength(packet)
+                    - handler.getTrailerLength(packet);
+        }
+        return handler.getDataLength(buffer) - handler.getTrailerLength(buffer);
+    }
+
+    /**
+     * Copy out the digest at the end of a FIN's payload
+     * @return the digest, empty if there is none
+     */
+    public byte[] getTrailer() {
+        int length = packet != null ? handler.getTrailerLength(packet)
+                : handler.getTrailerLength(buffer);
+        byte[] trailer = new byte[length];
+        int offset = getDataOffset() + getDataLength();
+        if (packet != null) {
+            System.arraycopy(packet, offset, trailer, 0, length);
+        } else {
+            buffer.get(offset, trailer, 0, length);
+        }
+        return trailer;
+    }
+
+    /**
+     * Copy the payload into a caller-owned array
+     * @param dst
+     * @param offset
+     * @return the number of bytes copied
+     */
+    public int copyPayload(byte[] dst, int offset) {
+        int dataLength = getDataLength();
+        if (packet != null) {
+            System.arraycopy(packet, getDataOffset(), dst, offset, dataLength);
+        } else {
+            buffer.get(getDataOffset(), dst, offset, dataLength);
+        }
+        return dataLength;
+    }
+
+    /**
+     * Narrow the wrapped buffer to the payload, e.g. for a positional write
+     * to a FileChannel. Call wrap() again before reading the header.
+     * @return the wrapped buffer, positioned at the payload
+     */
+    public ByteBuffer payloadBuffer() {
+        int dataLength = getDataLength();
+        buffer.limit(getDataOffset() + dataLength).position(getDataOffset());
+        return buffer;
+    }
+}
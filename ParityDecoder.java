@@ -0,0 +1,158 @@
+import java.util.ArrayDeque;
+import java.util.TreeMap;
+
+/**
+ * This class keeps the FEC groups a receiver has not seen all of yet, and
+ * rebuilds a data packet as soon as it is the only one of its group missing
+ * and the group's parity has arrived. Groups span a fixed number of bytes
+ * from the first data byte, which no packet crosses, so every data packet
+ * can be folded into its group on arrival. Only packets arriving for the
+ * first time may be added.
+ * @author Diga W
+ *
+ */
+class ParityDecoder {
+
+    private final TreeMap<Long, ParityGroup> groups =
+            new TreeMap<Long, ParityGroup>();
+    private final ArrayDeque<ParityGroup> freeGroups =
+            new ArrayDeque<ParityGroup>();
+    private final long dataStart;
+    private final int groupLength;
+    private final int maxDataLength;
+
+    // everything below this has been delivered, so its groups are gone
+    private long releasedUpTo;
+    private ParityGroup recovered;
+    private long recoveredCount;
+
+    /**
+     * @param dataStart stream offset of the first data byte
+     * @param groupLength bytes covered by each parity packet
+     * @param maxDataLength the longest payload of a data packet
+     */
+    public ParityDecoder(long dataStart, int groupLength, int maxDataLength) {
+        this.dataStart = dataStart;
+        this.groupLength = groupLength;
+        this.maxDataLength = maxDataLength;
+        this.releasedUpTo = dataStart;
+    }
+
+    /**
+     * Fold in a data packet that arrived for the first time
+     * @param seqNo stream offset of the packet
+     * @param view the packet
+     * @return true if this leaves another packet of the group to rebuild
+     */
+    public boolean addData(long seqNo, PacketView view) {
+        if (seqNo < releasedUpTo) {
+            return false;
+        }
+        ParityGroup group = getGroup(
+                seqNo - Math.floorMod(seqNo - dataStart, (long) groupLength));
+        if (group.isComplete) {
+            return false;
+        }
+        int offset = (int) (seqNo - group.start);
+        if (view.array() != null) {
+            group.add(offset, view.array(), view.getDataOffset(),
+                    view.getDataLength());
+        } else {
+            group.add(offset, view.buffer(), view.getDataOffset(),
+                    view.getDataLength());
+        }
+        return check(group);
+    }
+
+    /**
+     * Fold in a parity packet
+     * @param seqNo stream offset of the group, from the packet's sequence
+     * number
+     * @param view the packet
+     * @return true if a packet of the group can be rebuilt
+     */
+    public boolean addParity(long seqNo, PacketView view) {
+        if (seqNo < releasedUpTo
+                || Math.floorMod(seqNo - dataStart, (long) groupLength) != 0) {
+            return false;
+        }
+        ParityGroup group = getGroup(seqNo);
+        if (group.isComplete || group.hasParity()) {
+            return false;
+        }
+        if (view.array() != null) {
+            group.addParity(view.array(), view.getDataOffset(),
+                    view.getDataLength(), view.getAckNo());
+        } else {
+            group.addParity(view.buffer(), view.getDataOffset(),
+                    view.getDataLength(), view.getAckNo());
+        }
+        return check(group);
+    }
+
+    private boolean check(ParityGroup group) {
+        if (group.isFull()) {
+            group.isComplete = true;
+            return false;
+        }
+        if (!group.isRecoverable()) {
+            return false;
+        }
+        group.isComplete = true;
+        recovered = group;
+        recoveredCount++;
+        return true;
+    }
+
+    private ParityGroup getGroup(long start) {
+        ParityGroup group = groups.get(start);
+        if (group == null) {
+            group = freeGroups.isEmpty()
+                    ? new ParityGroup(maxDataLength) : freeGroups.poll();
+            group.reset(start);
+            groups.put(start, group);
+        }
+        return group;
+    }
+
+    /**
+     * @return stream offset of the packet just rebuilt
+     */
+    public long getRecoveredSeqNo() {
+        return recovered.start + recovered.getRecoveredOffset();
+    }
+
+    public int getRecoveredLength() {
+        return recovered.getRecoveredLength();
+    }
+
+    /**
+     * @return the payload of the packet just rebuilt, from index 0. It is
+     * only valid until the next call to release().
+     */
+    public byte[] getRecoveredData() {
+        return recovered.getRecoveredData();
+    }
+
+    /**
+     * Get the number of packets rebuilt so far, for diagnostics
+     * @return
+     */
+    public long getRecoveredCount() {
+        return recoveredCount;
+    }
+
+    /**
+     * Forget the groups lying wholly below ackNo, as nothing in them can be
+     * missing any more
+     * @param ackNo the next expected stream offset
+     */
+    public void release(long ackNo) {
+        while (!groups.isEmpty()
+                && groups.firstKey() + groupLength <= ackNo) {
+            freeGroups.push(groups.pollFirstEntry().getValue());
+        }
+        releasedUpTo = Math.max(releasedUpTo,
+                ackNo - Math.floorMod(ackNo - dataStart, (long) groupLength));
+    }
+}
@@ -0,0 +1,237 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * This class XORs a group of data packets into the payload of a parity
+ * packet, from which any one packet of the group that was lost can be
+ * rebuilt without resending it. Payloads are taken as zero-padded to the
+ * longest one. The parity also XORs the packets' offsets within the group
+ * and their lengths, so that a rebuilt packet knows where it goes, and the
+ * parity packet's ACK number field carries how many packets it covers.
+ *
+ * Both ends fold packets in the same way: the sender every packet it sends,
+ * to build the parity, and the receiver every packet that arrives plus the
+ * parity, which leaves the missing packet once all the others are in.
+ * @author Diga W
+ *
+ */
+class ParityGroup {
+
+    // the offset and length XORs ahead of the data in a parity payload
+    public final static int HEADER_LENGTH = 8;
+
+    private final byte[] data;
+    private final ByteBuffer dataBuffer;
+    private int length;
+    private int offsetXor;
+    private int lengthXor;
+    private int count;
+
+    // number of packets in the group, once its parity has been folded in
+    private int parityCount = -1;
+
+    // where the group starts, as an offset or a sequence number
+    long start;
+
+    // set on the receiver once nothing more can be learnt from the group
+    boolean isComplete;
+
+    /**
+     * Get the longest payload of a data packet when parity is on, which
+     * leaves room for the header in parity packets
+     * @param handler
+     * @return
+     */
+    static int getMaxDataLength(PacketHandler handler) {
+        return handler.getMaxPayloadLength() - HEADER_LENGTH;
+    }
+
+    /**
+     * Get the number of bytes each parity packet covers
+     * @param groupSize data packets per parity packet, as agreed at SYN
+     * @param handler
+     * @return
+     */
+    static int getGroupLength(int groupSize, PacketHandler handler) {
+        return groupSize * getMaxDataLength(handler);
+    }
+
+    /**
+     * @param maxDataLength the longest payload of a data packet
+     */
+    public ParityGroup(int maxDataLength) {
+        data = new byte[maxDataLength];
+        dataBuffer = ByteBuffer.wrap(data);
+    }
+
+    /**
+     * Empty the group for reuse
+     * @param start
+     */
+    public void reset(long start) {
+        Arrays.fill(data, 0, length, (byte) 0);
+        length = 0;
+        offsetXor = 0;
+        lengthXor = 0;
+        count = 0;
+        parityCount = -1;
+        isComplete = false;
+        this.start = start;
+    }
+
+    /**
+     * Fold in a data packet
+     * @param offset where the packet starts within the group
+     * @param src
+     * @param srcOffset where its payload starts in src
+     * @param length payload length
+     */
+    public void add(int offset, byte[] src, int srcOffset, int length) {
+        xor(ByteBuffer.wrap(src), srcOffset, length);
+        fold(offset, length);
+    }
+
+    /**
+     * Fold in a data packet held in a buffer, e.g. a slice of a mapped
+     * file, without changing the buffer's position
+     * @param offset where the packet starts within the group
+     * @param src
+     * @param srcOffset where its payload starts in src
+     * @param length payload length
+     */
+    public void add(int offset, ByteBuffer src, int srcOffset, int length) {
+        xor(src, srcOffset, length);
+        fold(offset, length);
+    }
+
+    /**
+     * XOR length bytes of src into the data, a long at a time where the
+     * byte orders allow it
+     * @param src
+     * @param srcOffset
+     * @param length
+     */
+    private void xor(ByteBuffer src, int srcOffset, int length) {
+        int i = 0;
+        if (src.order() == dataBuffer.order()) {
+            for (; i + 8 <= length; i += 8) {
+                dataBuffer.putLong(i,
+                        dataBuffer.getLong(i) ^ src.getLong(srcOffset + i));
+            }
+        }
+        for (; i < length; i++) {
+            data[i] ^= src.get(srcOffset + i);
+        }
+    }
+
+    private void fold(int offset, int length) {
+        this.length = Math.max(this.length, length);
+        offsetXor ^= offset;
+        lengthXor ^= length;
+        count++;
+    }
+
+    /**
+     * Get the number of data packets folded in
+     * @return
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Write the parity payload of the packets folded in so far
+     * @param dst
+     * @param offset
+     * @return the payload length
+     */
+    public int encode(byte[] dst, int offset) {
+        PacketHandler.putInt(dst, offset, offsetXor);
+        PacketHandler.putInt(dst, offset + 4, lengthXor);
+        System.arraycopy(data, 0, dst, offset + HEADER_LENGTH, length);
+        return HEADER_LENGTH + length;
+    }
+
+    /**
+     * Fold in the payload of the group's parity packet
+     * @param src
+     * @param srcOffset where the payload starts in src
+     * @param length payload length
+     * @param packetCount the parity packet's ACK number
+     */
+    public void addParity(byte[] src, int srcOffset, int length,
+            int packetCount) {
+        addParity(ByteBuffer.wrap(src), srcOffset, length, packetCount);
+    }
+
+    /**
+     * Fold in the payload of the group's parity packet held in a buffer
+     * @param src
+     * @param srcOffset where the payload starts in src
+     * @param length payload length
+     * @param packetCount the parity packet's ACK number
+     */
+    public void addParity(ByteBuffer src, int srcOffset, int length,
+            int packetCount) {
+        offsetXor ^= getInt(src, srcOffset);
+        lengthXor ^= getInt(src, srcOffset + 4);
+        int dataLength = Math.min(length - HEADER_LENGTH, data.length);
+        xor(src, srcOffset + HEADER_LENGTH, dataLength);
+        this.length = Math.max(this.length, dataLength);
+        parityCount = packetCount;
+    }
+
+    /**
+     * Read a header field as encode() wrote it, whatever the buffer's byte
+     * order, as xor() allows for any
+     * @param src
+     * @param offset
+     * @return
+     */
+    private static int getInt(ByteBuffer src, int offset) {
+        int value = src.getInt(offset);
+        return src.order() == ByteOrder.BIG_ENDIAN
+                ? value : Integer.reverseBytes(value);
+    }
+
+    public boolean hasParity() {
+        return parityCount >= 0;
+    }
+
+    /**
+     * Check if every data packet of the group has been folded in
+     * @return
+     */
+    public boolean isFull() {
+        return hasParity() && count >= parityCount;
+    }
+
+    /**
+     * Check if the parity and all data packets but one have been folded in,
+     * so that what is left is the missing packet
+     * @return
+     */
+    public boolean isRecoverable() {
+        return hasParity() && count == parityCount - 1
+                && lengthXor > 0 && lengthXor <= data.length;
+    }
+
+    /**
+     * @return where the missing packet starts within the group
+     */
+    public int getRecoveredOffset() {
+        return offsetXor;
+    }
+
+    public int getRecoveredLength() {
+        return lengthXor;
+    }
+
+    /**
+     * @return the missing packet's payload, from index 0
+     */
+    public byte[] getRecoveredData() {
+        return data;
+    }
+}
@@ -0,0 +1,239 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class receives any number of concurrent transfers on one port. A
+ * single selector thread reads every datagram into a pooled buffer and hands
+ * it to the ReceiverSession it belongs to, found by the connection ID in the
+ * packet or, for senders that did not negotiate one, by the source address.
+ * Sessions run on a fixed pool of worker threads and are dropped once they
+ * have finished or gone quiet.
+ * @author Diga W
+ *
+ */
+class ReceiverServer {
+
+    private final static long IDLE_TIMEOUT_NANOS = 30000000000L;
+    private final static long LINGER_NANOS = 5000000000L;
+    private final static long REAP_INTERVAL_NANOS = 1000000000L;
+    private final static int MAX_BUFFERS = 4096;
+
+    // keeps the pool's direct memory in check when packets are large
+    private final static int MAX_BUFFER_BYTES = 64 << 20;
+
+    private final int portNo;
+    private final int bufferSize;
+    private final int maxPacketSize;
+    private final int maxBuffers;
+    private final ExecutorService workers;
+    private final TransferMetrics metrics;
+    private DatagramChannel channel;
+
+    // only touched by the selector thread
+    private final HashMap<Integer, ReceiverSession> sessionsById =
+            new HashMap<Integer, ReceiverSession>();
+    private final HashMap<SocketAddress, ReceiverSession> sessionsByAddress =
+            new HashMap<SocketAddress, ReceiverSession>();
+    private final ArrayDeque<ByteBuffer> freeBuffers =
+            new ArrayDeque<ByteBuffer>();
+    private final PacketHandler handler = new PacketHandler();
+    private final PacketView view = new PacketView(handler);
+    private final Random random = new Random();
+    private int allocatedBuffers;
+
+    // buffers handed back by the workers
+    private final ConcurrentLinkedQueue<ByteBuffer> recycledBuffers =
+            new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /**
+     * @param portNo
+     * @param workerThreads
+     * @param bufferSize per transfer in bytes, or 0 for the default
+     * @param maxPacketSize the largest packet a transfer may agree on
+     * @param metrics for every transfer to record into
+     */
+    public ReceiverServer(int portNo, int workerThreads, int bufferSize,
+            int maxPacketSize, TransferMetrics metrics) {
+        this.portNo = portNo;
+        this.bufferSize = bufferSize;
+        this.maxPacketSize = maxPacketSize;
+        this.maxBuffers = Math.min(MAX_BUFFERS, MAX_BUFFER_BYTES / maxPacketSize);
+        this.workers = Executors.newFixedThreadPool(workerThreads);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Serve transfers until the process is stopped
+     * @throws IOException
+     */
+    void run() throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(portNo));
+        System.out.println(FileReceiver.getListeningMessage(portNo));
+        channel.configureBlocking(false);
+        // let as many packets queue in the socket as the pool can hold
+        int socketBufferSize = maxBuffers * maxPacketSize;
+        if (channel.getOption(StandardSocketOptions.SO_RCVBUF)
+                < socketBufferSize) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, socketBufferSize);
+        }
+        Selector selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+
+        ByteBuffer dropBuffer = ByteBuffer.allocateDirect(maxPacketSize);
+        long nextReap = System.nanoTime() + REAP_INTERVAL_NANOS;
+        while (true) {
+            selector.select(REAP_INTERVAL_NANOS / 1000000);
+            selector.selectedKeys().clear();
+
+            long now = System.nanoTime();
+            while (true) {
+                ByteBuffer buffer = takeBuffer();
+                if (buffer == null) {
+                    // out of buffers, so drop the packet and let it be resent
+                    dropBuffer.clear();
+                    if (channel.receive(dropBuffer) == null) {
+                        break;
+                    }
+                    continue;
+                }
+                SocketAddress address = channel.receive(buffer);
+                if (address == null) {
+                    freeBuffers.push(buffer);
+                    break;
+                }
+                buffer.flip();
+                metrics.packetsReceived.increment();
+                dispatch(buffer, address, now);
+            }
+
+            if (now - nextReap >= 0) {
+                reap(now);
+                nextReap = now + REAP_INTERVAL_NANOS;
+            }
+        }
+    }
+
+    /**
+     * Find or create the session a packet belongs to and queue it there
+     * @param buffer
+     * @param address
+     * @param now
+     */
+    private void dispatch(ByteBuffer buffer, SocketAddress address, long now) {
+        view.wrap(buffer);
+        int connectionId = view.getConnectionId();
+        ReceiverSession session = connectionId != 0
+                ? sessionsById.get(connectionId)
+                : sessionsByAddress.get(address);
+        boolean isSyn = isNewSyn(buffer);
+        // a sender that started over from the same address, e.g. after it
+        // died, would only get the old transfer's SYN-ACK, and keep the old
+        // session from ever going quiet, so close that one
+        if (session != null && connectionId == 0 && isSyn
+                && !session.isSameSyn(view)) {
+            remove(session);
+            session = null;
+        }
+        if (session == null && isSyn) {
+            session = new ReceiverSession(this, workers, address,
+                    newConnectionId(), bufferSize, maxPacketSize, metrics);
+            session.setSyn(view);
+            sessionsById.put(session.getConnectionId(), session);
+            sessionsByAddress.put(address, session);
+        }
+        if (session == null) {
+            freeBuffers.push(buffer);
+            return;
+        }
+        session.deliver(buffer, now);
+    }
+
+    /**
+     * Check if a packet is an intact SYN. SYNs always use the original
+     * format, which the server's own handler is set up for.
+     * @param buffer
+     * @return
+     */
+    private boolean isNewSyn(ByteBuffer buffer) {
+        return view.wrap(buffer).isGood() && view.isSyn();
+    }
+
+    private int newConnectionId() {
+        int connectionId;
+        do {
+            connectionId = random.nextInt();
+        } while (connectionId == 0 || sessionsById.containsKey(connectionId));
+        return connectionId;
+    }
+
+    private void reap(long now) {
+        Iterator<ReceiverSession> it = sessionsById.values().iterator();
+        while (it.hasNext()) {
+            ReceiverSession session = it.next();
+            if (session.isReapable(now, IDLE_TIMEOUT_NANOS, LINGER_NANOS)) {
+                it.remove();
+                sessionsByAddress.remove(session.getAddress(), session);
+                session.expire();
+            }
+        }
+    }
+
+    /**
+     * Drop a session and close it once its queued packets are processed
+     * @param session
+     */
+    private void remove(ReceiverSession session) {
+        sessionsById.remove(session.getConnectionId());
+        sessionsByAddress.remove(session.getAddress(), session);
+        session.expire();
+    }
+
+    private ByteBuffer takeBuffer() {
+        ByteBuffer buffer;
+        while ((buffer = recycledBuffers.poll()) != null) {
+            freeBuffers.push(buffer);
+        }
+        buffer = freeBuffers.poll();
+        if (buffer == null && allocatedBuffers < maxBuffers) {
+            buffer = ByteBuffer.allocateDirect(maxPacketSize);
+            allocatedBuffers++;
+        }
+        if (buffer != null) {
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    /**
+     * Hand a packet buffer back to the pool once a session is done with it.
+     * Safe to call from any thread.
+     * @param buffer
+     */
+    void recycle(ByteBuffer buffer) {
+        recycledBuffers.add(buffer);
+    }
+
+    /**
+     * Send a reply from the server's port. Safe to call from any thread.
+     * @param packet
+     * @param address
+     * @throws IOException
+     */
+    void send(ByteBuffer packet, SocketAddress address) throws IOException {
+        channel.send(packet, address);
+    }
+}
@@ -0,0 +1,482 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class holds the state of one transfer handled by a ReceiverServer.
+ * Packets are queued to it by the server's selector thread and processed by
+ * a worker thread, never by two workers at once, so the state itself needs
+ * no locking.
+ * @author Diga W
+ *
+ */
+class ReceiverSession implements Runnable {
+
+    private final ReceiverServer server;
+    private final Executor executor;
+    private final SocketAddress address;
+    private final int connectionId;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> inbox =
+            new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicBoolean isScheduled = new AtomicBoolean();
+    private volatile boolean isExpired;
+    private volatile boolean isFinished;
+    private long lastActivity;
+
+    // the SYN that started the session, to tell a retransmission of it
+    // from the SYN of a new transfer; owned by the selector thread too
+    private int synSeqNo;
+    private byte[] synPayload;
+
+    private final PacketHandler handler = new PacketHandler();
+    private final PacketView view = new PacketView(handler);
+    private final int maxPacketSize;
+    private final TransferMetrics metrics;
+    private ReorderBuffer reorderBuffer;
+    private ParityDecoder parity;
+    private PacketInflater inflater;
+    private int bufferSize;
+    private final int[] sackBlocks = new int[2 * PacketHandler.MAX_SACK_BLOCKS];
+    private final byte[] outBuffer = new byte[PacketHandler.MAX_PACKET_SIZE];
+    private final ByteBuffer ackOut = ByteBuffer.wrap(outBuffer);
+
+    private String fileName;
+    private FileChannel fileChannel;
+    private ByteBuffer synAck;
+    private ByteBuffer finAck;
+    // stream offsets in 64 bits, truncated to sequence numbers on the wire
+    private long dataStart;
+    private long ackNo;
+
+    // where the first data byte goes in the file, non-zero for a stripe
+    private long fileOffset;
+    private boolean isStripe;
+
+    // set when the sender can resume, and how far it resumed from
+    private CheckpointJournal journal;
+    private long resumeOffset;
+
+    // set when the sender sends a delta against the file we have
+    private BlockSignatures signatures;
+    private SynOptions accepted;
+
+    // set when the sender sends a digest of the file in its FIN, fed with
+    // the bytes up to digestedTo; a delta is digested once it is applied
+    private FileDigest digest;
+    private long digestedTo;
+
+    public ReceiverSession(ReceiverServer server, Executor executor,
+            SocketAddress address, int connectionId, int bufferSize,
+            int maxPacketSize, TransferMetrics metrics) {
+        this.server = server;
+        this.executor = executor;
+        this.address = address;
+        this.connectionId = connectionId;
+        this.bufferSize = bufferSize;
+        this.maxPacketSize = maxPacketSize;
+        this.metrics = metrics;
+    }
+
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    public int getConnectionId() {
+        return connectionId;
+    }
+
+    /**
+     * Queue a received packet for processing. Called by the selector thread
+     * only, which also owns the activity time.
+     * @param packet
+     * @param now
+     */
+    public void deliver(ByteBuffer packet, long now) {
+        lastActivity = now;
+        inbox.add(packet);
+        schedule();
+    }
+
+    /**
+     * Note the SYN that started the session. Called by the selector thread
+     * only.
+     * @param syn
+     */
+    public void setSyn(PacketView syn) {
+        synSeqNo = syn.getSeqNo();
+        synPayload = getPayload(syn);
+    }
+
+    /**
+     * Check if a SYN is the one that started the session, resent, rather
+     * than that of a new transfer from the same address. Called by the
+     * selector thread only.
+     * @param syn
+     * @return
+     */
+    public boolean isSameSyn(PacketView syn) {
+        return syn.getSeqNo() == synSeqNo
+                && Arrays.equals(getPayload(syn), synPayload);
+    }
+
+    /**
+     * @param syn
+     * @return a copy of the SYN's payload, the file name, leaving the
+     * packet as it is for the worker
+     */
+    private static byte[] getPayload(PacketView syn) {
+        byte[] payload = new byte[syn.getDataLength()];
+        syn.copyPayload(payload, 0);
+        return payload;
+    }
+
+    /**
+     * Check if the session has been quiet long enough to be dropped
+     * @param now
+     * @param idleTimeout for transfers still in progress
+     * @param lingerTimeout for finished transfers
+     * @return
+     */
+    public boolean isReapable(long now, long idleTimeout, long lingerTimeout) {
+        return now - lastActivity > (isFinished ? lingerTimeout : idleTimeout);
+    }
+
+    /**
+     * Close the session once its queued packets have been processed
+     */
+    public void expire() {
+        isExpired = true;
+        schedule();
+    }
+
+    private void schedule() {
+        if (isScheduled.compareAndSet(false, true)) {
+            executor.execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        do {
+            ByteBuffer packet;
+            while ((packet = inbox.poll()) != null) {
+                try {
+                    onPacket(packet);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    isExpired = true;
+                } finally {
+                    server.recycle(packet);
+                }
+            }
+            if (isExpired) {
+                close();
+            }
+            isScheduled.set(false);
+        } while (!inbox.isEmpty() && isScheduled.compareAndSet(false, true));
+    }
+
+    /**
+     * Handle one packet and answer it, like FileReceiver but writing each
+     * payload straight to its offset in the file. The ACK is sent at once,
+     * so its delay is the time taken to handle the packet.
+     * @param packet
+     * @throws IOException
+     */
+    private void onPacket(ByteBuffer packet) throws IOException {
+        if (isExpired) {
+            return;
+        }
+        if (!view.wrap(packet).isGood()) {
+            metrics.packetsCorrupted.increment();
+            return;
+        }
+        long startedAt = System.nanoTime();
+        if (view.isSyn()) {
+            if (fileChannel == null) {
+                open(packet);
+            } else if (signatures != null && ackNo == dataStart) {
+                // the sender fetches the signatures one SYN at a time
+                byte[] syn = new byte[packet.limit()];
+                packet.get(0, syn);
+                FileReceiver.answerDelta(handler.getSynOptions(syn), accepted,
+                        signatures);
+                synAck = ByteBuffer.wrap(handler.createSynAckPacket(
+                        (int) dataStart, accepted, bufferSize));
+            }
+            server.send(synAck.rewind(), address);
+            metrics.onAckSent(-1);
+            return;
+        }
+        if (fileChannel == null || (view.isCompressed()
+                && (inflater == null || inflater.inflate(packet) < 0))) {
+            return;
+        }
+
+        long seqNo = PacketHandler.unwrap(view.getSeqNo(), ackNo);
+        int dataLength = view.getDataLength();
+        // a FIN is only taken in order, and the last data packet may be the
+        // FIN as well
+        boolean isFin = view.isFin();
+        byte[] expected = isFin && seqNo == ackNo ? view.getTrailer() : null;
+
+        if (view.isParity()) {
+            if (parity != null && parity.addParity(seqNo, view)) {
+                takeRecovered();
+            }
+        } else if (dataLength > 0 && (seqNo == ackNo
+                || reorderBuffer.isInWindow(seqNo, dataLength, ackNo))) {
+            boolean isRecovered = parity != null
+                    && (seqNo == ackNo || !reorderBuffer.contains(seqNo))
+                    && parity.addData(seqNo, view);
+            write(seqNo, view.payloadBuffer());
+            if (isRecovered) {
+                takeRecovered();
+            } else if (parity != null) {
+                parity.release(ackNo);
+            }
+            if (journal != null) {
+                journal.commit(resumeOffset + (ackNo - dataStart),
+                        fileChannel);
+            }
+        }
+        if (expected != null) {
+            finish(expected);
+        }
+        if (isFin && finAck != null) {
+            server.send(finAck.rewind(), address);
+            metrics.onAckSent(System.nanoTime() - startedAt);
+            return;
+        }
+        int blockCount = reorderBuffer.getSackBlocks(sackBlocks);
+        ackOut.clear().limit(handler.encodeAck(outBuffer, (int) ackNo,
+                bufferSize, sackBlocks, blockCount));
+        server.send(ackOut, address);
+        metrics.onAckSent(System.nanoTime() - startedAt);
+    }
+
+    /**
+     * Write a payload to its place in the file and note its arrival
+     * @param seqNo
+     * @param payload
+     * @throws IOException
+     */
+    private void write(long seqNo, ByteBuffer payload) throws IOException {
+        int length = payload.remaining();
+        boolean isDigested = digest != null && signatures == null;
+        if (isDigested && seqNo == digestedTo) {
+            digest.update(payload);
+            digestedTo += length;
+        }
+        FileReceiver.write(fileChannel, payload,
+                fileOffset + (seqNo - dataStart), metrics);
+        if (seqNo == ackNo) {
+            ackNo = reorderBuffer.advance(ackNo + length);
+        } else {
+            reorderBuffer.mark(seqNo, length, ackNo);
+        }
+        if (isDigested) {
+            digestedTo = FileReceiver.digestWritten(digest, fileChannel,
+                    digestedTo, ackNo, dataStart - fileOffset);
+        }
+    }
+
+    /**
+     * Take a packet rebuilt from parity as if it had just arrived
+     * @throws IOException
+     */
+    private void takeRecovered() throws IOException {
+        long seqNo = parity.getRecoveredSeqNo();
+        int length = parity.getRecoveredLength();
+        if (seqNo == ackNo || (reorderBuffer.isInWindow(seqNo, length, ackNo)
+                && !reorderBuffer.contains(seqNo))) {
+            write(seqNo, ByteBuffer.wrap(parity.getRecoveredData(), 0, length));
+        }
+        parity.release(ackNo);
+    }
+
+    /**
+     * Set up the transfer from its SYN
+     * @param packet
+     * @throws IOException
+     */
+    private void open(ByteBuffer packet) throws IOException {
+        byte[] syn = new byte[packet.limit()];
+        packet.get(0, syn);
+        byte[] data = handler.getPayload(syn);
+        fileName = new String(data);
+
+        SynOptions offered = handler.getSynOptions(syn);
+        accepted = new SynOptions();
+        accepted.isCrc32c = offered.isCrc32c;
+        handler.setCrc32c(accepted.isCrc32c);
+        if (accepted.isCrc32c && offered.hasConnectionId) {
+            accepted.hasConnectionId = true;
+            accepted.connectionId = connectionId;
+            handler.setConnectionId(connectionId);
+        }
+        if (accepted.isCrc32c) {
+            accepted.packetSize = FileReceiver.acceptPacketSize(offered,
+                    maxPacketSize, bufferSize);
+        }
+        if (accepted.packetSize > 0) {
+            handler.setPacketSize(accepted.packetSize);
+        }
+        accepted.parityGroupSize = offered.parityGroupSize;
+        if (offered.compression == SynOptions.COMPRESSION_DEFLATE) {
+            accepted.compression = offered.compression;
+            inflater = new PacketInflater(handler);
+        }
+        if (FileDigest.isSupported(offered.digestAlgorithm)) {
+            accepted.digestAlgorithm = offered.digestAlgorithm;
+            digest = FileDigest.create(accepted.digestAlgorithm);
+        }
+        bufferSize = FileReceiver.getBufferSize(bufferSize, handler);
+        reorderBuffer = new ReorderBuffer(bufferSize);
+
+        boolean isStripeOffered = offered.isStripe && offered.stripeOffset >= 0;
+        accepted.isBatch = offered.isBatch && !isStripeOffered;
+        signatures = FileReceiver.acceptDelta(offered, accepted, fileName,
+                isStripeOffered);
+        journal = FileReceiver.openJournal(offered, accepted, fileName,
+                isStripeOffered ? offered.stripeOffset : 0);
+        if (journal != null) {
+            resumeOffset = journal.getResumeOffset();
+        }
+        if (isStripeOffered) {
+            // other sessions write the rest of the file, so never truncate
+            // it below the final size
+            accepted.isStripe = true;
+            isStripe = true;
+            fileOffset = offered.stripeOffset + resumeOffset;
+            RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+            file.setLength(offered.fileSize);
+            fileChannel = file.getChannel();
+        } else if (accepted.isBatch) {
+            // unpacked at the end
+            fileChannel = FileChannel.open(
+                    BatchOutputStream.getSpoolPath(fileName),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } else if (signatures != null) {
+            fileChannel = FileChannel.open(DeltaDecoder.getPath(fileName),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } else if (journal != null) {
+            // a resumed transfer writes over whatever follows the checkpoint
+            fileOffset = resumeOffset;
+            fileChannel = FileChannel.open(Paths.get(fileName),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // dropping anything written after the checkpoint, or all of an
+            // older, larger file when there is none
+            fileChannel.truncate(resumeOffset);
+        } else {
+            fileChannel = FileChannel.open(Paths.get(fileName),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        // the sender's digest covers the part of the file or stripe kept
+        // from an earlier transfer as well
+        if (journal != null && digest != null) {
+            digest.update(fileChannel, fileOffset - resumeOffset,
+                    resumeOffset);
+        }
+        dataStart = handler.getSeqNo(syn) + data.length;
+        ackNo = dataStart;
+        digestedTo = dataStart;
+        // the first bytes may come with the SYN
+        byte[] early = FileReceiver.acceptFastOpen(offered, accepted);
+        if (early != null) {
+            write(dataStart, ByteBuffer.wrap(early));
+        }
+        if (accepted.parityGroupSize > 0) {
+            parity = new ParityDecoder(ackNo,
+                    ParityGroup.getGroupLength(accepted.parityGroupSize,
+                            handler),
+                    ParityGroup.getMaxDataLength(handler));
+        }
+        synAck = ByteBuffer.wrap(handler.createSynAckPacket((int) dataStart,
+                accepted, bufferSize));
+        // and may be all of them, in which case the reply to the SYN
+        // completes the transfer
+        if (accepted.isFastOpenFin) {
+            finish(offered.fastOpenDigest);
+        }
+    }
+
+    /**
+     * Complete the transfer on its FIN, or on a SYN that brought all of the
+     * file, checking the file against the sender's digest
+     * @param expected the digest in the FIN
+     * @throws IOException
+     */
+    private void finish(byte[] expected) throws IOException {
+        if (isFinished) {
+            return;
+        }
+        fileChannel.force(false);
+        if (journal != null) {
+            journal.close(true);
+            journal = null;
+        }
+        // a delta is only acknowledged once the file is rebuilt
+        byte[] actual = signatures != null
+                ? DeltaDecoder.apply(fileName, signatures, digest, expected)
+                : digest != null ? digest.digest() : null;
+        int fileCount = accepted.isBatch
+                && FileReceiver.isDigestMatched(accepted, actual, expected)
+                ? BatchOutputStream.unpack(
+                        BatchOutputStream.getSpoolPath(fileName), fileName)
+                : 0;
+        finAck = ByteBuffer.wrap(FileReceiver.getFinAck(handler, accepted,
+                dataStart, ackNo, bufferSize, actual));
+        if (accepted.isFastOpenFin) {
+            synAck = finAck;
+        }
+        isFinished = true;
+        if (!FileReceiver.isDigestMatched(accepted, actual, expected)) {
+            System.out.println(fileName + " failed the digest check.");
+            return;
+        }
+        if (isStripe) {
+            System.out.println(fileName + " bytes " + fileOffset + " to "
+                    + (fileOffset + (ackNo - dataStart)) + " received.");
+        } else {
+            System.out.println(FileReceiver.getReceivedMessage(fileName,
+                    accepted.isBatch, fileCount));
+        }
+        // the totals of the server so far
+        metrics.report();
+    }
+
+    private void close() {
+        if (fileChannel == null) {
+            return;
+        }
+        try {
+            // keep the journal, so that the sender can resume later
+            if (journal != null) {
+                journal.close(false);
+            }
+            fileChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (!isFinished) {
+            System.out.println(fileName + " timed out.");
+        }
+        fileChannel = null;
+    }
+}
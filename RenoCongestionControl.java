@@ -0,0 +1,52 @@
+/**
+ * This class is Reno's additive increase, multiplicative decrease
+ * congestion control, following RFC 5681. The window doubles every round
+ * trip in slow start, grows by one packet every round trip after that, and
+ * halves on a loss.
+ * @author Diga W
+ *
+ */
+class RenoCongestionControl implements CongestionControl {
+
+    public final static int INITIAL_WINDOW = 4;
+    public final static int MIN_SSTHRESH = 2;
+
+    private double cwnd = INITIAL_WINDOW;
+    private double ssthresh = Integer.MAX_VALUE;
+
+    @Override
+    public int getWindow() {
+        return (int) Math.max(1, cwnd);
+    }
+
+    @Override
+    public void onAck(int packets, long now) {
+        if (cwnd < ssthresh) {
+            cwnd += packets;
+        } else {
+            cwnd += (double) packets / cwnd;
+        }
+    }
+
+    @Override
+    public void onFastRetransmit(int inFlight, long now) {
+        ssthresh = Math.max(inFlight / 2, MIN_SSTHRESH);
+        cwnd = ssthresh;
+    }
+
+    @Override
+    public void onRecoveryEnd() {
+        cwnd = ssthresh;
+    }
+
+    @Override
+    public void onTimeout(int inFlight, long now) {
+        ssthresh = Math.max(inFlight / 2, MIN_SSTHRESH);
+        cwnd = 1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("reno cwnd=%.1f ssthresh=%.1f", cwnd, ssthresh);
+    }
+}
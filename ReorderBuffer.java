@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class holds packets that arrived ahead of the next expected byte
+ * until the gap before them is filled. Segments are keyed by their 64-bit
+ * offset in the stream rather than the wire sequence number, so ordering
+ * holds across wraparound. Payloads are copied into
+ * recycled chunks so that buffering does not allocate once warmed up.
+ * When the payload has already been written to its place in the file, the
+ * buffer can also just track which ranges have arrived.
+ * @author Diga W
+ *
+ */
+class ReorderBuffer {
+
+    /**
+     * A buffered payload
+     */
+    private static class Chunk {
+        byte[] data;
+        int length;
+    }
+
+    private final TreeMap<Long, Chunk> segments = new TreeMap<Long, Chunk>();
+    private final ArrayDeque<Chunk> freeChunks = new ArrayDeque<Chunk>();
+    private final int capacity;
+
+    /**
+     * @param capacity how far past the next expected byte, in bytes,
+     * a segment may reach and still be buffered
+     */
+    public ReorderBuffer(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Buffer a segment that arrived out of order
+     * @param seqNo stream offset of the segment
+     * @param src array holding the payload
+     * @param offset
+     * @param length
+     * @param ackNo the next expected stream offset
+     * @return false if the segment is outside the buffer and was dropped
+     */
+    public boolean put(long seqNo, byte[] src, int offset, int length,
+            long ackNo) {
+        if (!isInWindow(seqNo, length, ackNo)) {
+            return false;
+        }
+        if (segments.containsKey(seqNo)) {
+            return true;
+        }
+        Chunk chunk = freeChunks.isEmpty() ? new Chunk() : freeChunks.poll();
+        // all full packets are the same size, so this soon stops allocating
+        if (chunk.data == null || chunk.data.length < length) {
+            chunk.data = new byte[Math.max(length,
+                    PacketHandler.MAX_PAYLOAD_LENGTH)];
+        }
+        System.arraycopy(src, offset, chunk.data, 0, length);
+        chunk.length = length;
+        segments.put(seqNo, chunk);
+        return true;
+    }
+
+    /**
+     * Record that a segment beyond a gap has arrived, without keeping its
+     * payload
+     * @param seqNo stream offset of the segment
+     * @param length
+     * @param ackNo the next expected stream offset
+     * @return false if the segment is outside the buffer and was dropped
+     */
+    public boolean mark(long seqNo, int length, long ackNo) {
+        if (!isInWindow(seqNo, length, ackNo)) {
+            return false;
+        }
+        if (!segments.containsKey(seqNo)) {
+            Chunk chunk = freeChunks.isEmpty() ? new Chunk() : freeChunks.poll();
+            chunk.length = length;
+            segments.put(seqNo, chunk);
+        }
+        return true;
+    }
+
+    /**
+     * Check if a segment lies beyond ackNo but within the capacity
+     * @param seqNo
+     * @param length
+     * @param ackNo
+     * @return
+     */
+    public boolean isInWindow(long seqNo, int length, long ackNo) {
+        return seqNo > ackNo && seqNo + length <= ackNo + capacity;
+    }
+
+    /**
+     * Consume the recorded segments that continue from ackNo
+     * @param ackNo the next expected stream offset
+     * @return the next expected stream offset after them
+     */
+    public long advance(long ackNo) {
+        if (segments.isEmpty()) {
+            return ackNo;
+        }
+        while (!segments.isEmpty() && segments.firstKey() < ackNo) {
+            freeChunks.push(segments.pollFirstEntry().getValue());
+        }
+        Chunk chunk;
+        while ((chunk = segments.remove(ackNo)) != null) {
+            ackNo += chunk.length;
+            freeChunks.push(chunk);
+        }
+        return ackNo;
+    }
+
+    /**
+     * Write out the buffered segments that continue from ackNo
+     * @param ackNo the next expected stream offset
+     * @param out
+     * @return the next expected stream offset after writing
+     * @throws IOException
+     */
+    public long drainTo(long ackNo, OutputStream out) throws IOException {
+        if (segments.isEmpty()) {
+            return ackNo;
+        }
+        // anything starting below ackNo has already been delivered
+        while (!segments.isEmpty() && segments.firstKey() < ackNo) {
+            freeChunks.push(segments.pollFirstEntry().getValue());
+        }
+        Chunk chunk;
+        while ((chunk = segments.remove(ackNo)) != null) {
+            out.write(chunk.data, 0, chunk.length);
+            ackNo += chunk.length;
+            freeChunks.push(chunk);
+        }
+        return ackNo;
+    }
+
+    /**
+     * Fill in the byte ranges held by the buffer as [start, end) pairs,
+     * merging adjacent segments. The ranges are given as wire sequence
+     * numbers, i.e. truncated to 32 bits.
+     * @param blocks destination array, two entries per block
+     * @return the number of blocks written
+     */
+    public int getSackBlocks(int[] blocks) {
+        int count = 0;
+        for (Map.Entry<Long, Chunk> entry : segments.entrySet()) {
+            int start = (int) (long) entry.getKey();
+            int end = start + entry.getValue().length;
+            if (count > 0 && blocks[2 * count - 1] == start) {
+                blocks[2 * count - 1] = end;
+            } else if (2 * count < blocks.length) {
+                blocks[2 * count] = start;
+                blocks[2 * count + 1] = end;
+                count++;
+            } else {
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Check if a segment starting at seqNo is already held
+     * @param seqNo
+     * @return
+     */
+    public boolean contains(long seqNo) {
+        return segments.containsKey(seqNo);
+    }
+
+    public boolean isEmpty() {
+        return segments.isEmpty();
+    }
+}
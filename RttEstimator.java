@@ -0,0 +1,96 @@
+/**
+ * This class estimates the round trip time of a connection and derives the
+ * retransmission timeout from it, following RFC 6298
+ * @author Diga W
+ *
+ */
+class RttEstimator {
+
+    public final static long INITIAL_RTO_NANOS = 100 * 1000000L;
+    // well above a loopback round trip, so that a GC or JIT pause in
+    // either peer is not taken for a loss of the whole window
+    public final static long MIN_RTO_NANOS = 5 * 1000000L;
+    public final static long MAX_RTO_NANOS = 60 * 1000000000L;
+
+    // the socket timeout only has millisecond granularity
+    private final static long CLOCK_GRANULARITY_NANOS = 1000000L;
+
+    private long srtt = -1;
+    private long rttVar;
+    private long rto = INITIAL_RTO_NANOS;
+    private int backoffCount;
+
+    /**
+     * Feed a new round trip measurement. Per Karn's rule, callers must only
+     * pass samples from packets that were never retransmitted.
+     * @param rttNanos
+     */
+    public void addSample(long rttNanos) {
+        if (srtt < 0) {
+            srtt = rttNanos;
+            rttVar = rttNanos / 2;
+        } else {
+            rttVar = (3 * rttVar + Math.abs(srtt - rttNanos)) / 4;
+            srtt = (7 * srtt + rttNanos) / 8;
+        }
+        resetBackoff();
+    }
+
+    /**
+     * Go back from a backed-off timeout to the estimated one. Per Karn's
+     * rule that takes a new sample, since the ACK of a resent packet says
+     * nothing of how long the path takes now; otherwise only a timeout
+     * that was not down to the path, e.g. a probe lost to its size.
+     */
+    public void resetBackoff() {
+        rto = srtt < 0 ? INITIAL_RTO_NANOS
+                : clamp(srtt + Math.max(CLOCK_GRANULARITY_NANOS, 4 * rttVar));
+        backoffCount = 0;
+    }
+
+    /**
+     * Double the timeout after a retransmission timer expired
+     */
+    public void backoff() {
+        rto = clamp(2 * rto);
+        backoffCount++;
+    }
+
+    public long getRtoNanos() {
+        return rto;
+    }
+
+    /**
+     * Get the timeout in a form suitable for DatagramSocket.setSoTimeout
+     * @return
+     */
+    public int getRtoMillis() {
+        return (int) Math.max(1, (rto + 999999) / 1000000);
+    }
+
+    /**
+     * Get the smoothed round trip time
+     * @return -1 if no sample has been taken yet
+     */
+    public long getSrttNanos() {
+        return srtt;
+    }
+
+    public long getRttVarNanos() {
+        return rttVar;
+    }
+
+    public int getBackoffCount() {
+        return backoffCount;
+    }
+
+    private long clamp(long value) {
+        return Math.max(MIN_RTO_NANOS, Math.min(MAX_RTO_NANOS, value));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("srtt=%.3fms rttvar=%.3fms rto=%.3fms backoff=%d",
+                srtt / 1e6, rttVar / 1e6, rto / 1e6, backoffCount);
+    }
+}
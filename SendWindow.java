@@ -0,0 +1,255 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class keeps the packets that have been sent but not yet acknowledged,
+ * oldest first. Its slots and their packet buffers are allocated once and
+ * recycled as the window slides.
+ * @author Diga W
+ *
+ */
+class SendWindow {
+
+    /**
+     * A data packet that has been sent but not yet acknowledged
+     */
+    static class Segment {
+
+        final byte[] packet;
+        private final DatagramPacket datagram;
+
+        // header, payload and trailer for a gathering channel write
+        private ByteBuffer[] gather;
+        private ByteBuffer payloadRegion;
+        private int payloadStart;
+        int seqNo;
+        int length;
+        long sentAt;
+        long deadline;
+        int transmitCount;
+        boolean isSacked;
+
+        // given up on by a timeout and waiting to be resent
+        boolean isLost;
+
+        Segment(int packetSize, InetAddress address, int port) {
+            packet = new byte[packetSize];
+            datagram = new DatagramPacket(packet, packet.length, address, port);
+        }
+
+        /**
+         * Get the slot ready for a newly encoded packet
+         * @param seqNo
+         * @param length payload length
+         * @param packetLength number of bytes of packet to send
+         */
+        void reset(int seqNo, int length, int packetLength) {
+            this.seqNo = seqNo;
+            this.length = length;
+            datagram.setLength(packetLength);
+            transmitCount = 0;
+            isSacked = false;
+            isLost = false;
+        }
+
+        /**
+         * Point the payload of the gathering write at part of a buffer,
+         * e.g. a memory-mapped file region, without copying it
+         * @param region
+         * @param start
+         * @param length
+         * @return the header, payload and trailer buffers
+         */
+        ByteBuffer[] gather(ByteBuffer region, int start, int length) {
+            if (gather == null) {
+                gather = new ByteBuffer[] {
+                        ByteBuffer.allocateDirect(PacketHandler.MAX_HEADER_LENGTH),
+                        null,
+                        ByteBuffer.allocateDirect(
+                                PacketHandler.MAX_TRAILER_LENGTH) };
+            }
+            if (region != payloadRegion) {
+                payloadRegion = region;
+                gather[1] = region.duplicate();
+            }
+            payloadStart = start;
+            gather[1].limit(start + length).position(start);
+            return gather;
+        }
+
+        /**
+         * Go back to sending the packet buffer, for a packet encoded there
+         * after gather() was used
+         */
+        void ungather() {
+            payloadRegion = null;
+        }
+
+        /**
+         * Send the packet and restart its retransmission timer. Packets set
+         * up with gather() go out through the socket's channel.
+         * @param socket
+         * @param rtoNanos
+         * @throws IOException
+         */
+        void transmit(DatagramSocket socket, long rtoNanos) throws IOException {
+            try {
+                if (gather != null && payloadRegion != null) {
+                    gather[0].rewind();
+                    gather[1].position(payloadStart);
+                    gather[2].rewind();
+                    socket.getChannel().write(gather);
+                } else {
+                    socket.send(datagram);
+                }
+            } catch (PortUnreachableException e) {
+                // a connected channel reports an earlier packet that found
+                // no receiver, and drops this one; the timer resends it
+            }
+            sentAt = System.nanoTime();
+            deadline = sentAt + rtoNanos;
+            transmitCount++;
+        }
+
+        /**
+         * Get the sequence number following the last byte of this segment
+         * @return
+         */
+        int getEnd() {
+            return seqNo + length;
+        }
+    }
+
+    private final Segment[] slots;
+    private int head;
+    private int size;
+    private int sackedCount;
+    private int lostCount;
+
+    /**
+     * @param capacity number of packets
+     * @param packetSize largest packet that will be sent
+     * @param address
+     * @param port
+     */
+    public SendWindow(int capacity, int packetSize, InetAddress address,
+            int port) {
+        slots = new Segment[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Segment(packetSize, address, port);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Get the number of segments that may still be on their way, i.e. those
+     * neither SACKed nor given up on
+     * @return
+     */
+    public int getInFlight() {
+        return size - sackedCount - lostCount;
+    }
+
+    public int getLostCount() {
+        return lostCount;
+    }
+
+    /**
+     * Record that the receiver holds a segment
+     * @param segment
+     * @return false if it was already marked
+     */
+    public boolean markSacked(Segment segment) {
+        if (segment.isSacked) {
+            return false;
+        }
+        markLost(segment, false);
+        segment.isSacked = true;
+        sackedCount++;
+        return true;
+    }
+
+    /**
+     * Record that a segment is thought lost, or that it has been resent
+     * @param segment
+     * @param isLost
+     */
+    public void markLost(Segment segment, boolean isLost) {
+        if (segment.isLost != isLost) {
+            segment.isLost = isLost;
+            lostCount += isLost ? 1 : -1;
+        }
+    }
+
+    /**
+     * Get the oldest segment waiting to be resent
+     * @return null if there is none
+     */
+    public Segment firstLost() {
+        for (int i = 0; lostCount > 0 && i < size; i++) {
+            Segment segment = get(i);
+            if (segment.isLost) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the i-th oldest segment in the window
+     * @param i
+     * @return
+     */
+    public Segment get(int i) {
+        return slots[(head + i) % slots.length];
+    }
+
+    public Segment first() {
+        return get(0);
+    }
+
+    /**
+     * Get the free slot after the newest segment, to be filled in and then
+     * added with append()
+     * @return
+     */
+    public Segment nextFree() {
+        if (size == slots.length) {
+            throw new IllegalStateException("Window is full");
+        }
+        return get(size);
+    }
+
+    public void append() {
+        nextFree();
+        size++;
+    }
+
+    public Segment removeFirst() {
+        Segment segment = first();
+        head = (head + 1) % slots.length;
+        size--;
+        if (segment.isSacked) {
+            sackedCount--;
+        }
+        if (segment.isLost) {
+            lostCount--;
+        }
+        return segment;
+    }
+}
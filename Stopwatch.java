@@ -1,38 +1,39 @@
 public class Stopwatch {
 
-	private long startTime = 0;
-	private long stopTime = 0;
-	private boolean running = false;
+	// System.nanoTime(), which unlike the wall clock never jumps; volatile
+	// so that another thread may read the time while it runs
+	private volatile long startTime = 0;
+	private volatile long stopTime = 0;
+	private volatile boolean running = false;
 
 	public void start() {
-		this.startTime = System.currentTimeMillis();
+		this.startTime = System.nanoTime();
 		this.running = true;
 	}
 
 	public void stop() {
-		this.stopTime = System.currentTimeMillis();
+		this.stopTime = System.nanoTime();
 		this.running = false;
 	}
 
-	// elaspsed time in milliseconds
-	public long getElapsedTime() {
+	// elapsed time in nanoseconds
+	public long getElapsedNanos() {
 		long elapsed;
 		if (running) {
-			elapsed = (System.currentTimeMillis() - startTime);
+			elapsed = (System.nanoTime() - startTime);
 		} else {
 			elapsed = (stopTime - startTime);
 		}
 		return elapsed;
 	}
 
+	// elaspsed time in milliseconds
+	public long getElapsedTime() {
+		return getElapsedNanos() / 1000000;
+	}
+
 	// elapsed time in seconds
 	public long getElapsedTimeSecs() {
-		long elapsed;
-		if (running) {
-			elapsed = ((System.currentTimeMillis() - startTime) / 1000);
-		} else {
-			elapsed = ((stopTime - startTime) / 1000);
-		}
-		return elapsed;
+		return getElapsedNanos() / 1000000000;
 	}
 }
\ No newline at end of file
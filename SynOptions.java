@@ -0,0 +1,367 @@
+import java.util.Arrays;
+
+/**
+ * This class holds the options a sender offers in its SYN, and the subset a
+ * receiver accepts in its reply. Options are encoded as type, length, value
+ * triples so that a peer can skip the ones it does not know.
+ *
+ * In the SYN the option block follows the file name, outside the payload
+ * length, and the SYN's ACK number holds the block's length. Old receivers
+ * ignore both and simply see the file name. The receiver's accepted options
+ * are the payload of its reply to the SYN, which old senders ignore.
+ * @author Diga W
+ *
+ */
+class SynOptions {
+
+    private final static int OPT_CRC32C = 1;
+    private final static int OPT_CONNECTION_ID = 2;
+    private final static int OPT_STRIPE = 3;
+    private final static int OPT_PACKET_SIZE = 4;
+    private final static int OPT_PARITY = 5;
+    private final static int OPT_COMPRESSION = 6;
+    private final static int OPT_RESUME = 7;
+    private final static int OPT_DELTA = 8;
+    private final static int OPT_DIGEST = 9;
+    private final static int OPT_BATCH = 10;
+    private final static int OPT_FAST_OPEN = 11;
+
+    // payload compression methods
+    public final static int COMPRESSION_NONE = 0;
+    public final static int COMPRESSION_DEFLATE = 1;
+
+    // file digest algorithms
+    public final static int DIGEST_NONE = 0;
+    public final static int DIGEST_CRC32C = 1;
+    public final static int DIGEST_SHA256 = 2;
+
+    private final static int TLV_HEADER_LENGTH = 3;
+
+    // flags and digest length ahead of the fast open digest and data
+    private final static int FAST_OPEN_HEADER_LENGTH = 2;
+    private final static int FAST_OPEN_FIN = 1;
+    private final static byte[] EMPTY = new byte[0];
+
+    boolean isCrc32c;
+
+    // offered empty by the sender, answered with the ID by the receiver
+    boolean hasConnectionId;
+    int connectionId;
+
+    // offered with the stripe's file offset and the whole file's size,
+    // answered empty by a receiver that can write stripes
+    boolean isStripe;
+    long stripeOffset = -1;
+    long fileSize;
+
+    // offered with the largest packet the sender wants to send, answered
+    // with the size the receiver settles on; 0 if absent
+    int packetSize;
+
+    // offered with the number of data packets per FEC parity packet, and
+    // answered with the same by a receiver that can use parity; 0 if absent
+    int parityGroupSize;
+
+    // offered with the compression method the sender wants to use, and
+    // answered with the same by a receiver that can inflate it
+    int compression = COMPRESSION_NONE;
+
+    // offered with the size and fingerprint of the file or stripe being
+    // sent, answered with the number of bytes of it the receiver already
+    // has from an earlier transfer, or 0
+    boolean isResumable;
+    long resumeFileSize;
+    long fingerprint;
+    long resumeOffset = -1;
+
+    // offered with the index of the first block signature the sender still
+    // needs of the receiver's copy of the file, and answered by a receiver
+    // that has one with the block length, the block count and as many
+    // signatures from that index as fit in its reply
+    boolean isDelta;
+    int deltaIndex;
+    int deltaBlockLength;
+    int deltaBlockCount;
+    byte[] deltaSignatures;
+
+    // offered with the algorithm the sender wants to digest the file with,
+    // and answered with the same by a receiver that will check the digest
+    // sent in the FIN
+    int digestAlgorithm = DIGEST_NONE;
+
+    // offered empty when the file name is a directory to unpack a batch
+    // into, and answered empty by a receiver that can
+    boolean isBatch;
+
+    // offered with the first bytes of the file or stripe, whether they are
+    // all of it and if so the sender's digest of them; answered by a
+    // receiver that took them, with its own digest if they were all of it,
+    // in which case its reply also completes the transfer
+    boolean isFastOpen;
+    boolean isFastOpenFin;
+    byte[] fastOpenDigest = EMPTY;
+    byte[] fastOpenData = EMPTY;
+
+    /**
+     * Get the number of bytes the fast open option takes besides its data
+     * @param digestLength
+     * @return
+     */
+    static int getFastOpenOverhead(int digestLength) {
+        return TLV_HEADER_LENGTH + FAST_OPEN_HEADER_LENGTH + digestLength;
+    }
+
+    /**
+     * Get the number of bytes encode() will write
+     * @return
+     */
+    public int getEncodedLength() {
+        int length = 0;
+        if (isCrc32c) {
+            length += TLV_HEADER_LENGTH;
+        }
+        if (hasConnectionId) {
+            length += TLV_HEADER_LENGTH + (connectionId != 0 ? 4 : 0);
+        }
+        if (isStripe) {
+            length += TLV_HEADER_LENGTH + (stripeOffset >= 0 ? 16 : 0);
+        }
+        if (packetSize > 0) {
+            length += TLV_HEADER_LENGTH + 4;
+        }
+        if (parityGroupSize > 0) {
+            length += TLV_HEADER_LENGTH + 4;
+        }
+        if (compression != COMPRESSION_NONE) {
+            length += TLV_HEADER_LENGTH + 1;
+        }
+        if (isResumable) {
+            length += TLV_HEADER_LENGTH + (resumeOffset >= 0 ? 8 : 16);
+        }
+        if (isDelta) {
+            length += TLV_HEADER_LENGTH + (deltaSignatures != null
+                    ? 12 + deltaSignatures.length : 4);
+        }
+        if (digestAlgorithm != DIGEST_NONE) {
+            length += TLV_HEADER_LENGTH + 1;
+        }
+        if (isBatch) {
+            length += TLV_HEADER_LENGTH;
+        }
+        if (isFastOpen) {
+            length += getFastOpenOverhead(fastOpenDigest.length)
+                    + fastOpenData.length;
+        }
+        return length;
+    }
+
+    /**
+     * Write the options into dst
+     * @param dst
+     * @param offset
+     * @return the number of bytes written
+     */
+    public int encode(byte[] dst, int offset) {
+        int start = offset;
+        if (isCrc32c) {
+            offset = putHeader(dst, offset, OPT_CRC32C, 0);
+        }
+        if (hasConnectionId) {
+            if (connectionId != 0) {
+                offset = putHeader(dst, offset, OPT_CONNECTION_ID, 4);
+                PacketHandler.putInt(dst, offset, connectionId);
+                offset += 4;
+            } else {
+                offset = putHeader(dst, offset, OPT_CONNECTION_ID, 0);
+            }
+        }
+        if (isStripe) {
+            if (stripeOffset >= 0) {
+                offset = putHeader(dst, offset, OPT_STRIPE, 16);
+                PacketHandler.putLong(dst, offset, stripeOffset);
+                PacketHandler.putLong(dst, offset + 8, fileSize);
+                offset += 16;
+            } else {
+                offset = putHeader(dst, offset, OPT_STRIPE, 0);
+            }
+        }
+        if (packetSize > 0) {
+            offset = putHeader(dst, offset, OPT_PACKET_SIZE, 4);
+            PacketHandler.putInt(dst, offset, packetSize);
+            offset += 4;
+        }
+        if (parityGroupSize > 0) {
+            offset = putHeader(dst, offset, OPT_PARITY, 4);
+            PacketHandler.putInt(dst, offset, parityGroupSize);
+            offset += 4;
+        }
+        if (compression != COMPRESSION_NONE) {
+            offset = putHeader(dst, offset, OPT_COMPRESSION, 1);
+            dst[offset++] = (byte) compression;
+        }
+        if (isResumable) {
+            if (resumeOffset >= 0) {
+                offset = putHeader(dst, offset, OPT_RESUME, 8);
+                PacketHandler.putLong(dst, offset, resumeOffset);
+                offset += 8;
+            } else {
+                offset = putHeader(dst, offset, OPT_RESUME, 16);
+                PacketHandler.putLong(dst, offset, resumeFileSize);
+                PacketHandler.putLong(dst, offset + 8, fingerprint);
+                offset += 16;
+            }
+        }
+        if (isDelta) {
+            if (deltaSignatures != null) {
+                offset = putHeader(dst, offset, OPT_DELTA,
+                        12 + deltaSignatures.length);
+                PacketHandler.putInt(dst, offset, deltaBlockLength);
+                PacketHandler.putInt(dst, offset + 4, deltaBlockCount);
+                PacketHandler.putInt(dst, offset + 8, deltaIndex);
+                System.arraycopy(deltaSignatures, 0, dst, offset + 12,
+                        deltaSignatures.length);
+                offset += 12 + deltaSignatures.length;
+            } else {
+                offset = putHeader(dst, offset, OPT_DELTA, 4);
+                PacketHandler.putInt(dst, offset, deltaIndex);
+                offset += 4;
+            }
+        }
+        if (digestAlgorithm != DIGEST_NONE) {
+            offset = putHeader(dst, offset, OPT_DIGEST, 1);
+            dst[offset++] = (byte) digestAlgorithm;
+        }
+        if (isBatch) {
+            offset = putHeader(dst, offset, OPT_BATCH, 0);
+        }
+        if (isFastOpen) {
+            offset = putHeader(dst, offset, OPT_FAST_OPEN,
+                    FAST_OPEN_HEADER_LENGTH + fastOpenDigest.length
+                            + fastOpenData.length);
+            dst[offset] = (byte) (isFastOpenFin ? FAST_OPEN_FIN : 0);
+            dst[offset + 1] = (byte) fastOpenDigest.length;
+            offset += FAST_OPEN_HEADER_LENGTH;
+            System.arraycopy(fastOpenDigest, 0, dst, offset,
+                    fastOpenDigest.length);
+            offset += fastOpenDigest.length;
+            System.arraycopy(fastOpenData, 0, dst, offset,
+                    fastOpenData.length);
+            offset += fastOpenData.length;
+        }
+        return offset - start;
+    }
+
+    /**
+     * Read options, skipping any of unknown type
+     * @param src
+     * @param offset
+     * @param length
+     * @return
+     */
+    public static SynOptions decode(byte[] src, int offset, int length) {
+        SynOptions options = new SynOptions();
+        int end = offset + length;
+        while (offset + TLV_HEADER_LENGTH <= end) {
+            int type = src[offset] & 0xFF;
+            int valueLength = PacketHandler.getShort(src, offset + 1);
+            offset += TLV_HEADER_LENGTH;
+            if (offset + valueLength > end) {
+                break;
+            }
+            switch (type) {
+            case OPT_CRC32C:
+                options.isCrc32c = true;
+                break;
+            case OPT_CONNECTION_ID:
+                options.hasConnectionId = true;
+                if (valueLength == 4) {
+                    options.connectionId = PacketHandler.getInt(src, offset);
+                }
+                break;
+            case OPT_STRIPE:
+                options.isStripe = true;
+                if (valueLength == 16) {
+                    options.stripeOffset = PacketHandler.getLong(src, offset);
+                    options.fileSize = PacketHandler.getLong(src, offset + 8);
+                }
+                break;
+            case OPT_PACKET_SIZE:
+                if (valueLength == 4) {
+                    options.packetSize = PacketHandler.getInt(src, offset);
+                }
+                break;
+            case OPT_PARITY:
+                if (valueLength == 4) {
+                    options.parityGroupSize = PacketHandler.getInt(src, offset);
+                }
+                break;
+            case OPT_COMPRESSION:
+                if (valueLength == 1) {
+                    options.compression = src[offset] & 0xFF;
+                }
+                break;
+            case OPT_RESUME:
+                if (valueLength == 8) {
+                    options.isResumable = true;
+                    options.resumeOffset = PacketHandler.getLong(src, offset);
+                } else if (valueLength == 16) {
+                    options.isResumable = true;
+                    options.resumeFileSize = PacketHandler.getLong(src, offset);
+                    options.fingerprint = PacketHandler.getLong(src, offset + 8);
+                }
+                break;
+            case OPT_DELTA:
+                if (valueLength == 4) {
+                    options.isDelta = true;
+                    options.deltaIndex = PacketHandler.getInt(src, offset);
+                } else if (valueLength >= 12) {
+                    options.isDelta = true;
+                    options.deltaBlockLength = PacketHandler.getInt(src, offset);
+                    options.deltaBlockCount =
+                            PacketHandler.getInt(src, offset + 4);
+                    options.deltaIndex = PacketHandler.getInt(src, offset + 8);
+                    options.deltaSignatures = new byte[valueLength - 12];
+                    System.arraycopy(src, offset + 12, options.deltaSignatures,
+                            0, valueLength - 12);
+                }
+                break;
+            case OPT_DIGEST:
+                if (valueLength == 1) {
+                    options.digestAlgorithm = src[offset] & 0xFF;
+                }
+                break;
+            case OPT_BATCH:
+                options.isBatch = true;
+                break;
+            case OPT_FAST_OPEN:
+                // the digest length must leave the rest of the value as data
+                int digestLength = valueLength >= FAST_OPEN_HEADER_LENGTH
+                        ? src[offset + 1] & 0xFF : valueLength;
+                if (digestLength <= valueLength - FAST_OPEN_HEADER_LENGTH) {
+                    int dataStart = offset + FAST_OPEN_HEADER_LENGTH
+                            + digestLength;
+                    options.isFastOpen = true;
+                    options.isFastOpenFin =
+                            (src[offset] & FAST_OPEN_FIN) != 0;
+                    options.fastOpenDigest = Arrays.copyOfRange(src,
+                            offset + FAST_OPEN_HEADER_LENGTH, dataStart);
+                    options.fastOpenData = Arrays.copyOfRange(src,
+                            dataStart, offset + valueLength);
+                }
+                break;
+            default:
+                break;
+            }
+            offset += valueLength;
+        }
+        return options;
+    }
+
+    private static int putHeader(byte[] dst, int offset, int type,
+            int valueLength) {
+        dst[offset] = (byte) type;
+        dst[offset + 1] = (byte) (valueLength >>> 8);
+        dst[offset + 2] = (byte) valueLength;
+        return offset + TLV_HEADER_LENGTH;
+    }
+}
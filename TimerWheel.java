@@ -0,0 +1,164 @@
+/**
+ * This class keeps timers on a hashed wheel: a ring of slots, one per tick,
+ * each holding the timers that expire in it, so that starting, stopping and
+ * expiring a timer takes constant time however many are pending. A timer
+ * further away than one turn of the wheel sits out whole turns in its slot.
+ *
+ * Expired timers are polled rather than called back, so the loop that owns
+ * the wheel handles them in between packets, on its own thread, and nothing
+ * is allocated once the timers exist. The wheel also tells that loop how
+ * long it may block for, which is forever when no timer is pending.
+ * @author Diga W
+ *
+ */
+class TimerWheel {
+
+    /**
+     * A timer that can be started again and again, on one wheel at a time
+     */
+    static class Timer {
+        private long deadline;
+        private Timer previous;
+        private Timer next;
+        private boolean isPending;
+
+        /**
+         * @return true if started and not yet expired or stopped
+         */
+        public boolean isPending() {
+            return isPending;
+        }
+    }
+
+    private final long tickNanos;
+    private final Timer[] slots;
+    private final int mask;
+    private final long origin;
+
+    // ticks before this one have been expired
+    private long currentTick;
+    private int pendingCount;
+
+    /**
+     * @param tickNanos the resolution of the timers
+     * @param slotCount a power of two, ideally covering most timeouts in
+     * one turn
+     * @param now
+     */
+    public TimerWheel(long tickNanos, int slotCount, long now) {
+        this.tickNanos = tickNanos;
+        this.slots = new Timer[slotCount];
+        this.mask = slotCount - 1;
+        this.origin = now;
+    }
+
+    /**
+     * Start a timer, or restart it if it is pending already. It expires no
+     * earlier than the delay, and up to a tick later.
+     * @param timer
+     * @param delayNanos
+     * @param now
+     */
+    public void schedule(Timer timer, long delayNanos, long now) {
+        cancel(timer);
+        // rounded up, so that a timer never fires early
+        long deadline = (now - origin + delayNanos + tickNanos - 1)
+                / tickNanos;
+        timer.deadline = Math.max(deadline, currentTick);
+        int slot = (int) (timer.deadline & mask);
+        timer.next = slots[slot];
+        if (timer.next != null) {
+            timer.next.previous = timer;
+        }
+        slots[slot] = timer;
+        timer.isPending = true;
+        pendingCount++;
+    }
+
+    /**
+     * Stop a timer, if it is pending
+     * @param timer
+     */
+    public void cancel(Timer timer) {
+        if (!timer.isPending) {
+            return;
+        }
+        if (timer.previous != null) {
+            timer.previous.next = timer.next;
+        } else {
+            slots[(int) (timer.deadline & mask)] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.previous = timer.previous;
+        }
+        timer.previous = null;
+        timer.next = null;
+        timer.isPending = false;
+        pendingCount--;
+    }
+
+    /**
+     * Take the next timer that has expired by now
+     * @param now
+     * @return the timer, no longer pending, or null if there is none
+     */
+    public Timer poll(long now) {
+        long nowTick = (now - origin) / tickNanos;
+        while (pendingCount > 0 && currentTick <= nowTick) {
+            for (Timer timer = slots[(int) (currentTick & mask)];
+                    timer != null; timer = timer.next) {
+                if (timer.deadline <= currentTick) {
+                    cancel(timer);
+                    return timer;
+                }
+            }
+            currentTick++;
+        }
+        // with nothing pending there is nothing to walk past
+        if (currentTick <= nowTick) {
+            currentTick = nowTick + 1;
+        }
+        return null;
+    }
+
+    /**
+     * Get how long the owner may block until the next timer is due, in the
+     * form that Selector.select() and DatagramSocket.setSoTimeout() take
+     * @param now
+     * @return 0 if no timer is pending, which both take as forever, and at
+     * least 1 otherwise
+     */
+    public int getWaitMillis(long now) {
+        if (pendingCount == 0) {
+            return 0;
+        }
+        long deadline = getNextDeadline();
+        long waitNanos = origin + deadline * tickNanos - now;
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                (waitNanos + 999999) / 1000000));
+    }
+
+    /**
+     * Find the earliest deadline, looking one turn ahead first, where short
+     * timers are, and only then through every slot
+     * @return
+     */
+    private long getNextDeadline() {
+        for (int i = 0; i < slots.length; i++) {
+            long tick = currentTick + i;
+            for (Timer timer = slots[(int) (tick & mask)]; timer != null;
+                    timer = timer.next) {
+                if (timer.deadline <= tick) {
+                    return timer.deadline;
+                }
+            }
+        }
+        long deadline = Long.MAX_VALUE;
+        for (Timer head : slots) {
+            for (Timer timer = head; timer != null; timer = timer.next) {
+                deadline = Math.min(deadline, timer.deadline);
+            }
+        }
+        return deadline;
+    }
+}
@@ -0,0 +1,557 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * This class benchmarks whole transfers on loopback. For every file size,
+ * loss rate and corruption rate asked for, it starts a FileReceiver, an
+ * UnreliNET that drops and corrupts that share of packets both ways, and a
+ * FileSender, each in a JVM of its own. It then checks that the file
+ * arrived intact and reports one row per transfer as CSV or JSON: the
+ * completion time, goodput, packets sent and resent, and the CPU time of
+ * each process. Kept from run to run, the rows are a baseline for any
+ * change to the transfer.
+ *
+ * Each child JVM runs its program through this class, which writes down
+ * the CPU and wall time the program took as its JVM shuts down, however
+ * that comes about: the sender exits by itself, the receiver once it has
+ * lingered for a lost FIN-ACK, and UnreliNET when it is stopped. The
+ * completion time is the sender's own, so it leaves out JVM startup. The
+ * CPU times are the whole JVM's, startup and JIT compilation included, so
+ * they are for comparing runs rather than to be read on their own.
+ * @author Diga W
+ *
+ */
+class TransferBenchmark {
+
+    private final static String CHILD_FLAG = "-child";
+    private final static String RECEIVED_FILE_NAME = "received.bin";
+
+    // how long to wait for the receiver to linger and exit after the sender
+    private final static int RECEIVER_EXIT_SECS = 10;
+    private final static int STARTUP_TIMEOUT_MS = 10000;
+    private final static int POLL_INTERVAL_MS = 10;
+    private final static int WRITE_BUFFER_LENGTH = 64 * 1024;
+
+    private final static Pattern SENDER_SUMMARY =
+            Pattern.compile("(\\d+) packets sent, (\\d+) of them resent");
+
+    private final static String[] COLUMNS = { "size_bytes", "loss_rate",
+            "corrupt_rate", "run", "status", "completion_ms",
+            "goodput_mbps", "packets_sent", "packets_resent",
+            "sender_cpu_ms", "receiver_cpu_ms", "unreli_cpu_ms" };
+
+    /**
+     * The outcome of one transfer
+     */
+    static class Result {
+        long size;
+        float lossRate;
+        float corruptRate;
+        int run;
+        // OK, CORRUPT, FAILED or TIMEOUT
+        String status;
+        // -1 for anything not known, e.g. after a timeout
+        long completionNanos = -1;
+        long packetsSent = -1;
+        long packetsResent = -1;
+        long senderCpuNanos = -1;
+        long receiverCpuNanos = -1;
+        long unreliCpuNanos = -1;
+
+        /**
+         * @return megabits of file per second, or -1 if not known
+         */
+        double getGoodput() {
+            if (!status.equals("OK") || completionNanos <= 0) {
+                return -1;
+            }
+            return size * 8 * 1000.0 / completionNanos;
+        }
+
+        Object[] getValues() {
+            return new Object[] { size, lossRate, corruptRate, run, status,
+                    toMillis(completionNanos), getGoodput(), packetsSent,
+                    packetsResent, toMillis(senderCpuNanos),
+                    toMillis(receiverCpuNanos), toMillis(unreliCpuNanos) };
+        }
+    }
+
+    long[] sizes = { 100000, 1000000 };
+    float[] lossRates = { 0, 0.01f, 0.05f };
+    float[] corruptRates = { 0, 0.01f };
+    int runCount = 1;
+    int timeoutSecs = 120;
+    String[] senderOptions = {};
+    String[] receiverOptions = {};
+    String[] unreliOptions = {};
+    boolean isJson;
+    String outputFileName;
+
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals(CHILD_FLAG)) {
+            runChild(args);
+            return;
+        }
+
+        TransferBenchmark benchmark = new TransferBenchmark();
+
+        // optional arguments come in "-flag value" pairs
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    printUsageAndExit();
+                }
+                String value = args[i + 1];
+                switch (args[i]) {
+                case "-sizes":
+                    benchmark.sizes = Arrays.stream(value.split(","))
+                            .mapToLong(Long::parseLong).toArray();
+                    break;
+                case "-loss":
+                    benchmark.lossRates = parseRates(value);
+                    break;
+                case "-corrupt":
+                    benchmark.corruptRates = parseRates(value);
+                    break;
+                case "-runs":
+                    benchmark.runCount = Integer.parseInt(value);
+                    break;
+                case "-timeout":
+                    benchmark.timeoutSecs = Integer.parseInt(value);
+                    break;
+                case "-sender":
+                    benchmark.senderOptions = splitOptions(value);
+                    break;
+                case "-receiver":
+                    benchmark.receiverOptions = splitOptions(value);
+                    break;
+                case "-unreli":
+                    benchmark.unreliOptions = splitOptions(value);
+                    break;
+                case "-format":
+                    if (!value.equals("csv") && !value.equals("json")) {
+                        printUsageAndExit();
+                    }
+                    benchmark.isJson = value.equals("json");
+                    break;
+                case "-o":
+                    benchmark.outputFileName = value;
+                    break;
+                default:
+                    printUsageAndExit();
+                }
+            }
+        } catch (NumberFormatException e) {
+            printUsageAndExit();
+        }
+        if (benchmark.runCount < 1 || benchmark.timeoutSecs < 1) {
+            printUsageAndExit();
+        }
+
+        try {
+            List<Result> results = benchmark.run();
+            if (benchmark.outputFileName == null) {
+                benchmark.write(results, System.out);
+            } else {
+                try (PrintStream out = new PrintStream(
+                        benchmark.outputFileName, "UTF-8")) {
+                    benchmark.write(results, out);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void printUsageAndExit() {
+        System.out.println("Usage: java TransferBenchmark "
+                + "[-sizes bytes,...] [-loss rate,...] [-corrupt rate,...] "
+                + "[-runs n] [-timeout secs] [-sender \"options\"] "
+                + "[-receiver \"options\"] [-unreli \"options\"] "
+                + "[-format csv|json] [-o outputFile]");
+        System.exit(1);
+    }
+
+    private static float[] parseRates(String value) {
+        String[] fields = value.split(",");
+        float[] rates = new float[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            rates[i] = Float.parseFloat(fields[i]);
+            if (rates[i] < 0 || rates[i] > 1) {
+                printUsageAndExit();
+            }
+        }
+        return rates;
+    }
+
+    private static String[] splitOptions(String value) {
+        String trimmed = value.trim();
+        return trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+");
+    }
+
+    /**
+     * Transfer every combination of size, loss and corruption rate, as many
+     * times as asked
+     * @return a result per transfer
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    List<Result> run() throws IOException, InterruptedException {
+        List<Result> results = new ArrayList<Result>();
+        for (long size : sizes) {
+            for (float lossRate : lossRates) {
+                for (float corruptRate : corruptRates) {
+                    for (int run = 1; run <= runCount; run++) {
+                        Result result =
+                                transfer(size, lossRate, corruptRate, run);
+                        System.err.println(String.format(Locale.ROOT,
+                                "%d bytes, loss %.3f, corruption %.3f, "
+                                        + "run %d: %s in %d ms",
+                                size, lossRate, corruptRate, run,
+                                result.status,
+                                toMillis(result.completionNanos)));
+                        results.add(result);
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Send a file of random bytes through UnreliNET and see how it went
+     * @param size
+     * @param lossRate of packets both ways
+     * @param corruptRate of packets both ways
+     * @param run
+     * @return
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    Result transfer(long size, float lossRate, float corruptRate, int run)
+            throws IOException, InterruptedException {
+        Result result = new Result();
+        result.size = size;
+        result.lossRate = lossRate;
+        result.corruptRate = corruptRate;
+        result.run = run;
+
+        Path dir = Files.createTempDirectory("transfer");
+        Process receiver = null;
+        Process unreliNet = null;
+        try {
+            Path source = dir.resolve("source.bin");
+            writeRandomFile(source, size, 31 * size + run);
+            int rcvPort = findFreePort();
+            int unreliNetPort = findFreePort();
+
+            List<String> args = new ArrayList<String>();
+            args.add(Integer.toString(rcvPort));
+            args.addAll(Arrays.asList(receiverOptions));
+            receiver = startChild(dir, "FileReceiver", args);
+
+            args = new ArrayList<String>();
+            String corrupt = Float.toString(corruptRate);
+            String loss = Float.toString(lossRate);
+            args.addAll(Arrays.asList(corrupt, corrupt, loss, loss,
+                    Integer.toString(unreliNetPort),
+                    Integer.toString(rcvPort)));
+            args.addAll(Arrays.asList(unreliOptions));
+            unreliNet = startChild(dir, "UnreliNET", args);
+
+            if (!waitUntilListening(receiver, dir, "FileReceiver", rcvPort)
+                    || !waitUntilListening(unreliNet, dir, "UnreliNET",
+                            unreliNetPort)) {
+                result.status = "FAILED";
+                return result;
+            }
+
+            args = new ArrayList<String>();
+            args.addAll(Arrays.asList(source.toString(),
+                    Integer.toString(unreliNetPort), RECEIVED_FILE_NAME));
+            args.addAll(Arrays.asList(senderOptions));
+            Process sender = startChild(dir, "FileSender", args);
+            if (!sender.waitFor(timeoutSecs, TimeUnit.SECONDS)) {
+                sender.destroyForcibly().waitFor();
+                result.status = "TIMEOUT";
+            } else if (sender.exitValue() != 0) {
+                result.status = "FAILED";
+            }
+
+            // the receiver exits by itself once it has lingered, unless it
+            // is a server
+            if (!receiver.waitFor(RECEIVER_EXIT_SECS, TimeUnit.SECONDS)) {
+                stop(receiver);
+            }
+            stop(unreliNet);
+
+            long[] senderStats = readStats(dir, "FileSender");
+            result.senderCpuNanos = senderStats[0];
+            result.completionNanos = result.status == null
+                    ? senderStats[1] : -1;
+            result.receiverCpuNanos = readStats(dir, "FileReceiver")[0];
+            result.unreliCpuNanos = readStats(dir, "UnreliNET")[0];
+            Matcher matcher = SENDER_SUMMARY.matcher(new String(
+                    Files.readAllBytes(dir.resolve("FileSender.out")),
+                    StandardCharsets.UTF_8));
+            if (matcher.find()) {
+                result.packetsSent = Long.parseLong(matcher.group(1));
+                result.packetsResent = Long.parseLong(matcher.group(2));
+            }
+
+            if (result.status == null) {
+                Path received = dir.resolve(RECEIVED_FILE_NAME);
+                result.status = Files.exists(received)
+                        && Files.mismatch(source, received) == -1
+                        ? "OK" : "CORRUPT";
+            }
+            return result;
+        } finally {
+            if (receiver != null) {
+                receiver.destroyForcibly();
+            }
+            if (unreliNet != null) {
+                unreliNet.destroyForcibly();
+            }
+            deleteRecursively(dir);
+        }
+    }
+
+    /**
+     * Write the results, one row each
+     * @param results
+     * @param out
+     */
+    void write(List<Result> results, PrintStream out) {
+        if (!isJson) {
+            out.println(String.join(",", COLUMNS));
+            for (Result result : results) {
+                Object[] values = result.getValues();
+                StringBuilder row = new StringBuilder();
+                for (int i = 0; i < values.length; i++) {
+                    row.append(i > 0 ? "," : "").append(format(values[i]));
+                }
+                out.println(row);
+            }
+            return;
+        }
+        out.println("[");
+        for (int i = 0; i < results.size(); i++) {
+            Object[] values = results.get(i).getValues();
+            StringBuilder row = new StringBuilder("  {");
+            for (int j = 0; j < values.length; j++) {
+                row.append(j > 0 ? ", " : "").append('"').append(COLUMNS[j])
+                        .append("\": ");
+                if (values[j] instanceof String) {
+                    row.append('"').append(values[j]).append('"');
+                } else {
+                    row.append(format(values[j]));
+                }
+            }
+            out.println(row.append(i < results.size() - 1 ? "}," : "}"));
+        }
+        out.println("]");
+    }
+
+    private static String format(Object value) {
+        if (value instanceof Double || value instanceof Float) {
+            return String.format(Locale.ROOT, "%.3f",
+                    ((Number) value).doubleValue());
+        }
+        return value.toString();
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos < 0 ? -1 : nanos / 1000000;
+    }
+
+    /**
+     * Start a program in a JVM of its own, running in the given directory
+     * and writing its output there
+     * @param dir
+     * @param program
+     * @param args
+     * @return
+     * @throws IOException
+     */
+    private static Process startChild(Path dir, String program,
+            List<String> args) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java")
+                .toString());
+        command.add("-cp");
+        command.add(getAbsoluteClassPath());
+        command.add(TransferBenchmark.class.getName());
+        command.add(CHILD_FLAG);
+        command.add(dir.resolve(program + ".stats").toString());
+        command.add(program);
+        command.addAll(args);
+        return new ProcessBuilder(command)
+                .directory(dir.toFile())
+                .redirectOutput(dir.resolve(program + ".out").toFile())
+                .redirectError(dir.resolve(program + ".err").toFile())
+                .start();
+    }
+
+    /**
+     * Get the class path of this JVM with every entry made absolute, since
+     * the children run in directories of their own
+     * @return
+     */
+    private static String getAbsoluteClassPath() {
+        List<String> entries = new ArrayList<String>();
+        for (String entry : System.getProperty("java.class.path")
+                .split(File.pathSeparator)) {
+            entries.add(Paths.get(entry).toAbsolutePath().toString());
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    /**
+     * Run a program in this JVM, the child, and write down its CPU and wall
+     * time as the JVM shuts down
+     * @param args -child, the file for the times, the program and its
+     * arguments
+     */
+    private static void runChild(String[] args) {
+        final File statsFile = new File(args[1]);
+        final long startedAt = System.nanoTime();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            long cpuNanos = ((com.sun.management.OperatingSystemMXBean)
+                    ManagementFactory.getOperatingSystemMXBean())
+                    .getProcessCpuTime();
+            long wallNanos = System.nanoTime() - startedAt;
+            try {
+                Files.write(statsFile.toPath(), (cpuNanos + " " + wallNanos)
+                        .getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                // the row then shows the times as unknown
+            }
+        }));
+        String[] programArgs = Arrays.copyOfRange(args, 3, args.length);
+        switch (args[2]) {
+        case "FileReceiver":
+            FileReceiver.main(programArgs);
+            break;
+        case "FileSender":
+            FileSender.main(programArgs);
+            break;
+        case "UnreliNET":
+            UnreliNET.main(programArgs);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown program " + args[2]);
+        }
+    }
+
+    /**
+     * @param dir
+     * @param program
+     * @return the CPU and wall time of the program, -1 where not known
+     */
+    private static long[] readStats(Path dir, String program) {
+        try {
+            String[] fields = new String(Files.readAllBytes(
+                    dir.resolve(program + ".stats")), StandardCharsets.UTF_8)
+                    .trim().split(" ");
+            return new long[] { Long.parseLong(fields[0]),
+                    Long.parseLong(fields[1]) };
+        } catch (IOException | RuntimeException e) {
+            return new long[] { -1, -1 };
+        }
+    }
+
+    /**
+     * Ask a child to exit, which runs its shutdown hooks, or kill it if it
+     * does not
+     * @param process
+     * @throws InterruptedException
+     */
+    private static void stop(Process process) throws InterruptedException {
+        process.destroy();
+        if (!process.waitFor(RECEIVER_EXIT_SECS, TimeUnit.SECONDS)) {
+            process.destroyForcibly().waitFor();
+        }
+    }
+
+    private static int findFreePort() throws SocketException {
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Wait for a child to bind its port, which is when it is ready, as told
+     * by the line it prints then. Nothing is sent to the port to find out,
+     * as that would count as traffic through the system being measured.
+     * @param process
+     * @param dir
+     * @param program
+     * @param port
+     * @return false if it never did, or exited first
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private static boolean waitUntilListening(Process process, Path dir,
+            String program, int port)
+            throws IOException, InterruptedException {
+        Path out = dir.resolve(program + ".out");
+        String listening = FileReceiver.getListeningMessage(port);
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            if (Files.exists(out) && Files.readAllLines(out,
+                    StandardCharsets.UTF_8).contains(listening)) {
+                return true;
+            }
+            if (!process.isAlive()) {
+                return false;
+            }
+            Thread.sleep(POLL_INTERVAL_MS);
+        }
+        return false;
+    }
+
+    private static void writeRandomFile(Path path, long size, long seed)
+            throws IOException {
+        Random random = new Random(seed);
+        byte[] buffer = new byte[WRITE_BUFFER_LENGTH];
+        try (OutputStream out = new BufferedOutputStream(
+                Files.newOutputStream(path))) {
+            for (long written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(buffer.length,
+                        size - written));
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths
+                    .sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * This class collects the counters and latency histograms of a sender or a
+ * receiver. The threads of a transfer, or of every transfer a receiver
+ * serves, record into one instance without locking, and it reports them
+ * either as a line of key=value pairs on stderr, every interval and once
+ * more at the end, or as an MXBean for a JMX console to poll. Counting
+ * goes on whether or not anything is reported.
+ * @author Diga W
+ *
+ */
+class TransferMetrics implements TransferMetricsMXBean {
+
+    /**
+     * How the metrics are reported
+     */
+    enum Export {
+        NONE, TEXT, JMX
+    }
+
+    public final static int DEFAULT_REPORT_INTERVAL_SECS = 1;
+
+    final LongAdder packetsSent = new LongAdder();
+    final LongAdder packetsResent = new LongAdder();
+    final LongAdder packetsReceived = new LongAdder();
+    final LongAdder packetsCorrupted = new LongAdder();
+    final LongAdder acksSent = new LongAdder();
+    final LongAdder acksReceived = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+
+    // payload bytes sent for the first time, and written to the file
+    final LongAdder bytesSent = new LongAdder();
+    final LongAdder bytesWritten = new LongAdder();
+
+    final LatencyHistogram rtt = new LatencyHistogram();
+    final LatencyHistogram ackDelay = new LatencyHistogram();
+    final LatencyHistogram writeLatency = new LatencyHistogram();
+
+    private final String role;
+    private final Stopwatch stopwatch = new Stopwatch();
+    private Export export = Export.NONE;
+    private ScheduledExecutorService reporter;
+
+    // packets sent and received as of the last periodic report
+    private long reportedPackets = -1;
+
+    /**
+     * @param role sender or receiver, which the reports are tagged with
+     */
+    public TransferMetrics(String role) {
+        this.role = role;
+        stopwatch.start();
+    }
+
+    /**
+     * Start reporting, and the clock for the rates reported
+     * @param export
+     * @param intervalSecs between text reports
+     */
+    public void start(Export export, int intervalSecs) {
+        this.export = export;
+        stopwatch.start();
+        if (export == Export.TEXT) {
+            reporter = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "TransferMetrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleAtFixedRate(this::reportIfChanged, intervalSecs,
+                    intervalSecs, TimeUnit.SECONDS);
+        } else if (export == Export.JMX) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                        new ObjectName("filetransfer:type=TransferMetrics,role="
+                                + role));
+            } catch (JMException e) {
+                // monitoring is not worth failing the transfer over
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Restart the clock for the rates reported, e.g. once a receiver is
+     * past waiting for the SYN
+     */
+    public void restartClock() {
+        stopwatch.start();
+    }
+
+    /**
+     * Stop the clock and the periodic reports at the end of the transfer,
+     * and report the totals
+     */
+    public void finish() {
+        stopwatch.stop();
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
+        report();
+    }
+
+    /**
+     * Report everything so far as a line of text, if that is how the
+     * metrics are exported
+     */
+    public void report() {
+        if (export == Export.TEXT) {
+            System.err.println(toString());
+        }
+    }
+
+    /**
+     * Count a packet sent, and whether it was sent before
+     * @param isResent
+     */
+    public void onPacketSent(boolean isResent) {
+        packetsSent.increment();
+        if (isResent) {
+            packetsResent.increment();
+        }
+    }
+
+    /**
+     * Count an ACK sent
+     * @param delayNanos how long the oldest data it covers waited for it,
+     * or negative if there was none
+     */
+    public void onAckSent(long delayNanos) {
+        acksSent.increment();
+        if (delayNanos >= 0) {
+            ackDelay.record(delayNanos);
+        }
+    }
+
+    /**
+     * Count a write to the output file
+     * @param length
+     * @param nanos how long the write took
+     */
+    public void onWrite(int length, long nanos) {
+        bytesWritten.add(length);
+        writeLatency.record(nanos);
+    }
+
+    private synchronized void reportIfChanged() {
+        long packets = packetsSent.sum() + packetsReceived.sum();
+        if (packets != reportedPackets) {
+            reportedPackets = packets;
+            report();
+        }
+    }
+
+    @Override
+    public String toString() {
+        long elapsedNanos = stopwatch.getElapsedNanos();
+        long bytes = Math.max(bytesSent.sum(), bytesWritten.sum());
+        StringBuilder sb = new StringBuilder(role);
+        sb.append(" elapsed_ms=").append(elapsedNanos / 1000000)
+                .append(" packets_sent=").append(packetsSent.sum())
+                .append(" packets_resent=").append(packetsResent.sum())
+                .append(" packets_received=").append(packetsReceived.sum())
+                .append(" packets_corrupted=").append(packetsCorrupted.sum())
+                .append(" acks_sent=").append(acksSent.sum())
+                .append(" acks_received=").append(acksReceived.sum())
+                .append(" timeouts=").append(timeouts.sum())
+                .append(" bytes_sent=").append(bytesSent.sum())
+                .append(" bytes_written=").append(bytesWritten.sum())
+                .append(String.format(" mbps=%.2f", elapsedNanos == 0 ? 0.0
+                        : bytes * 8000.0 / elapsedNanos));
+        appendTo(sb, "rtt", rtt.snapshot());
+        appendTo(sb, "ack_delay", ackDelay.snapshot());
+        appendTo(sb, "write", writeLatency.snapshot());
+        return sb.toString();
+    }
+
+    private static void appendTo(StringBuilder sb, String name,
+            LatencyHistogram.Snapshot snapshot) {
+        sb.append(' ').append(name).append("_count=").append(snapshot.count)
+                .append(' ').append(name).append("_mean_us=")
+                .append(snapshot.mean / 1000)
+                .append(' ').append(name).append("_p50_us=")
+                .append(snapshot.p50 / 1000)
+                .append(' ').append(name).append("_p90_us=")
+                .append(snapshot.p90 / 1000)
+                .append(' ').append(name).append("_p99_us=")
+                .append(snapshot.p99 / 1000)
+                .append(' ').append(name).append("_max_us=")
+                .append(snapshot.max / 1000);
+    }
+
+    private static long[] toMicros(LatencyHistogram.Snapshot snapshot) {
+        return new long[] { snapshot.count, snapshot.mean / 1000,
+                snapshot.p50 / 1000, snapshot.p90 / 1000,
+                snapshot.p99 / 1000, snapshot.max / 1000 };
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        return stopwatch.getElapsedTime();
+    }
+
+    @Override
+    public long getPacketsSent() {
+        return packetsSent.sum();
+    }
+
+    @Override
+    public long getPacketsResent() {
+        return packetsResent.sum();
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return packetsReceived.sum();
+    }
+
+    @Override
+    public long getPacketsCorrupted() {
+        return packetsCorrupted.sum();
+    }
+
+    @Override
+    public long getAcksSent() {
+        return acksSent.sum();
+    }
+
+    @Override
+    public long getAcksReceived() {
+        return acksReceived.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long[] getRttMicros() {
+        return toMicros(rtt.snapshot());
+    }
+
+    @Override
+    public long[] getAckDelayMicros() {
+        return toMicros(ackDelay.snapshot());
+    }
+
+    @Override
+    public long[] getWriteLatencyMicros() {
+        return toMicros(writeLatency.snapshot());
+    }
+}
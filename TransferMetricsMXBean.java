@@ -0,0 +1,47 @@
+/**
+ * This interface is what TransferMetrics shows over JMX, as the attributes
+ * of filetransfer:type=TransferMetrics,role=sender or role=receiver.
+ * Everything covers the transfer so far or, for a receiver serving many,
+ * all of them since it started. Latencies are in microseconds.
+ * @author Diga W
+ *
+ */
+public interface TransferMetricsMXBean {
+
+    long getElapsedMillis();
+
+    long getPacketsSent();
+
+    long getPacketsResent();
+
+    long getPacketsReceived();
+
+    long getPacketsCorrupted();
+
+    long getAcksSent();
+
+    long getAcksReceived();
+
+    long getTimeouts();
+
+    long getBytesSent();
+
+    long getBytesWritten();
+
+    /**
+     * @return count, mean, 50th, 90th and 99th percentile and maximum of
+     * the round trip times of data packets
+     */
+    long[] getRttMicros();
+
+    /**
+     * @return the same for how long data that arrived in order waited for
+     * its ACK
+     */
+    long[] getAckDelayMicros();
+
+    /**
+     * @return the same for the writes to the output file
+     */
+    long[] getWriteLatencyMicros();
+}
@@ -4,13 +4,19 @@
 // and receiver programs. Command to compile all three: javac *.java
 
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.*;
 
 public class UnreliNET {
     
     static int buf_size = 1500;
-    int returnPort_sk1;
-    private DatagramSocket sk1, sk2;
+    // how often the packet counts are printed, in place of a line per packet
+    static long report_interval_ms = 1000;
+    // the sender's address, from its latest packet: written by the data
+    // thread and read by the ack thread
+    volatile SocketAddress returnAddr_sk1;
+    private DatagramChannel sk1, sk2;
     int port_sk1, port_sk2;
     
     // corruption/loss rate
@@ -19,51 +25,54 @@ public class UnreliNET {
     static float data_corrupt_pct;
     static float ack_corrupt_pct;
     
+    // delay, jitter, reordering, bandwidth and burst loss, seeded so that
+    // a run can be repeated
+    private ImpairedLink data_link, ack_link;
+    
     // define thread which is used to handle one-direction of communication
     public class UnreliThreadProcessData extends Thread {
         
-        private Random rnd = new Random();
-        private Random rnd_byte = new Random();
-        int corruptionCounter = 0;
-        int dropCounter = 0;
+        // written by this thread only, read by the report thread
+        volatile long receiveCounter = 0;
+        volatile long corruptionCounter = 0;
+        volatile long dropCounter = 0;
+        volatile long queueDropCounter = 0;
         
         public void run() {
             try {
-                byte[] in_data = new byte[buf_size];
-                InetAddress dst_addr = InetAddress.getByName("127.0.0.1");
-                DatagramPacket in_pkt = new DatagramPacket(in_data, in_data.length);
+                ByteBuffer in_buf = ByteBuffer.allocateDirect(buf_size);
+                SocketAddress dst_addr = new InetSocketAddress("127.0.0.1", port_sk2);
                 
                 while (true) {
                     // read data from the incoming socket
-                    sk1.receive(in_pkt);
-                    returnPort_sk1 = in_pkt.getPort();
+                    in_buf.clear();
+                    SocketAddress src_addr = sk1.receive(in_buf);
+                    if (!src_addr.equals(returnAddr_sk1)) {
+                        returnAddr_sk1 = src_addr;
+                    }
+                    in_buf.flip();
+                    receiveCounter++;
                     
                     // check the length of the packet
-                    if (in_pkt.getLength() > 1000) {
+                    if (in_buf.remaining() > 1000) {
                         System.err.println("Error: packet length is more than 1000 bytes");
                         System.exit(-1);
                     }
                     
-                    // decide if to drop the packet or not
-                    if (rnd.nextFloat() <= data_loss_pct) {
-                        dropCounter++;
-                        System.out.println(dropCounter + " Packet dropped");
-                        continue;
-                    }
-                    
-                    // decide if to corrupt the packet or not
-                    if (rnd.nextFloat() <= data_corrupt_pct) {
-                        for (int i = 0; i < in_pkt.getLength(); ++i)
-                            if (rnd_byte.nextFloat() <= 0.3)  //decide if to corrupt a byte
-                                in_data[i] = (byte) ((in_data[i] + 1) % 10);
+                    // the link drops, corrupts, queues and delays the
+                    // packet, then writes it to the outgoing socket
+                    int verdict = data_link.forward(in_buf, dst_addr);
+                    if ((verdict & ImpairedLink.CORRUPTED) != 0) {
                         corruptionCounter++;
-                        System.out.println(corruptionCounter + " Packet corrupted");
                     }
-                    
-                    // write data to the outgoing socket
-                    DatagramPacket out_pkt =
-                        new DatagramPacket(in_data, in_pkt.getLength(), dst_addr, port_sk2);
-                    sk2.send(out_pkt);
+                    switch (verdict & ~ImpairedLink.CORRUPTED) {
+                    case ImpairedLink.LOST:
+                        dropCounter++;
+                        break;
+                    case ImpairedLink.QUEUE_FULL:
+                        queueDropCounter++;
+                        break;
+                    }
                 }
                 
             } catch (Exception e) {
@@ -75,47 +84,49 @@ public class UnreliNET {
     
     public class UnreliThreadProcessAck extends Thread {
         
-        private Random rnd = new Random();
-        private Random rnd_byte = new Random();
-        int ackcorruptionCounter = 0;
-        int ackdropCounter = 0;
+        // written by this thread only, read by the report thread
+        volatile long ackreceiveCounter = 0;
+        volatile long ackcorruptionCounter = 0;
+        volatile long ackdropCounter = 0;
+        volatile long ackqueueDropCounter = 0;
         
         public void run() {
             try {
-                byte[] in_data = new byte[buf_size];
-                InetAddress dst_addr = InetAddress.getByName("127.0.0.1");
-                DatagramPacket in_pkt = new DatagramPacket(in_data, in_data.length);
+                ByteBuffer in_buf = ByteBuffer.allocateDirect(buf_size);
                 
                 while (true) {
                     // read data from the incoming socket
-                    sk2.receive(in_pkt);
+                    in_buf.clear();
+                    sk2.receive(in_buf);
+                    in_buf.flip();
+                    ackreceiveCounter++;
                     
                     // check the length of the packet
-                    if (in_pkt.getLength() > 1000) {
+                    if (in_buf.remaining() > 1000) {
                         System.err.println("Error: packet length is more than 1000 bytes");
                         System.exit(-1);
                     }
                     
-                    // decide if to drop the packet or not
-                    if (rnd.nextFloat() <= ack_loss_pct) {
-                        ackdropCounter++;
-                        System.out.println(ackdropCounter + " ACK/NAK dropped");
+                    // nowhere to send it before the sender's first packet
+                    SocketAddress dst_addr = returnAddr_sk1;
+                    if (dst_addr == null) {
                         continue;
                     }
                     
-                    // decide if to corrupt the packet or not
-                    if (rnd.nextFloat() <= ack_corrupt_pct) {
-                        for (int i = 0; i < in_pkt.getLength(); ++i)
-                            if (rnd_byte.nextFloat() <= 0.3) //decide if to corrupt a byte
-                                in_data[i] = (byte) ((in_data[i] + 1) % 10);
+                    // the link drops, corrupts, queues and delays the
+                    // packet, then writes it to the outgoing socket
+                    int verdict = ack_link.forward(in_buf, dst_addr);
+                    if ((verdict & ImpairedLink.CORRUPTED) != 0) {
                         ackcorruptionCounter++;
-                        System.out.println(ackcorruptionCounter + " ACK/NAK corrupted");
                     }
-                    
-                    // write data to the outgoing socket
-                    DatagramPacket out_pkt =
-                        new DatagramPacket(in_data, in_pkt.getLength(), dst_addr, returnPort_sk1);
-                    sk1.send(out_pkt);
+                    switch (verdict & ~ImpairedLink.CORRUPTED) {
+                    case ImpairedLink.LOST:
+                        ackdropCounter++;
+                        break;
+                    case ImpairedLink.QUEUE_FULL:
+                        ackqueueDropCounter++;
+                        break;
+                    }
                 }
                 
             } catch (Exception e) {
@@ -125,15 +136,81 @@ public class UnreliNET {
         }
     }
     
+    // define thread which prints the packet counts of both directions
+    // every report_interval_ms while packets flow, and once more at exit
+    public class UnreliThreadReport extends Thread {
+        
+        private final UnreliThreadProcessData data;
+        private final UnreliThreadProcessAck ack;
+        private long last_time = System.nanoTime();
+        private long last_received = 0;
+        private long last_ackreceived = 0;
+        
+        public UnreliThreadReport(UnreliThreadProcessData data, UnreliThreadProcessAck ack) {
+            this.data = data;
+            this.ack = ack;
+            setDaemon(true);
+        }
+        
+        public void run() {
+            try {
+                while (true) {
+                    Thread.sleep(report_interval_ms);
+                    report();
+                }
+            } catch (InterruptedException e) {
+                // the program is exiting
+            }
+        }
+        
+        synchronized void report() {
+            long now = System.nanoTime();
+            long received = data.receiveCounter;
+            long ackreceived = ack.ackreceiveCounter;
+            if (received == last_received && ackreceived == last_ackreceived) {
+                return;
+            }
+            double secs = (now - last_time) / 1e9;
+            System.out.println("data: " + received + " received ("
+                                   + Math.round((received - last_received) / secs) + " pkt/s), "
+                                   + data.dropCounter + " dropped, "
+                                   + data.queueDropCounter + " dropped at full queue, "
+                                   + data.corruptionCounter + " corrupted"
+                                   + "\nack/nak: " + ackreceived + " received ("
+                                   + Math.round((ackreceived - last_ackreceived) / secs) + " pkt/s), "
+                                   + ack.ackdropCounter + " dropped, "
+                                   + ack.ackqueueDropCounter + " dropped at full queue, "
+                                   + ack.ackcorruptionCounter + " corrupted");
+            last_time = now;
+            last_received = received;
+            last_ackreceived = ackreceived;
+        }
+    }
+    
     public UnreliNET(float data_corrupt_rate, float ack_corrupt_rate,
-                     float data_loss_rate, float ack_loss_rate, int unreliNetPort, int rcvPort) {
+                     float data_loss_rate, float ack_loss_rate, int unreliNetPort, int rcvPort,
+                     ImpairedLink.Settings settings) {
         
         System.out.println("unreliNetPort = " + unreliNetPort
                                + "\nrcvPort = " + rcvPort 
                                + "\ndata corruption rate = " + data_corrupt_rate
                                + "\nack/nak corruption rate = " + ack_corrupt_rate
                                + "\ndata loss rate = " + data_loss_rate
-                               + "\nack/nak loss rate = " + ack_loss_rate);
+                               + "\nack/nak loss rate = " + ack_loss_rate
+                               + "\ndelay = " + settings.delayNanos / 1000000.0 + " ms"
+                               + "\njitter = " + settings.jitterNanos / 1000000.0 + " ms"
+                               + "\nreorder rate = " + settings.reorderRate
+                               + "\nrate = " + (settings.rateBytesPerSec > 0
+                                                  ? settings.rateBytesPerSec + " bytes/s, burst = "
+                                                    + settings.burstBytes + " bytes, queue = "
+                                                    + settings.queueLimit + " packets"
+                                                  : "unlimited")
+                               + "\nburst loss = " + (settings.burstEnterRate > 0
+                                                        ? settings.burstEnterRate + " in, "
+                                                          + settings.burstExitRate + " out, "
+                                                          + settings.burstLossRate + " lost"
+                                                        : "off")
+                               + "\nseed = " + settings.seed);
         
         try {
             // Create socket sk1 and sk2
@@ -143,12 +220,21 @@ public class UnreliNET {
             data_loss_pct = data_loss_rate;
             ack_loss_pct = ack_loss_rate;
             
-            sk1 = new DatagramSocket(unreliNetPort);
-            sk2 = new DatagramSocket();
+            sk1 = DatagramChannel.open().bind(new InetSocketAddress(unreliNetPort));
+            sk2 = DatagramChannel.open().bind(null);
+            System.out.println(FileReceiver.getListeningMessage(unreliNetPort));
             
             port_sk1 = unreliNetPort;
             port_sk2 = rcvPort;
             
+            // each direction draws from its own sequence of the seed
+            data_link = new ImpairedLink(settings, settings.seed, data_loss_rate,
+                                         data_corrupt_rate, sk2, buf_size);
+            ack_link = new ImpairedLink(settings, settings.seed + 1, ack_loss_rate,
+                                        ack_corrupt_rate, sk1, buf_size);
+            data_link.start();
+            ack_link.start();
+            
             // create threads to process sender's incoming data
             UnreliThreadProcessData th1 = new UnreliThreadProcessData();
             th1.start();
@@ -156,6 +242,15 @@ public class UnreliNET {
             // create threads to process receiver's incoming data
             UnreliThreadProcessAck th2 = new UnreliThreadProcessAck();
             th2.start();
+            
+            // create thread to print the counts, and print them at exit
+            final UnreliThreadReport th3 = new UnreliThreadReport(th1, th2);
+            th3.start();
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    th3.report();
+                }
+            });
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(-1);
@@ -163,15 +258,73 @@ public class UnreliNET {
     }
     
     public static void main(String[] args) {
-        // parse parameters
-        if (args.length != 6) {
-            System.err.println("Usage: java UnreliNET <P_DATA_CORRUPT> <P_ACK_CORRUPT> " +
-                               "<P_DATA_LOSS> <P_ACK_LOSS> <unreliNetPort> <rcvPort>");
-            System.exit(-1);
-        } else {
-            new UnreliNET(Float.parseFloat(args[0]), Float.parseFloat(args[1]),
-                          Float.parseFloat(args[2]), Float.parseFloat(args[3]),
-                          Integer.parseInt(args[4]), Integer.parseInt(args[5]) );
+        // parse parameters, optional ones in "-flag value" pairs after the
+        // six required ones
+        if (args.length < 6 || args.length % 2 != 0) {
+            printUsageAndExit();
+        }
+        ImpairedLink.Settings settings = new ImpairedLink.Settings();
+        settings.seed = new Random().nextLong();
+        try {
+            for (int i = 6; i < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                case "-seed":
+                    settings.seed = Long.parseLong(value);
+                    break;
+                case "-delay":
+                    settings.delayNanos = (long) (Double.parseDouble(value) * 1000000);
+                    break;
+                case "-jitter":
+                    settings.jitterNanos = (long) (Double.parseDouble(value) * 1000000);
+                    break;
+                case "-reorder":
+                    settings.reorderRate = Float.parseFloat(value);
+                    break;
+                case "-rate":
+                    settings.rateBytesPerSec = Long.parseLong(value);
+                    break;
+                case "-burst":
+                    settings.burstBytes = Long.parseLong(value);
+                    break;
+                case "-queue":
+                    settings.queueLimit = Integer.parseInt(value);
+                    break;
+                case "-ge":
+                    // P(good to bad),P(bad to good)[,P(loss when bad)]
+                    String[] rates = value.split(",");
+                    if (rates.length < 2 || rates.length > 3) {
+                        printUsageAndExit();
+                    }
+                    settings.burstEnterRate = Float.parseFloat(rates[0]);
+                    settings.burstExitRate = Float.parseFloat(rates[1]);
+                    if (rates.length == 3) {
+                        settings.burstLossRate = Float.parseFloat(rates[2]);
+                    }
+                    break;
+                default:
+                    printUsageAndExit();
+                }
+            }
+        } catch (NumberFormatException e) {
+            printUsageAndExit();
+        }
+        if (settings.delayNanos < 0 || settings.jitterNanos < 0
+                || settings.rateBytesPerSec < 0 || settings.burstBytes < 0
+                || settings.queueLimit < 1 || settings.reorderRate < 0) {
+            printUsageAndExit();
         }
+        new UnreliNET(Float.parseFloat(args[0]), Float.parseFloat(args[1]),
+                      Float.parseFloat(args[2]), Float.parseFloat(args[3]),
+                      Integer.parseInt(args[4]), Integer.parseInt(args[5]), settings);
+    }
+    
+    private static void printUsageAndExit() {
+        System.err.println("Usage: java UnreliNET <P_DATA_CORRUPT> <P_ACK_CORRUPT> " +
+                           "<P_DATA_LOSS> <P_ACK_LOSS> <unreliNetPort> <rcvPort> " +
+                           "[-seed n] [-delay ms] [-jitter ms] [-reorder p] " +
+                           "[-rate bytesPerSec] [-burst bytes] [-queue packets] " +
+                           "[-ge pEnter,pExit[,pLoss]]");
+        System.exit(-1);
     }
 }
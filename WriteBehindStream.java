@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class buffers writes to a stream and performs them on a background
+ * thread, so that a slow disk does not hold up the thread receiving
+ * packets. The buffer is a fixed set of chunks allocated up front, which
+ * caps its memory. A receiver should only accept as much data as
+ * getFreeSpace() reports, and advertise that as its window; a write that
+ * does not fit waits for the disk.
+ * @author Diga W
+ *
+ */
+class WriteBehindStream extends OutputStream {
+
+    private final static int CHUNK_COUNT = 4;
+
+    /**
+     * A buffer being filled, or waiting to be written
+     */
+    private static class Chunk {
+        final byte[] data;
+        int length;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+    private final OutputStream out;
+    private final FileDigest digest;
+    private final TransferMetrics metrics;
+    private final int chunkSize;
+    private final ArrayBlockingQueue<Chunk> freeChunks =
+            new ArrayBlockingQueue<Chunk>(CHUNK_COUNT);
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private Chunk current;
+    private volatile IOException failure;
+
+    // bytes handed to the underlying stream so far, by the writer thread
+    private volatile long writtenCount;
+
+    /**
+     * @param out
+     * @param capacity total bytes the buffer may hold
+     */
+    public WriteBehindStream(OutputStream out, int capacity) {
+        this(out, capacity, null);
+    }
+
+    /**
+     * @param out
+     * @param capacity total bytes the buffer may hold
+     * @param digest to fold the bytes into as they are written, off the
+     * receiving thread, or null; complete once flush() returns
+     */
+    public WriteBehindStream(OutputStream out, int capacity,
+            FileDigest digest) {
+        this(out, capacity, digest, null);
+    }
+
+    /**
+     * @param out
+     * @param capacity total bytes the buffer may hold
+     * @param digest to fold the bytes into as they are written, or null
+     * @param metrics to time each write of a chunk in, or null
+     */
+    public WriteBehindStream(OutputStream out, int capacity,
+            FileDigest digest, TransferMetrics metrics) {
+        this.out = out;
+        this.digest = digest;
+        this.metrics = metrics;
+        this.chunkSize = Math.max(PacketHandler.MAX_PAYLOAD_LENGTH,
+                capacity / CHUNK_COUNT);
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            freeChunks.add(new Chunk(chunkSize));
+        }
+    }
+
+    /**
+     * Get how many bytes can be written without waiting for the disk
+     * @return
+     */
+    public int getFreeSpace() {
+        int free = freeChunks.size() * chunkSize;
+        if (current != null) {
+            free += chunkSize - current.length;
+        }
+        return free;
+    }
+
+    /**
+     * Get how many bytes have been written to the underlying stream, as
+     * opposed to just buffered
+     * @return
+     */
+    public long getWrittenCount() {
+        return writtenCount;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] src, int offset, int length) throws IOException {
+        checkFailure();
+        while (length > 0) {
+            if (current == null) {
+                try {
+                    current = freeChunks.take();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                current.length = 0;
+            }
+            int count = Math.min(length, chunkSize - current.length);
+            System.arraycopy(src, offset, current.data, current.length, count);
+            current.length += count;
+            offset += count;
+            length -= count;
+            if (current.length == chunkSize) {
+                submitCurrent();
+            }
+        }
+    }
+
+    /**
+     * Write out everything buffered so far and wait until it is done
+     */
+    @Override
+    public void flush() throws IOException {
+        submitCurrent();
+        try {
+            // the writer runs tasks in order, so this comes last
+            writer.submit(() -> {
+                out.flush();
+                return null;
+            }).get();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            failure = e.getCause() instanceof IOException
+                    ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        checkFailure();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            writer.shutdown();
+            out.close();
+        }
+    }
+
+    private void submitCurrent() {
+        if (current == null || current.length == 0) {
+            return;
+        }
+        Chunk chunk = current;
+        current = null;
+        writer.execute(() -> {
+            try {
+                if (failure == null) {
+                    long startedAt = System.nanoTime();
+                    out.write(chunk.data, 0, chunk.length);
+                    if (metrics != null) {
+                        metrics.onWrite(chunk.length,
+                                System.nanoTime() - startedAt);
+                    }
+                    if (digest != null) {
+                        digest.update(chunk.data, 0, chunk.length);
+                    }
+                    writtenCount += chunk.length;
+                }
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                freeChunks.add(chunk);
+            }
+        });
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
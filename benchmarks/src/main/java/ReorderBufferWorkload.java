@@ -0,0 +1,64 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import bench.ReorderWorkload;
+
+/**
+ * This class does the work of the reorder benchmarks with ReorderBuffer,
+ * from the default package where it is. Payloads are taken from a real
+ * packet past its header, as the receiver takes them, and written to a
+ * stream that discards them, so that only the buffer's own work is timed.
+ * @author Diga W
+ *
+ */
+public class ReorderBufferWorkload implements ReorderWorkload {
+
+    private final OutputStream out = OutputStream.nullOutputStream();
+    private ReorderBuffer buffer;
+    private byte[] packet;
+    private int dataOffset;
+    private int dataLength;
+    private int depth;
+    private int[] sackBlocks;
+    private long ackNo;
+
+    @Override
+    public void setUp(int depth) {
+        PacketHandler handler = new PacketHandler();
+        this.depth = depth;
+        dataLength = handler.getMaxPayloadLength();
+        byte[] data = new byte[dataLength];
+        new Random(depth).nextBytes(data);
+        packet = handler.createOutgoingPacket(data, dataLength, 0);
+        dataOffset = handler.getHeaderLength();
+        // room for the packets after the gap, as FileReceiver sizes it
+        buffer = new ReorderBuffer((depth + 1) * dataLength);
+        sackBlocks = new int[2 * PacketHandler.MAX_SACK_BLOCKS];
+        ackNo = 0;
+    }
+
+    @Override
+    public long bufferAndDrain() throws IOException {
+        int blockCount = 0;
+        for (int i = 1; i <= depth; i++) {
+            buffer.put(ackNo + (long) i * dataLength, packet, dataOffset,
+                    dataLength, ackNo);
+            blockCount += buffer.getSackBlocks(sackBlocks);
+        }
+        out.write(packet, dataOffset, dataLength);
+        ackNo = buffer.drainTo(ackNo + dataLength, out);
+        return ackNo + blockCount;
+    }
+
+    @Override
+    public long markAndAdvance() {
+        int blockCount = 0;
+        for (int i = 1; i <= depth; i++) {
+            buffer.mark(ackNo + (long) i * dataLength, dataLength, ackNo);
+            blockCount += buffer.getSackBlocks(sackBlocks);
+        }
+        ackNo = buffer.advance(ackNo + dataLength);
+        return ackNo + blockCount;
+    }
+}
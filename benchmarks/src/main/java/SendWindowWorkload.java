@@ -0,0 +1,152 @@
+import java.net.InetAddress;
+import java.util.Random;
+
+import bench.WindowWorkload;
+
+/**
+ * This class does the work of the window benchmarks with SendWindow, from
+ * the default package where it is. The scans over the window are the
+ * sender's own, from FileSender, less the sockets: a packet counts as
+ * transmitted once it is encoded and its timer set, on a clock of its own
+ * that moves a microsecond per packet sent.
+ * @author Diga W
+ *
+ */
+public class SendWindowWorkload implements WindowWorkload {
+
+    private final static long RTO_NANOS = 200000000L;
+    private final static long SEND_INTERVAL_NANOS = 1000L;
+
+    // so that the sequence numbers soon wrap around
+    private final static int INITIAL_SEQ_NO = Integer.MAX_VALUE - 1000000;
+
+    private PacketHandler handler;
+    private SendWindow window;
+    private byte[] data;
+    private int nextSeqNo;
+    private long now;
+
+    @Override
+    public void setUp(int windowSize) {
+        handler = new PacketHandler();
+        window = new SendWindow(windowSize, handler.getPacketSize(),
+                InetAddress.getLoopbackAddress(), 9);
+        data = new byte[handler.getMaxPayloadLength()];
+        new Random(windowSize).nextBytes(data);
+        nextSeqNo = INITIAL_SEQ_NO;
+        while (window.size() < window.capacity()) {
+            sendNext();
+        }
+    }
+
+    @Override
+    public int slide() {
+        window.removeFirst();
+        sendNext();
+        return nextSeqNo;
+    }
+
+    @Override
+    public long nextDeadline() {
+        long deadline = Long.MAX_VALUE;
+        for (int i = 0; i < window.size(); i++) {
+            SendWindow.Segment segment = window.get(i);
+            if (!segment.isSacked && !segment.isLost) {
+                deadline = Math.min(deadline, segment.deadline);
+            }
+        }
+        return deadline;
+    }
+
+    @Override
+    public int recoverLoss() {
+        int start = window.get(Math.min(1, window.size() - 1)).seqNo;
+        int count = 0;
+        for (int i = 1; i < window.size(); i++) {
+            count += markSacked(start, window.get(i).getEnd());
+        }
+
+        now = window.first().deadline;
+        markExpiredLost();
+        SendWindow.Segment lost;
+        while ((lost = window.firstLost()) != null) {
+            window.markLost(lost, false);
+            transmit(lost);
+        }
+
+        int ackNo = window.get(window.size() - 1).getEnd();
+        while (!window.isEmpty() && PacketHandler.compareSeqNo(ackNo,
+                window.first().getEnd()) >= 0) {
+            window.removeFirst();
+        }
+        while (window.size() < window.capacity()) {
+            sendNext();
+        }
+        return count;
+    }
+
+    /**
+     * Encode the next packet into the free slot and send it
+     */
+    private void sendNext() {
+        SendWindow.Segment segment = window.nextFree();
+        int packetLength = handler.encode(segment.packet, data, 0,
+                data.length, nextSeqNo, 0, 0);
+        segment.reset(nextSeqNo, data.length, packetLength);
+        transmit(segment);
+        window.append();
+        nextSeqNo += data.length;
+    }
+
+    /**
+     * Restart a segment's timer, as SendWindow.Segment.transmit() does once
+     * the packet is sent
+     * @param segment
+     */
+    private void transmit(SendWindow.Segment segment) {
+        now += SEND_INTERVAL_NANOS;
+        segment.sentAt = now;
+        segment.deadline = now + RTO_NANOS;
+        segment.transmitCount++;
+    }
+
+    /**
+     * Mark the segments inside a SACK block, as FileSender.markSacked()
+     * does, less the RTT samples
+     * @param start
+     * @param end
+     * @return the number of segments newly marked
+     */
+    private int markSacked(int start, int end) {
+        if (window.isEmpty()
+                || PacketHandler.compareSeqNo(start, window.first().seqNo) < 0
+                || PacketHandler.compareSeqNo(end, start) <= 0
+                || PacketHandler.compareSeqNo(
+                        window.get(window.size() - 1).getEnd(), end) < 0) {
+            return 0;
+        }
+        int count = 0;
+        for (int i = 0; i < window.size(); i++) {
+            SendWindow.Segment segment = window.get(i);
+            if (PacketHandler.compareSeqNo(segment.seqNo, start) >= 0
+                    && PacketHandler.compareSeqNo(end, segment.getEnd()) >= 0
+                    && window.markSacked(segment)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Mark the segments whose timer expired as lost, as the selective
+     * repeat sender's FileSender.markExpiredLost() does
+     */
+    private void markExpiredLost() {
+        for (int i = 0; i < window.size(); i++) {
+            SendWindow.Segment segment = window.get(i);
+            if (!segment.isSacked && segment.deadline <= now) {
+                window.markLost(segment, true);
+            }
+        }
+    }
+}
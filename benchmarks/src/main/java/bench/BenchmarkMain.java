@@ -0,0 +1,48 @@
+package bench;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * This class runs the benchmarks like JMH's own main, taking the same
+ * options, but unless told otherwise keeps the results as JSON in
+ * jmh-result.json, to compare against later runs. The GC profiler, for the
+ * bytes allocated per operation, is only added when asked for with
+ * "-prof gc", since it perturbs the times it is reported next to.
+ * @author Diga W
+ *
+ */
+public class BenchmarkMain {
+
+    private final static String RESULT_FILE = "jmh-result.json";
+
+    public static void main(String[] args)
+            throws CommandLineOptionException, IOException, RunnerException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp()) {
+            commandLine.showHelp();
+            return;
+        }
+        if (commandLine.shouldList() || commandLine.shouldListWithParams()
+                || commandLine.shouldListProfilers()
+                || commandLine.shouldListResultFormats()) {
+            // nothing to run, so leave it all to JMH
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .parent(commandLine);
+        if (!commandLine.getResultFormat().hasValue()
+                && !commandLine.getResult().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON).result(RESULT_FILE);
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,96 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class benchmarks encoding, checksum verification, header reads and
+ * payload extraction of PacketHandler, in both packet formats, from an
+ * empty payload up to the largest one the original format carries.
+ * @author Diga W
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketHandlerBenchmark {
+
+    @Param({ "crc32", "crc32c" })
+    String format;
+
+    @Param({ "0", "64", "512", "981" })
+    int payloadLength;
+
+    private PacketWorkload workload;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        workload = (PacketWorkload) Class.forName("PacketHandlerWorkload")
+                .getDeclaredConstructor().newInstance();
+        workload.setUp(format.equals("crc32c"), payloadLength);
+    }
+
+    @Benchmark
+    public byte[] createPacket() {
+        return workload.createPacket();
+    }
+
+    @Benchmark
+    public int encode() {
+        return workload.encode();
+    }
+
+    @Benchmark
+    public int encodeDirect() {
+        return workload.encodeDirect();
+    }
+
+    @Benchmark
+    public int encodeAck() {
+        return workload.encodeAck();
+    }
+
+    @Benchmark
+    public boolean isGood() {
+        return workload.isGood();
+    }
+
+    @Benchmark
+    public boolean isGoodDirect() {
+        return workload.isGoodDirect();
+    }
+
+    @Benchmark
+    public long readHeader() {
+        return workload.readHeader();
+    }
+
+    @Benchmark
+    public byte[] getPayload() {
+        return workload.getPayload();
+    }
+
+    @Benchmark
+    public int copyPayload() {
+        return workload.copyPayload();
+    }
+
+    @Benchmark
+    public int receive() {
+        return workload.receive();
+    }
+}
@@ -0,0 +1,82 @@
+package bench;
+
+/**
+ * This interface is the work one benchmark operation does on packets. JMH
+ * only takes benchmarks in a named package, and a named package cannot see
+ * PacketHandler in the default one, so PacketHandlerWorkload implements
+ * this next to it and the benchmark calls in through here. With only the
+ * one implementation loaded, the JIT inlines the calls.
+ * @author Diga W
+ *
+ */
+public interface PacketWorkload {
+
+    /**
+     * Prepare packets in one format with payloads of one length
+     * @param isCrc32c true for the compact CRC32C format, false for the
+     * original fixed-size CRC32 one
+     * @param payloadLength
+     */
+    void setUp(boolean isCrc32c, int payloadLength);
+
+    /**
+     * Create a data packet as a new array, as createOutgoingPacket() does
+     * @return
+     */
+    byte[] createPacket();
+
+    /**
+     * Encode a data packet into a reused array
+     * @return the number of bytes to send
+     */
+    int encode();
+
+    /**
+     * Encode a data packet into a reused direct buffer
+     * @return the number of bytes to send
+     */
+    int encodeDirect();
+
+    /**
+     * Encode an ACK with a window and SACK blocks into a reused array
+     * @return the number of bytes to send
+     */
+    int encodeAck();
+
+    /**
+     * Verify the checksum of a packet held in an array
+     * @return
+     */
+    boolean isGood();
+
+    /**
+     * Verify the checksum of a packet held in a direct buffer
+     * @return
+     */
+    boolean isGoodDirect();
+
+    /**
+     * Read every header field of a packet
+     * @return the fields folded together
+     */
+    long readHeader();
+
+    /**
+     * Copy the payload out as a new array, as getPayload() does
+     * @return
+     */
+    byte[] getPayload();
+
+    /**
+     * Copy the payload into a reused array through a PacketView
+     * @return the number of bytes copied
+     */
+    int copyPayload();
+
+    /**
+     * Do what a receiver does with each data packet: check it, read its
+     * header and copy its payload out
+     * @return
+     */
+    int receive();
+}
@@ -0,0 +1,55 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class benchmarks the receiver's reorder path on ReorderBuffer: the
+ * packets arriving behind a lost one, buffered or only marked, and the
+ * gap filled, from a single packet up to the default receive buffer's
+ * worth behind it.
+ * @author Diga W
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReorderBufferBenchmark {
+
+    @Param({ "1", "8", "63" })
+    int depth;
+
+    private ReorderWorkload workload;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        workload = (ReorderWorkload) Class.forName("ReorderBufferWorkload")
+                .getDeclaredConstructor().newInstance();
+        workload.setUp(depth);
+    }
+
+    @Benchmark
+    public long bufferAndDrain() throws IOException {
+        return workload.bufferAndDrain();
+    }
+
+    @Benchmark
+    public long markAndAdvance() {
+        return workload.markAndAdvance();
+    }
+}
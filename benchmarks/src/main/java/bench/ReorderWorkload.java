@@ -0,0 +1,38 @@
+package bench;
+
+import java.io.IOException;
+
+/**
+ * This interface is the work one benchmark operation does on a receiver's
+ * buffer of packets that arrived out of order. Like PacketWorkload, it
+ * lets a benchmark in this package call into ReorderBufferWorkload, which
+ * sits in the default package next to ReorderBuffer.
+ * @author Diga W
+ *
+ */
+public interface ReorderWorkload {
+
+    /**
+     * Prepare a buffer deep enough for the packets that will arrive ahead
+     * of a gap
+     * @param depth packets arriving after each lost one
+     */
+    void setUp(int depth);
+
+    /**
+     * Do what the receiver that writes in order does around a lost packet:
+     * buffer the packets after it, reporting them in SACK blocks as each
+     * arrives, then write the resent packet and drain the buffer behind it
+     * @return the next expected stream offset
+     * @throws IOException
+     */
+    long bufferAndDrain() throws IOException;
+
+    /**
+     * Do what a receiver that writes packets to their place does around a
+     * lost packet: only mark the packets after it, reporting them in SACK
+     * blocks as each arrives, then advance past them once it is resent
+     * @return the next expected stream offset
+     */
+    long markAndAdvance();
+}
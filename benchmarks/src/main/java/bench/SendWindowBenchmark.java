@@ -0,0 +1,59 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class benchmarks the sender's window and retransmission loop on
+ * SendWindow: sliding it one packet at a time, finding the next deadline,
+ * and a round of loss recovery over a whole window, from the default
+ * window size up to a window of a bandwidth-delay product's worth.
+ * @author Diga W
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendWindowBenchmark {
+
+    @Param({ "32", "256", "1024" })
+    int windowSize;
+
+    private WindowWorkload workload;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        workload = (WindowWorkload) Class.forName("SendWindowWorkload")
+                .getDeclaredConstructor().newInstance();
+        workload.setUp(windowSize);
+    }
+
+    @Benchmark
+    public int slide() {
+        return workload.slide();
+    }
+
+    @Benchmark
+    public long nextDeadline() {
+        return workload.nextDeadline();
+    }
+
+    @Benchmark
+    public int recoverLoss() {
+        return workload.recoverLoss();
+    }
+}
@@ -0,0 +1,40 @@
+package bench;
+
+/**
+ * This interface is the work one benchmark operation does on the sender's
+ * window of unacknowledged packets. Like PacketWorkload, it lets a
+ * benchmark in this package call into SendWindowWorkload, which sits in
+ * the default package next to SendWindow.
+ * @author Diga W
+ *
+ */
+public interface WindowWorkload {
+
+    /**
+     * Fill a window with freshly sent packets
+     * @param windowSize packets the window holds
+     */
+    void setUp(int windowSize);
+
+    /**
+     * Take an ACK for the oldest packet and send a new one in its slot, as
+     * a window does in steady state without loss
+     * @return the next sequence number to send
+     */
+    int slide();
+
+    /**
+     * Find the earliest retransmission deadline of the packets still on
+     * their way, as a selective repeat sender does before each wait
+     * @return
+     */
+    long nextDeadline();
+
+    /**
+     * Recover from the loss of the oldest packet: SACK every later one as
+     * its ACK arrives, expire the lost one's timer and resend it, then take
+     * the cumulative ACK and refill the window
+     * @return the number of packets SACKed
+     */
+    int recoverLoss();
+}
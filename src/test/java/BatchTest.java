@@ -0,0 +1,197 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * This class checks that a batch unpacks to the directory it was made
+ * from, that a corrupt or short manifest is refused, and that no entry can
+ * be written outside the destination, whether by its name or through a
+ * symbolic link.
+ * @author Diga W
+ *
+ */
+class BatchTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void roundTrips() throws IOException {
+        Path source = dir.resolve("source");
+        Files.createDirectories(source.resolve("a/b"));
+        Files.createDirectories(source.resolve("empty"));
+        byte[] large = new byte[200000];
+        new Random(1).nextBytes(large);
+        Files.write(source.resolve("a/b/large.bin"), large);
+        Files.write(source.resolve("a/small.txt"), new byte[] { 1, 2, 3 });
+        Files.write(source.resolve("zero.bin"), new byte[0]);
+
+        BatchManifest manifest = BatchManifest.scan(source);
+        byte[] stream = readAll(source, manifest);
+        assertEquals(manifest.getStreamLength(), stream.length);
+
+        Path destination = dir.resolve("destination");
+        BatchOutputStream out = new BatchOutputStream(destination.toString());
+        // in uneven pieces, as packets would bring it
+        for (int offset = 0; offset < stream.length; offset += 1000) {
+            out.write(stream, offset, Math.min(1000, stream.length - offset));
+        }
+        assertEquals(3, out.finish());
+        assertArrayEquals(large,
+                Files.readAllBytes(destination.resolve("a/b/large.bin")));
+        assertArrayEquals(new byte[] { 1, 2, 3 },
+                Files.readAllBytes(destination.resolve("a/small.txt")));
+        assertEquals(0, Files.size(destination.resolve("zero.bin")));
+        assertTrue(Files.isDirectory(destination.resolve("empty")));
+    }
+
+    @Test
+    void decodesWhatItEncodes() throws IOException {
+        byte[] encoded = sampleManifest().encode();
+        BatchManifest decoded = BatchManifest.decode(encoded,
+                BatchManifest.LENGTH_FIELD_LENGTH,
+                encoded.length - BatchManifest.LENGTH_FIELD_LENGTH);
+        assertEquals(2, decoded.entries.size());
+        assertTrue(decoded.entries.get(0).isDirectory());
+        assertEquals("dir/file.bin", decoded.entries.get(1).name);
+        assertEquals(42, decoded.entries.get(1).length);
+    }
+
+    @Test
+    void rejectsShortManifest() {
+        byte[] encoded = sampleManifest().encode();
+        // kind, name length, "dir" and file length
+        int firstEntryLength = 1 + 2 + 3 + 8;
+        // every cut short of the whole manifest that is not between entries
+        for (int length = 1; length < encoded.length
+                - BatchManifest.LENGTH_FIELD_LENGTH; length++) {
+            if (length == firstEntryLength) {
+                continue;
+            }
+            int cut = length;
+            assertThrows(IOException.class, () -> BatchManifest.decode(
+                    encoded, BatchManifest.LENGTH_FIELD_LENGTH, cut));
+        }
+    }
+
+    @Test
+    void rejectsCorruptManifest() {
+        byte[] badKind = sampleManifest().encode();
+        badKind[BatchManifest.LENGTH_FIELD_LENGTH] = 7;
+        assertCorrupt(badKind);
+
+        byte[] badNameLength = sampleManifest().encode();
+        badNameLength[BatchManifest.LENGTH_FIELD_LENGTH + 1] = (byte) 0xFF;
+        assertCorrupt(badNameLength);
+
+        byte[] negativeLength = sampleManifest().encode();
+        PacketHandler.putLong(negativeLength, negativeLength.length - 8, -1);
+        assertCorrupt(negativeLength);
+    }
+
+    @Test
+    void rejectsOversizedManifestLength() throws IOException {
+        byte[] lengthField = new byte[BatchManifest.LENGTH_FIELD_LENGTH];
+        PacketHandler.putInt(lengthField, 0,
+                BatchManifest.MAX_MANIFEST_LENGTH + 1);
+        assertUnpackFails(lengthField);
+        // which would otherwise be taken as 2 GB of manifest to gather
+        PacketHandler.putInt(lengthField, 0, Integer.MAX_VALUE);
+        assertUnpackFails(lengthField);
+        PacketHandler.putInt(lengthField, 0, -1);
+        assertUnpackFails(lengthField);
+    }
+
+    @Test
+    void rejectsEntriesOutsideDestination() throws IOException {
+        for (String name : new String[] { "../escaped", "a/../../escaped",
+                "..", "", ".", dir.resolve("escaped").toString() }) {
+            BatchManifest manifest = new BatchManifest();
+            manifest.entries.add(new BatchManifest.Entry(
+                    BatchManifest.KIND_FILE, name, 0));
+            assertUnpackFails(manifest.encode());
+        }
+        assertTrue(Files.notExists(dir.resolve("escaped")));
+    }
+
+    @Test
+    void rejectsEntriesThroughSymbolicLink() throws IOException {
+        Path destination = dir.resolve("destination");
+        Path outside = dir.resolve("outside");
+        Files.createDirectories(destination);
+        Files.createDirectories(outside);
+        Files.createSymbolicLink(destination.resolve("link"), outside);
+        Files.createSymbolicLink(destination.resolve("file.bin"),
+                outside.resolve("file.bin"));
+
+        for (String name : new String[] { "link/file.bin",
+                "link/new/file.bin", "file.bin" }) {
+            BatchManifest manifest = new BatchManifest();
+            manifest.entries.add(new BatchManifest.Entry(
+                    BatchManifest.KIND_FILE, name, 1));
+            byte[] encoded = manifest.encode();
+            byte[] stream = Arrays.copyOf(encoded, encoded.length + 1);
+            BatchOutputStream out = new BatchOutputStream(
+                    destination.toString());
+            assertThrows(IOException.class, () -> {
+                out.write(stream, 0, stream.length);
+                out.finish();
+            });
+            out.close();
+        }
+        try (Stream<Path> paths = Files.list(outside)) {
+            assertEquals(0, paths.count());
+        }
+    }
+
+    private static BatchManifest sampleManifest() {
+        BatchManifest manifest = new BatchManifest();
+        manifest.entries.add(new BatchManifest.Entry(
+                BatchManifest.KIND_DIRECTORY, "dir", 0));
+        manifest.entries.add(new BatchManifest.Entry(
+                BatchManifest.KIND_FILE, "dir/file.bin", 42));
+        return manifest;
+    }
+
+    private static void assertCorrupt(byte[] encoded) {
+        assertThrows(IOException.class, () -> BatchManifest.decode(encoded,
+                BatchManifest.LENGTH_FIELD_LENGTH,
+                encoded.length - BatchManifest.LENGTH_FIELD_LENGTH));
+    }
+
+    private void assertUnpackFails(byte[] stream) throws IOException {
+        BatchOutputStream out = new BatchOutputStream(
+                dir.resolve("destination").toString());
+        assertThrows(IOException.class, () -> {
+            out.write(stream, 0, stream.length);
+            out.finish();
+        });
+        out.close();
+    }
+
+    private static byte[] readAll(Path root, BatchManifest manifest)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new BatchInputStream(root, manifest)) {
+            byte[] buffer = new byte[4096];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) > 0) {
+                out.write(buffer, 0, bytesRead);
+            }
+        }
+        return out.toByteArray();
+    }
+}
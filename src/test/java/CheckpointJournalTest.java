@@ -0,0 +1,164 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * This class checks that a journal only lets a transfer resume from a
+ * checkpoint it can vouch for: a torn or corrupt record, or one of another
+ * file, falls back to the one before it or to the start.
+ * @author Diga W
+ *
+ */
+class CheckpointJournalTest {
+
+    private final static long FILE_SIZE = 1L << 40;
+    private final static long FINGERPRINT = 12345;
+    private final static long STEP = CheckpointJournal.COMMIT_INTERVAL;
+
+    // the layout of a journal, a header and then fixed length records
+    private final static int HEADER_LENGTH = 16;
+    private final static int RECORD_LENGTH = 12;
+    private final static int MAX_RECORDS = 1024;
+
+    @TempDir
+    Path dir;
+
+    private Path path;
+    private FileChannel data;
+
+    @BeforeEach
+    void openData() throws IOException {
+        path = dir.resolve("out.bin.journal");
+        data = FileChannel.open(dir.resolve("out.bin"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    @AfterEach
+    void closeData() throws IOException {
+        data.close();
+    }
+
+    @Test
+    void resumesFromLastRecord() throws IOException {
+        checkpoint(3);
+        assertEquals(3 * STEP, getResumeOffset());
+    }
+
+    @Test
+    void skipsCorruptRecord() throws IOException {
+        checkpoint(3);
+        corrupt(HEADER_LENGTH + 2 * RECORD_LENGTH + 8);
+        assertEquals(2 * STEP, getResumeOffset());
+    }
+
+    @Test
+    void skipsTornRecord() throws IOException {
+        checkpoint(3);
+        truncate(HEADER_LENGTH + 2 * RECORD_LENGTH + RECORD_LENGTH / 2);
+        assertEquals(2 * STEP, getResumeOffset());
+    }
+
+    @Test
+    void startsOverWithNoIntactRecord() throws IOException {
+        checkpoint(2);
+        corrupt(HEADER_LENGTH);
+        corrupt(HEADER_LENGTH + RECORD_LENGTH + 8);
+        assertEquals(0, getResumeOffset());
+        // and the bad records are gone for good
+        assertEquals(HEADER_LENGTH, Files.size(path));
+    }
+
+    @Test
+    void startsOverWithHeaderOnly() throws IOException {
+        checkpoint(1);
+        truncate(HEADER_LENGTH);
+        assertEquals(0, getResumeOffset());
+    }
+
+    @Test
+    void startsOverForAnotherFile() throws IOException {
+        checkpoint(2);
+        CheckpointJournal journal = new CheckpointJournal(path, FILE_SIZE,
+                FINGERPRINT + 1, Long.MAX_VALUE);
+        assertEquals(0, journal.getResumeOffset());
+        journal.close(false);
+    }
+
+    @Test
+    void startsOverPastAvailableBytes() throws IOException {
+        checkpoint(2);
+        CheckpointJournal journal = new CheckpointJournal(path, FILE_SIZE,
+                FINGERPRINT, 2 * STEP - 1);
+        assertEquals(0, journal.getResumeOffset());
+        journal.close(false);
+    }
+
+    @Test
+    void startsOverAtRecordLimit() throws IOException {
+        checkpoint(MAX_RECORDS);
+        assertEquals(HEADER_LENGTH + MAX_RECORDS * RECORD_LENGTH,
+                Files.size(path));
+        checkpoint(1);
+        // the full journal was rewritten with the one new record
+        assertEquals(HEADER_LENGTH + RECORD_LENGTH, Files.size(path));
+        assertEquals((MAX_RECORDS + 1) * STEP, getResumeOffset());
+    }
+
+    @Test
+    void deletedWhenComplete() throws IOException {
+        checkpoint(1);
+        new CheckpointJournal(path, FILE_SIZE, FINGERPRINT, Long.MAX_VALUE)
+                .close(true);
+        assertTrue(Files.notExists(path));
+    }
+
+    /**
+     * Append records, one per reopening of the journal so that each sync
+     * is done before the next commit
+     * @param count
+     * @throws IOException
+     */
+    private void checkpoint(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            CheckpointJournal journal = new CheckpointJournal(path,
+                    FILE_SIZE, FINGERPRINT, Long.MAX_VALUE);
+            journal.commit(journal.getResumeOffset() + STEP, data);
+            journal.close(false);
+        }
+    }
+
+    private long getResumeOffset() throws IOException {
+        CheckpointJournal journal = new CheckpointJournal(path, FILE_SIZE,
+                FINGERPRINT, Long.MAX_VALUE);
+        journal.close(false);
+        return journal.getResumeOffset();
+    }
+
+    private void corrupt(long offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1);
+            channel.read(buffer, offset);
+            buffer.put(0, (byte) (buffer.get(0) ^ 1)).rewind();
+            channel.write(buffer, offset);
+        }
+    }
+
+    private void truncate(long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+        }
+    }
+}
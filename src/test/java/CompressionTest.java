@@ -0,0 +1,205 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * This class checks that CompressingReader hands out a file range whole,
+ * in blocks that never cross a boundary, deflating those that shrink, and
+ * that PacketInflater turns each compressed packet back into the plain
+ * packet it stands for, refusing one that does not inflate to the length
+ * it gives.
+ * @author Diga W
+ *
+ */
+class CompressionTest {
+
+    private final static int TEXT_LENGTH = 300000;
+    private final static int RANDOM_LENGTH = 100000;
+    private final static int BOUNDARY_INTERVAL = 5000;
+
+    @TempDir
+    Path dir;
+
+    private final PacketHandler handler = new PacketHandler();
+
+    @Test
+    void readsRangeWhole() throws IOException {
+        byte[] file = createFile();
+        long start = 1234;
+        long firstBoundary = start + 777;
+        int maxLength = handler.getMaxPayloadLength();
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        int compressedCount = 0;
+        try (BufferedInputStream bis = openAt(file, start)) {
+            CompressingReader reader = new CompressingReader(bis, null, start,
+                    file.length, maxLength, firstBoundary, BOUNDARY_INTERVAL);
+            long offset = start;
+            CompressingReader.Block block;
+            while ((block = reader.take()) != null) {
+                assertTrue(block.rawLength > 0 && block.rawLength <= maxLength);
+                // no block crosses a boundary
+                long next = offset < firstBoundary ? firstBoundary
+                        : firstBoundary + ((offset - firstBoundary)
+                                / BOUNDARY_INTERVAL + 1) * BOUNDARY_INTERVAL;
+                assertTrue(offset + block.rawLength <= next);
+                if (block.isCompressed()) {
+                    assertTrue(block.compressedLength < block.rawLength);
+                    compressedCount++;
+                }
+                read.write(block.raw, 0, block.rawLength);
+                offset += block.rawLength;
+                reader.release(block);
+            }
+            assertNull(reader.take());
+        }
+        assertArrayEquals(Arrays.copyOfRange(file, (int) start, file.length),
+                read.toByteArray());
+        assertTrue(compressedCount > 0);
+    }
+
+    @Test
+    void inflatesEveryCompressedBlock() throws IOException {
+        byte[] file = createFile();
+        int inflatedCount = 0;
+        try (BufferedInputStream bis = openAt(file, 0)) {
+            CompressingReader reader = new CompressingReader(bis, null, 0,
+                    file.length, handler.getMaxPayloadLength(), 0, 0);
+            PacketInflater inflater = new PacketInflater(handler);
+            PacketView view = new PacketView(handler);
+            int seqNo = -5000;
+            CompressingReader.Block block;
+            while ((block = reader.take()) != null) {
+                if (block.isCompressed()) {
+                    byte[] raw = Arrays.copyOf(block.raw, block.rawLength);
+
+                    byte[] packet = createCompressedPacket(block, seqNo);
+                    int length = inflater.inflate(packet);
+                    assertTrue(length > 0);
+                    assertPlain(view.wrap(Arrays.copyOf(packet, length)),
+                            raw, seqNo);
+
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(
+                            handler.getPacketSize());
+                    buffer.put(createCompressedPacket(block, seqNo)).flip();
+                    assertEquals(length, inflater.inflate(buffer));
+                    assertEquals(length, buffer.limit());
+                    assertPlain(view.wrap(buffer), raw, seqNo);
+                    inflatedCount++;
+                }
+                seqNo += block.rawLength;
+                reader.release(block);
+            }
+        }
+        assertTrue(inflatedCount > 0);
+    }
+
+    @Test
+    void rejectsWrongRawLength() throws IOException {
+        byte[] file = createFile();
+        try (BufferedInputStream bis = openAt(file, 0)) {
+            CompressingReader reader = new CompressingReader(bis, null, 0,
+                    TEXT_LENGTH, handler.getMaxPayloadLength(), 0, 0);
+            CompressingReader.Block block = reader.take();
+            assertTrue(block.isCompressed());
+            PacketInflater inflater = new PacketInflater(handler);
+            for (int rawLength : new int[] { block.rawLength - 1,
+                    block.rawLength + 1, 0, -1,
+                    handler.getMaxPayloadLength() + 1 }) {
+                byte[] packet = new byte[handler.getPacketSize()];
+                int length = handler.encode(packet, block.compressed, 0,
+                        block.compressedLength, 0, rawLength,
+                        PacketHandler.FLAG_COMPRESSED);
+                assertEquals(-1, inflater.inflate(
+                        Arrays.copyOf(packet, length)));
+            }
+            reader.close();
+        }
+    }
+
+    @Test
+    void rejectsCorruptPayload() {
+        byte[] garbage = new byte[500];
+        new Random(3).nextBytes(garbage);
+        byte[] packet = new byte[handler.getPacketSize()];
+        int length = handler.encode(packet, garbage, 0, garbage.length, 0,
+                1000, PacketHandler.FLAG_COMPRESSED);
+        assertEquals(-1, new PacketInflater(handler).inflate(
+                Arrays.copyOf(packet, length)));
+    }
+
+    @Test
+    void leavesIncompressibleBlocksAsIs() throws IOException {
+        byte[] file = new byte[RANDOM_LENGTH];
+        new Random(2).nextBytes(file);
+        try (BufferedInputStream bis = openAt(file, 0)) {
+            CompressingReader reader = new CompressingReader(bis, null, 0,
+                    file.length, handler.getMaxPayloadLength(), 0, 0);
+            CompressingReader.Block block;
+            while ((block = reader.take()) != null) {
+                assertFalse(block.isCompressed());
+                reader.release(block);
+            }
+        }
+    }
+
+    private void assertPlain(PacketView view, byte[] raw, int seqNo) {
+        assertTrue(view.isGood());
+        assertFalse(view.isCompressed());
+        assertEquals(seqNo, view.getSeqNo());
+        assertEquals(raw.length, view.getDataLength());
+        byte[] payload = new byte[raw.length];
+        view.copyPayload(payload, 0);
+        assertArrayEquals(raw, payload);
+    }
+
+    private byte[] createCompressedPacket(CompressingReader.Block block,
+            int seqNo) {
+        byte[] packet = new byte[handler.getPacketSize()];
+        int length = handler.encode(packet, block.compressed, 0,
+                block.compressedLength, seqNo, block.rawLength,
+                PacketHandler.FLAG_COMPRESSED);
+        return Arrays.copyOf(packet, length);
+    }
+
+    /**
+     * Make a file of repetitive text, which compresses, followed by random
+     * bytes, which do not
+     * @return its contents
+     */
+    private byte[] createFile() {
+        byte[] file = new byte[TEXT_LENGTH + RANDOM_LENGTH];
+        byte[] line = "the quick brown fox jumps over the lazy dog\n"
+                .getBytes();
+        for (int i = 0; i < TEXT_LENGTH; i++) {
+            file[i] = line[i % line.length];
+        }
+        byte[] random = new byte[RANDOM_LENGTH];
+        new Random(1).nextBytes(random);
+        System.arraycopy(random, 0, file, TEXT_LENGTH, RANDOM_LENGTH);
+        return file;
+    }
+
+    private BufferedInputStream openAt(byte[] file, long start)
+            throws IOException {
+        Path path = dir.resolve("source.bin");
+        Files.write(path, file);
+        BufferedInputStream bis = new BufferedInputStream(
+                Files.newInputStream(path));
+        bis.skipNBytes(start);
+        return bis;
+    }
+}
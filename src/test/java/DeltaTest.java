@@ -0,0 +1,152 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * This class checks that a delta made by DeltaEncoder against the
+ * signatures of an old copy rebuilds the new file exactly, with and
+ * without a digest, whatever was changed between the two, and that
+ * unchanged blocks are sent as references rather than bytes.
+ * @author Diga W
+ *
+ */
+class DeltaTest {
+
+    private final static int FILE_LENGTH = 1000000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void roundTripsIdenticalFile() throws IOException {
+        byte[] old = randomBytes(FILE_LENGTH, 1);
+        long deltaLength = assertRoundTrip(old, old);
+        // one copy of every block, then the tail too short to be signed
+        int blockLength = BlockSignatures.getBlockLength(FILE_LENGTH);
+        assertTrue(deltaLength < FILE_LENGTH % blockLength + 100);
+    }
+
+    @Test
+    void roundTripsInsertion() throws IOException {
+        byte[] old = randomBytes(FILE_LENGTH, 1);
+        byte[] inserted = randomBytes(3000, 2);
+        byte[] changed = new byte[old.length + inserted.length];
+        int at = old.length / 3 + 17;
+        System.arraycopy(old, 0, changed, 0, at);
+        System.arraycopy(inserted, 0, changed, at, inserted.length);
+        System.arraycopy(old, at, changed, at + inserted.length,
+                old.length - at);
+        long deltaLength = assertRoundTrip(old, changed);
+        assertTrue(deltaLength < FILE_LENGTH / 10);
+    }
+
+    @Test
+    void roundTripsDeletion() throws IOException {
+        byte[] old = randomBytes(FILE_LENGTH, 1);
+        int at = old.length / 2 + 5;
+        byte[] changed = new byte[old.length - 5000];
+        System.arraycopy(old, 0, changed, 0, at);
+        System.arraycopy(old, at + 5000, changed, at, changed.length - at);
+        long deltaLength = assertRoundTrip(old, changed);
+        assertTrue(deltaLength < FILE_LENGTH / 10);
+    }
+
+    @Test
+    void roundTripsShorterThanOneBlock() throws IOException {
+        byte[] old = randomBytes(FILE_LENGTH, 1);
+        int blockLength = BlockSignatures.getBlockLength(FILE_LENGTH);
+        assertRoundTrip(old, Arrays.copyOf(old, blockLength - 1));
+        // and an old copy too short to have a single block signed
+        assertRoundTrip(Arrays.copyOf(old, 100), old);
+        assertRoundTrip(new byte[0], randomBytes(100, 2));
+        assertRoundTrip(randomBytes(100, 2), new byte[0]);
+    }
+
+    @Test
+    void roundTripsUnrelatedFile() throws IOException {
+        assertRoundTrip(randomBytes(FILE_LENGTH, 1),
+                randomBytes(FILE_LENGTH + 123, 2));
+    }
+
+    @Test
+    @Timeout(10)
+    void rejectsShrunkOldCopy() throws IOException {
+        byte[] old = randomBytes(FILE_LENGTH, 1);
+        for (boolean isDigested : new boolean[] { false, true }) {
+            Path oldPath = dir.resolve("old.bin");
+            Path newPath = dir.resolve("new.bin");
+            Files.write(oldPath, old);
+            Files.write(newPath, old);
+            BlockSignatures signatures = BlockSignatures.compute(
+                    oldPath.toString());
+            DeltaEncoder.encode(newPath.toString(), signatures,
+                    DeltaDecoder.getPath(oldPath.toString()), null);
+            try (FileChannel file = FileChannel.open(oldPath,
+                    StandardOpenOption.WRITE)) {
+                file.truncate(FILE_LENGTH / 2);
+            }
+            FileDigest digest = isDigested
+                    ? FileDigest.create(SynOptions.DIGEST_SHA256) : null;
+            assertThrows(IOException.class, () -> DeltaDecoder.apply(
+                    oldPath.toString(), signatures, digest, null));
+            // the old copy is left as it was
+            assertEquals(FILE_LENGTH / 2, Files.size(oldPath));
+        }
+    }
+
+    /**
+     * Rebuild a changed file from its delta against an old copy, once
+     * without a digest and once with one
+     * @param old
+     * @param changed
+     * @return the length of the delta
+     * @throws IOException
+     */
+    private long assertRoundTrip(byte[] old, byte[] changed)
+            throws IOException {
+        long deltaLength = 0;
+        for (boolean isDigested : new boolean[] { false, true }) {
+            Path oldPath = dir.resolve("old.bin");
+            Path newPath = dir.resolve("new.bin");
+            Files.write(oldPath, old);
+            Files.write(newPath, changed);
+            BlockSignatures signatures = BlockSignatures.compute(
+                    oldPath.toString());
+            Path deltaPath = DeltaDecoder.getPath(oldPath.toString());
+            FileDigest sent = isDigested
+                    ? FileDigest.create(SynOptions.DIGEST_SHA256) : null;
+            deltaLength = DeltaEncoder.encode(newPath.toString(), signatures,
+                    deltaPath, sent);
+            assertEquals(deltaLength, Files.size(deltaPath));
+
+            FileDigest received = isDigested
+                    ? FileDigest.create(SynOptions.DIGEST_SHA256) : null;
+            byte[] expected = isDigested ? sent.digest() : null;
+            byte[] actual = DeltaDecoder.apply(oldPath.toString(),
+                    signatures, received, expected);
+            assertArrayEquals(expected, actual);
+            assertArrayEquals(changed, Files.readAllBytes(oldPath));
+            assertTrue(Files.notExists(deltaPath));
+        }
+        return deltaLength;
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,116 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * This class checks that the link UnreliNET emulates repeats itself for a
+ * given seed, and that reordering works without any delay to lean on.
+ * @author Diga W
+ *
+ */
+class ImpairedLinkTest {
+
+    private final static int PACKET_COUNT = 500;
+    private final static int PACKET_LENGTH = 100;
+
+    @Test
+    void sameSeedGivesSameVerdicts() throws Exception {
+        ImpairedLink.Settings settings = new ImpairedLink.Settings();
+        settings.burstEnterRate = 0.05f;
+        settings.burstExitRate = 0.3f;
+        try (DatagramSocket sink = openSink();
+                DatagramChannel channel = DatagramChannel.open()) {
+            SocketAddress target = sink.getLocalSocketAddress();
+            int[] first = forwardAll(new ImpairedLink(settings, 42, 0.1f,
+                    0.2f, channel, PACKET_LENGTH), target);
+            int[] second = forwardAll(new ImpairedLink(settings, 42, 0.1f,
+                    0.2f, channel, PACKET_LENGTH), target);
+            assertArrayEquals(first, second);
+            // and every kind of verdict came up
+            assertTrue(count(first, ImpairedLink.FORWARDED) > 0);
+            assertTrue(count(first, ImpairedLink.LOST) > 0);
+            assertTrue(count(first, ImpairedLink.CORRUPTED) > 0);
+        }
+    }
+
+    @Test
+    void reorderAloneReorders() throws Exception {
+        ImpairedLink.Settings settings = new ImpairedLink.Settings();
+        settings.reorderRate = 0.2f;
+        assertTrue(settings.isShaping());
+        try (DatagramSocket sink = openSink();
+                DatagramChannel channel = DatagramChannel.open()) {
+            ImpairedLink link = new ImpairedLink(settings, 42, 0, 0, channel,
+                    PACKET_LENGTH);
+            link.start();
+            forwardAll(link, sink.getLocalSocketAddress());
+
+            // everything arrives, but not in the order it was sent
+            boolean[] isReceived = new boolean[PACKET_COUNT];
+            int overtaken = 0;
+            int last = -1;
+            DatagramPacket packet = new DatagramPacket(
+                    new byte[PACKET_LENGTH], PACKET_LENGTH);
+            for (int i = 0; i < PACKET_COUNT; i++) {
+                sink.receive(packet);
+                int index = ByteBuffer.wrap(packet.getData()).getInt();
+                isReceived[index] = true;
+                if (index < last) {
+                    overtaken++;
+                }
+                last = index;
+            }
+            for (int i = 0; i < PACKET_COUNT; i++) {
+                assertTrue(isReceived[i]);
+            }
+            assertTrue(overtaken > 0);
+        }
+    }
+
+    /**
+     * Hand the link PACKET_COUNT packets, each starting with its index
+     * @param link
+     * @param target
+     * @return the verdict on each
+     * @throws IOException
+     */
+    private static int[] forwardAll(ImpairedLink link, SocketAddress target)
+            throws IOException {
+        int[] verdicts = new int[PACKET_COUNT];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(PACKET_LENGTH);
+        for (int i = 0; i < PACKET_COUNT; i++) {
+            buffer.clear();
+            buffer.putInt(i).position(PACKET_LENGTH).flip();
+            verdicts[i] = link.forward(buffer, target);
+        }
+        return verdicts;
+    }
+
+    private static int count(int[] verdicts, int verdict) {
+        int count = 0;
+        for (int v : verdicts) {
+            if (v == verdict) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static DatagramSocket openSink() throws IOException {
+        DatagramSocket sink = new DatagramSocket(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        sink.setSoTimeout(5000);
+        sink.setReceiveBufferSize(1024 * 1024);
+        return sink;
+    }
+}
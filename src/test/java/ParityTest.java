@@ -0,0 +1,238 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * This class checks that the parity of a FEC group rebuilds whichever one
+ * of its data packets is lost, including a short last packet of the file,
+ * both for a lone group and through a receiver's ParityDecoder.
+ * @author Diga W
+ *
+ */
+class ParityTest {
+
+    private final static int GROUP_SIZE = 5;
+
+    // the last packet of the file, which need not be a multiple of 8
+    private final static int SHORT_LENGTH = 301;
+
+    private final PacketHandler handler = new PacketHandler();
+    private final int maxDataLength = ParityGroup.getMaxDataLength(handler);
+
+    @Test
+    void recoversEachPosition() {
+        byte[][] payloads = createPayloads(1);
+        byte[] parity = encodeParity(payloads);
+        for (int missing = 0; missing < GROUP_SIZE; missing++) {
+            ParityGroup group = new ParityGroup(maxDataLength);
+            group.reset(0);
+            for (int i = 0; i < GROUP_SIZE; i++) {
+                if (i != missing) {
+                    group.add(i * maxDataLength, payloads[i], 0,
+                            payloads[i].length);
+                }
+                assertFalse(group.isRecoverable());
+            }
+            group.addParity(parity, 0, parity.length, GROUP_SIZE);
+            assertRecovered(group, payloads, missing);
+        }
+    }
+
+    @Test
+    void recoversWithParityFirst() {
+        byte[][] payloads = createPayloads(2);
+        byte[] parity = encodeParity(payloads);
+        for (int missing = 0; missing < GROUP_SIZE; missing++) {
+            ParityGroup group = new ParityGroup(maxDataLength);
+            group.reset(0);
+            group.addParity(parity, 0, parity.length, GROUP_SIZE);
+            for (int i = 0; i < GROUP_SIZE; i++) {
+                if (i != missing) {
+                    group.add(i * maxDataLength, payloads[i], 0,
+                            payloads[i].length);
+                }
+            }
+            assertRecovered(group, payloads, missing);
+        }
+    }
+
+    @Test
+    void recoversFromBuffersOfEitherOrder() {
+        byte[][] payloads = createPayloads(3);
+        byte[] parity = encodeParity(payloads);
+        for (ByteOrder order : new ByteOrder[] { ByteOrder.BIG_ENDIAN,
+                ByteOrder.LITTLE_ENDIAN }) {
+            for (int missing = 0; missing < GROUP_SIZE; missing++) {
+                ParityGroup group = new ParityGroup(maxDataLength);
+                group.reset(0);
+                for (int i = 0; i < GROUP_SIZE; i++) {
+                    if (i != missing) {
+                        // at an odd offset, as a payload after a header
+                        ByteBuffer buffer = ByteBuffer.allocateDirect(
+                                payloads[i].length + 3).order(order);
+                        buffer.position(3);
+                        buffer.put(payloads[i]);
+                        group.add(i * maxDataLength, buffer, 3,
+                                payloads[i].length);
+                    }
+                }
+                ByteBuffer buffer = ByteBuffer.allocateDirect(parity.length)
+                        .order(order);
+                buffer.put(parity);
+                group.addParity(buffer, 0, parity.length, GROUP_SIZE);
+                assertRecovered(group, payloads, missing);
+            }
+        }
+    }
+
+    @Test
+    void recoversShortGroup() {
+        // the last group of a file, with fewer packets than GROUP_SIZE
+        byte[][] payloads = Arrays.copyOf(createPayloads(4), 2);
+        payloads[1] = Arrays.copyOf(payloads[1], SHORT_LENGTH);
+        byte[] parity = encodeParity(payloads);
+        for (int missing = 0; missing < payloads.length; missing++) {
+            ParityGroup group = new ParityGroup(maxDataLength);
+            group.reset(0);
+            group.add((1 - missing) * maxDataLength, payloads[1 - missing],
+                    0, payloads[1 - missing].length);
+            group.addParity(parity, 0, parity.length, payloads.length);
+            assertRecovered(group, payloads, missing);
+        }
+    }
+
+    @Test
+    void nothingToRecoverWhenAllArrive() {
+        byte[][] payloads = createPayloads(5);
+        ParityGroup group = new ParityGroup(maxDataLength);
+        group.reset(0);
+        for (int i = 0; i < GROUP_SIZE; i++) {
+            group.add(i * maxDataLength, payloads[i], 0, payloads[i].length);
+        }
+        byte[] parity = encodeParity(payloads);
+        group.addParity(parity, 0, parity.length, GROUP_SIZE);
+        assertTrue(group.isFull());
+        assertFalse(group.isRecoverable());
+    }
+
+    @Test
+    void decoderRecoversEachPosition() {
+        long dataStart = 1000;
+        int groupLength = ParityGroup.getGroupLength(GROUP_SIZE, handler);
+        byte[][] payloads = createPayloads(6);
+        for (int missing = 0; missing < GROUP_SIZE; missing++) {
+            ParityDecoder decoder = new ParityDecoder(dataStart, groupLength,
+                    maxDataLength);
+            PacketView view = new PacketView(handler);
+            // the second group, so that the group start is not dataStart
+            long groupStart = dataStart + groupLength;
+            for (int i = 0; i < GROUP_SIZE; i++) {
+                if (i == missing) {
+                    continue;
+                }
+                long seqNo = groupStart + i * maxDataLength;
+                byte[] packet = handler.createOutgoingPacket(payloads[i],
+                        payloads[i].length, (int) seqNo);
+                assertFalse(decoder.addData(seqNo, view.wrap(packet)));
+            }
+            byte[] parityPacket = createParityPacket(payloads,
+                    (int) groupStart);
+            assertTrue(decoder.addParity(groupStart,
+                    view.wrap(parityPacket)));
+            assertEquals(groupStart + missing * maxDataLength,
+                    decoder.getRecoveredSeqNo());
+            assertEquals(payloads[missing].length,
+                    decoder.getRecoveredLength());
+            assertArrayEquals(payloads[missing], Arrays.copyOf(
+                    decoder.getRecoveredData(), payloads[missing].length));
+            assertEquals(1, decoder.getRecoveredCount());
+
+            // and a late copy of the missing packet changes nothing
+            byte[] late = handler.createOutgoingPacket(payloads[missing],
+                    payloads[missing].length,
+                    (int) (groupStart + missing * maxDataLength));
+            assertFalse(decoder.addData(groupStart + missing * maxDataLength,
+                    view.wrap(late)));
+        }
+    }
+
+    @Test
+    void decoderIgnoresReleasedGroups() {
+        int groupLength = ParityGroup.getGroupLength(GROUP_SIZE, handler);
+        byte[][] payloads = createPayloads(7);
+        ParityDecoder decoder = new ParityDecoder(0, groupLength,
+                maxDataLength);
+        PacketView view = new PacketView(handler);
+        for (int i = 1; i < GROUP_SIZE; i++) {
+            long seqNo = i * maxDataLength;
+            decoder.addData(seqNo, view.wrap(handler.createOutgoingPacket(
+                    payloads[i], payloads[i].length, (int) seqNo)));
+        }
+        decoder.release(groupLength);
+        assertFalse(decoder.addParity(0,
+                view.wrap(createParityPacket(payloads, 0))));
+        assertEquals(0, decoder.getRecoveredCount());
+    }
+
+    /**
+     * Check that the group was left with exactly the missing packet, its
+     * payload followed by zeros
+     * @param group
+     * @param payloads
+     * @param missing
+     */
+    private void assertRecovered(ParityGroup group, byte[][] payloads,
+            int missing) {
+        assertTrue(group.isRecoverable());
+        assertEquals(missing * maxDataLength, group.getRecoveredOffset());
+        assertEquals(payloads[missing].length, group.getRecoveredLength());
+        byte[] expected = Arrays.copyOf(payloads[missing], maxDataLength);
+        assertArrayEquals(expected, Arrays.copyOf(group.getRecoveredData(),
+                maxDataLength));
+    }
+
+    /**
+     * Make a group of GROUP_SIZE random payloads, the last one short
+     * @param seed
+     * @return
+     */
+    private byte[][] createPayloads(long seed) {
+        Random random = new Random(seed);
+        byte[][] payloads = new byte[GROUP_SIZE][];
+        for (int i = 0; i < GROUP_SIZE; i++) {
+            payloads[i] = new byte[i == GROUP_SIZE - 1
+                    ? SHORT_LENGTH : maxDataLength];
+            random.nextBytes(payloads[i]);
+        }
+        return payloads;
+    }
+
+    private byte[] encodeParity(byte[][] payloads) {
+        ParityGroup group = new ParityGroup(maxDataLength);
+        group.reset(0);
+        for (int i = 0; i < payloads.length; i++) {
+            group.add(i * maxDataLength, payloads[i], 0, payloads[i].length);
+        }
+        assertEquals(payloads.length, group.getCount());
+        byte[] parity = new byte[ParityGroup.HEADER_LENGTH + maxDataLength];
+        return Arrays.copyOf(parity, group.encode(parity, 0));
+    }
+
+    private byte[] createParityPacket(byte[][] payloads, int seqNo) {
+        byte[] parity = encodeParity(payloads);
+        byte[] packet = new byte[handler.getPacketSize()];
+        System.arraycopy(parity, 0, packet, handler.getHeaderLength(),
+                parity.length);
+        int length = handler.encodeInPlace(packet, parity.length, seqNo,
+                payloads.length, PacketHandler.FLAG_PARITY);
+        return Arrays.copyOf(packet, length);
+    }
+}
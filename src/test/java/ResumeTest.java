@@ -0,0 +1,225 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * This class checks that a transfer offered to resume, with nothing to
+ * resume from, replaces a larger file already at the destination rather
+ * than writing over the start of it, on every receiver path, and that
+ * a file edited since does not count as the one to resume. A transfer
+ * that does resume has the part kept checked by the digest at FIN along
+ * with the rest.
+ * @author Diga W
+ *
+ */
+class ResumeTest {
+
+    private final static int SOURCE_LENGTH = 1000000;
+    private final static int STALE_LENGTH = 3000000;
+
+    // resumed from the first checkpoint
+    private final static int RESUMED_LENGTH =
+            CheckpointJournal.COMMIT_INTERVAL + 1000000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replacesLargerFileWithIo() throws Exception {
+        FileReceiver receiver = new FileReceiver(findFreePort());
+        assertReplaced(receiver, () -> receiver.receive());
+    }
+
+    @Test
+    void replacesLargerFileWithNio() throws Exception {
+        FileReceiver receiver = new FileReceiver(findFreePort());
+        receiver.isNio = true;
+        assertReplaced(receiver, () -> receiver.receive());
+    }
+
+    @Test
+    void replacesLargerFileWithServer() throws Exception {
+        FileReceiver receiver = new FileReceiver(findFreePort());
+        assertReplaced(receiver, () -> new ReceiverServer(receiver.portNo, 1,
+                receiver.bufferSize, receiver.maxPacketSize,
+                receiver.metrics).run());
+    }
+
+    @Test
+    void resumesWithIo() throws Exception {
+        FileReceiver receiver = new FileReceiver(findFreePort());
+        assertResumed(receiver, () -> receiver.receive(), false);
+    }
+
+    @Test
+    void resumesWithNio() throws Exception {
+        FileReceiver receiver = new FileReceiver(findFreePort());
+        receiver.isNio = true;
+        assertResumed(receiver, () -> receiver.receive(), false);
+    }
+
+    @Test
+    void resumesWithServer() throws Exception {
+        FileReceiver receiver = new FileReceiver(findFreePort());
+        assertResumed(receiver, () -> new ReceiverServer(receiver.portNo, 1,
+                receiver.bufferSize, receiver.maxPacketSize,
+                receiver.metrics).run(), false);
+    }
+
+    @Test
+    void rejectsCorruptPrefixWithIo() throws Exception {
+        FileReceiver receiver = new FileReceiver(findFreePort());
+        assertResumed(receiver, () -> receiver.receive(), true);
+    }
+
+    @Test
+    void rejectsCorruptPrefixWithNio() throws Exception {
+        FileReceiver receiver = new FileReceiver(findFreePort());
+        receiver.isNio = true;
+        assertResumed(receiver, () -> receiver.receive(), true);
+    }
+
+    @Test
+    void rejectsCorruptPrefixWithServer() throws Exception {
+        FileReceiver receiver = new FileReceiver(findFreePort());
+        assertResumed(receiver, () -> new ReceiverServer(receiver.portNo, 1,
+                receiver.bufferSize, receiver.maxPacketSize,
+                receiver.metrics).run(), true);
+    }
+
+    @Test
+    void fingerprintCoversEveryByte() throws Exception {
+        Path source = dir.resolve("source.bin");
+        byte[] bytes = randomBytes(STALE_LENGTH, 1);
+        Files.write(source, bytes);
+        long fingerprint = CheckpointJournal.fingerprint(source.toString());
+
+        // one byte in the middle of the file, far from either end
+        bytes[STALE_LENGTH / 10] ^= 1;
+        Files.write(source, bytes);
+        assertNotEquals(fingerprint,
+                CheckpointJournal.fingerprint(source.toString()));
+    }
+
+    private interface Receive {
+        void run() throws IOException;
+    }
+
+    /**
+     * Send a file offered to resume over a larger one with no journal, and
+     * check that what arrives is the file and nothing more
+     * @param receiver
+     * @param receive runs the receiver until it is done, or forever
+     * @throws Exception
+     */
+    private void assertReplaced(FileReceiver receiver, Receive receive)
+            throws Exception {
+        Path source = dir.resolve("source.bin");
+        Path destination = dir.resolve("out.bin");
+        Files.write(source, randomBytes(SOURCE_LENGTH, 1));
+        Files.write(destination, randomBytes(STALE_LENGTH, 2));
+
+        start(receive);
+        // the receiver acknowledges the FIN once the file is on disk
+        createSender(receiver, source, destination).send();
+
+        assertEquals(SOURCE_LENGTH, Files.size(destination));
+        assertEquals(-1, Files.mismatch(source, destination));
+        assertFalse(Files.exists(CheckpointJournal.getPath(
+                destination.toString(), 0)));
+    }
+
+    /**
+     * Resume a transfer from a checkpoint at the end of the part of the file
+     * already at the destination, and check that the file comes out whole,
+     * or if that part was corrupted since, that the digest catches it
+     * @param receiver
+     * @param receive runs the receiver until it is done, or forever
+     * @param isCorrupt
+     * @throws Exception
+     */
+    private void assertResumed(FileReceiver receiver, Receive receive,
+            boolean isCorrupt) throws Exception {
+        Path source = dir.resolve("source.bin");
+        Path destination = dir.resolve("out.bin");
+        byte[] bytes = randomBytes(RESUMED_LENGTH, 1);
+        Files.write(source, bytes);
+        byte[] kept = Arrays.copyOf(bytes, CheckpointJournal.COMMIT_INTERVAL);
+        if (isCorrupt) {
+            kept[1000] ^= 1;
+        }
+        Files.write(destination, kept);
+        try (FileChannel data = FileChannel.open(destination,
+                StandardOpenOption.WRITE)) {
+            CheckpointJournal journal = new CheckpointJournal(
+                    CheckpointJournal.getPath(destination.toString(), 0),
+                    RESUMED_LENGTH,
+                    CheckpointJournal.fingerprint(source.toString()),
+                    Long.MAX_VALUE);
+            journal.commit(CheckpointJournal.COMMIT_INTERVAL, data);
+            journal.close(false);
+        }
+
+        start(receive);
+        FileSender sender = createSender(receiver, source, destination);
+        if (isCorrupt) {
+            assertThrows(IOException.class, () -> sender.send());
+        } else {
+            sender.send();
+            assertEquals(-1, Files.mismatch(source, destination));
+        }
+        // either way, only the rest of the file was sent
+        assertEquals(CheckpointJournal.COMMIT_INTERVAL, sender.bytesSkipped);
+    }
+
+    /**
+     * Run a receiver in the background. It lingers after the transfer, and
+     * a server never returns, so leave it to end with the tests.
+     * @param receive
+     */
+    private static void start(Receive receive) {
+        Thread thread = new Thread(() -> {
+            try {
+                receive.run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static FileSender createSender(FileReceiver receiver,
+            Path source, Path destination) {
+        FileSender sender = new FileSender(source.toString(), "localhost",
+                String.valueOf(receiver.portNo), destination.toString());
+        sender.mode = FileSender.Mode.SELECTIVE_REPEAT;
+        sender.isResumeOffered = true;
+        return sender;
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String findFreePort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return String.valueOf(socket.getLocalPort());
+        }
+    }
+}
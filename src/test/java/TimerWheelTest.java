@@ -0,0 +1,167 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * This class checks that timers on a TimerWheel expire on their tick,
+ * never early, however many turns of the wheel away they are, and that a
+ * DelayedAck holds back every other ACK only once the quick ACKs at the
+ * start are used up.
+ * @author Diga W
+ *
+ */
+class TimerWheelTest {
+
+    private final static long TICK_NANOS = 1000000L;
+    private final static int SLOT_COUNT = 8;
+
+    // like System.nanoTime(), which may be negative
+    private final static long ORIGIN = -5000000000L;
+
+    @Test
+    void ticksAcrossFullRotation() {
+        TimerWheel wheel = new TimerWheel(TICK_NANOS, SLOT_COUNT, ORIGIN);
+        // up to three turns ahead, so slots hold timers of several turns
+        int timerCount = 3 * SLOT_COUNT;
+        TimerWheel.Timer[] timers = new TimerWheel.Timer[timerCount];
+        for (int i = 0; i < timerCount; i++) {
+            timers[i] = new TimerWheel.Timer();
+            wheel.schedule(timers[i], (i + 1) * TICK_NANOS, ORIGIN);
+        }
+        for (int tick = 0; tick <= timerCount; tick++) {
+            long now = ORIGIN + tick * TICK_NANOS;
+            if (tick > 0) {
+                assertSame(timers[tick - 1], wheel.poll(now));
+                assertFalse(timers[tick - 1].isPending());
+            }
+            assertNull(wheel.poll(now));
+            if (tick < timerCount) {
+                assertTrue(timers[tick].isPending());
+                assertEquals(1, wheel.getWaitMillis(now));
+            }
+        }
+        assertEquals(0, wheel.getWaitMillis(ORIGIN + 100 * TICK_NANOS));
+    }
+
+    @Test
+    void neverFiresEarly() {
+        TimerWheel wheel = new TimerWheel(TICK_NANOS, SLOT_COUNT, ORIGIN);
+        TimerWheel.Timer timer = new TimerWheel.Timer();
+        long start = ORIGIN + TICK_NANOS / 3;
+        long delay = 2 * SLOT_COUNT * TICK_NANOS + TICK_NANOS / 2;
+        wheel.schedule(timer, delay, start);
+        for (long now = start; now < start + delay; now += TICK_NANOS / 4) {
+            assertNull(wheel.poll(now));
+        }
+        // up to a tick late
+        assertSame(timer, wheel.poll(start + delay + TICK_NANOS));
+    }
+
+    @Test
+    void expiresAllOverdueAtOnce() {
+        TimerWheel wheel = new TimerWheel(TICK_NANOS, SLOT_COUNT, ORIGIN);
+        Set<TimerWheel.Timer> pending = new HashSet<TimerWheel.Timer>();
+        for (int i = 0; i < 5 * SLOT_COUNT; i += 3) {
+            TimerWheel.Timer timer = new TimerWheel.Timer();
+            wheel.schedule(timer, i * TICK_NANOS, ORIGIN);
+            pending.add(timer);
+        }
+        // the owner was busy for several turns
+        long now = ORIGIN + 6 * SLOT_COUNT * TICK_NANOS;
+        TimerWheel.Timer timer;
+        while ((timer = wheel.poll(now)) != null) {
+            assertTrue(pending.remove(timer));
+        }
+        assertTrue(pending.isEmpty());
+        assertEquals(0, wheel.getWaitMillis(now));
+    }
+
+    @Test
+    void cancelsAndRestarts() {
+        TimerWheel wheel = new TimerWheel(TICK_NANOS, SLOT_COUNT, ORIGIN);
+        // three timers sharing a slot, a turn apart
+        TimerWheel.Timer[] timers = new TimerWheel.Timer[3];
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = new TimerWheel.Timer();
+            wheel.schedule(timers[i], (2 + i * SLOT_COUNT) * TICK_NANOS,
+                    ORIGIN);
+        }
+        // from the middle of the slot's list, and twice
+        wheel.cancel(timers[1]);
+        wheel.cancel(timers[1]);
+        assertFalse(timers[1].isPending());
+        // moved to a later tick of another slot
+        wheel.schedule(timers[0], 5 * TICK_NANOS, ORIGIN);
+
+        assertNull(wheel.poll(ORIGIN + 4 * TICK_NANOS));
+        assertSame(timers[0], wheel.poll(ORIGIN + 5 * TICK_NANOS));
+        assertNull(wheel.poll(ORIGIN + 17 * TICK_NANOS));
+        assertSame(timers[2], wheel.poll(ORIGIN + 18 * TICK_NANOS));
+        assertNull(wheel.poll(ORIGIN + 100 * TICK_NANOS));
+    }
+
+    @Test
+    void waitsForTimerTurnsAway() {
+        TimerWheel wheel = new TimerWheel(TICK_NANOS, SLOT_COUNT, ORIGIN);
+        assertEquals(0, wheel.getWaitMillis(ORIGIN));
+        TimerWheel.Timer timer = new TimerWheel.Timer();
+        wheel.schedule(timer, 10 * SLOT_COUNT * TICK_NANOS, ORIGIN);
+        assertEquals(10 * SLOT_COUNT, wheel.getWaitMillis(ORIGIN));
+        assertNull(wheel.poll(ORIGIN + 3 * TICK_NANOS));
+        assertEquals(10 * SLOT_COUNT - 3,
+                wheel.getWaitMillis(ORIGIN + 3 * TICK_NANOS));
+    }
+
+    @Test
+    void delaysEveryOtherAckAfterQuickAcks() {
+        TimerWheel wheel = new TimerWheel(TICK_NANOS, SLOT_COUNT, ORIGIN);
+        DelayedAck ack = new DelayedAck(wheel);
+        long now = ORIGIN;
+        // the quick ACKs at the start of a transfer
+        for (int i = 0; i < 16; i++) {
+            assertTrue(ack.onData(now));
+            ack.onAckSent();
+        }
+        for (int i = 0; i < 10; i++) {
+            assertFalse(ack.onData(now));
+            assertTrue(ack.timer.isPending());
+            now += 1000;
+            assertTrue(ack.onData(now));
+            assertEquals(1000, ack.getAckDelay(now));
+            ack.onAckSent();
+            assertFalse(ack.timer.isPending());
+            assertEquals(-1, ack.getAckDelay(now));
+        }
+    }
+
+    @Test
+    void acksLonePacketOnceDelayRunsOut() {
+        TimerWheel wheel = new TimerWheel(TICK_NANOS, SLOT_COUNT, ORIGIN);
+        DelayedAck ack = new DelayedAck(wheel);
+        long now = ORIGIN;
+        for (int i = 0; i < 16; i++) {
+            ack.onData(now);
+            ack.onAckSent();
+        }
+        // each time the delay runs out, twice as many quick ACKs follow
+        for (int quickAcks = 16; quickAcks <= 64; quickAcks *= 2) {
+            assertFalse(ack.onData(now));
+            assertNull(wheel.poll(now));
+            now += 2 * TICK_NANOS;
+            assertSame(ack.timer, wheel.poll(now));
+            ack.onExpired();
+            ack.onAckSent();
+            for (int i = 0; i < quickAcks; i++) {
+                assertTrue(ack.onData(now));
+                ack.onAckSent();
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * This class checks that 32-bit sequence numbers are extended and compared
+ * correctly across 2^31 and 2^32, and that a transfer past 4 GB of file
+ * whose sequence numbers wrap around on the way arrives intact. The large
+ * file is sparse and resumed a little short of 4 GB, so only its last few
+ * MB are actually sent.
+ * @author Diga W
+ *
+ */
+class WraparoundTest {
+
+    private final static long TWO_GB = 1L << 31;
+    private final static long FOUR_GB = 1L << 32;
+
+    private final static long RESUME_OFFSET = FOUR_GB - 1000000;
+    private final static long SOURCE_LENGTH = FOUR_GB + 2000000;
+    private final static long FINGERPRINT = 4242;
+
+    // so that the sequence numbers wrap around a third of the way in
+    private final static int INITIAL_SEQ_NO = -1000000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void unwrapsAcrossTwoGb() {
+        assertEquals(TWO_GB + 5,
+                PacketHandler.unwrap((int) (TWO_GB + 5), TWO_GB - 10));
+        assertEquals(TWO_GB - 5,
+                PacketHandler.unwrap((int) (TWO_GB - 5), TWO_GB + 10));
+        assertEquals(TWO_GB, PacketHandler.unwrap((int) TWO_GB, TWO_GB));
+    }
+
+    @Test
+    void unwrapsAcrossFourGb() {
+        assertEquals(FOUR_GB + 50, PacketHandler.unwrap(50, FOUR_GB - 100));
+        assertEquals(FOUR_GB - 50, PacketHandler.unwrap(-50, FOUR_GB + 100));
+        // and every later turn of the sequence space
+        long reference = 5 * FOUR_GB - 100;
+        assertEquals(5 * FOUR_GB + 50, PacketHandler.unwrap(50, reference));
+        assertEquals(5 * FOUR_GB - 150,
+                PacketHandler.unwrap(-150, reference));
+    }
+
+    @Test
+    void unwrapsUpToTwoGbEitherWay() {
+        long reference = 3 * FOUR_GB + 123;
+        long ahead = reference + Integer.MAX_VALUE;
+        long behind = reference - TWO_GB;
+        assertEquals(ahead, PacketHandler.unwrap((int) ahead, reference));
+        assertEquals(behind, PacketHandler.unwrap((int) behind, reference));
+    }
+
+    @Test
+    void comparesAcrossWrap() {
+        assertTrue(PacketHandler.compareSeqNo(-1, 0) < 0);
+        assertTrue(PacketHandler.compareSeqNo(0, -1) > 0);
+        assertTrue(PacketHandler.compareSeqNo(Integer.MAX_VALUE,
+                Integer.MIN_VALUE) < 0);
+        assertTrue(PacketHandler.compareSeqNo(Integer.MIN_VALUE,
+                Integer.MAX_VALUE) > 0);
+        assertTrue(PacketHandler.compareSeqNo(-1000, 1000) < 0);
+        assertTrue(PacketHandler.compareSeqNo(1000, -1000) > 0);
+        assertEquals(0, PacketHandler.compareSeqNo(-7, -7));
+    }
+
+    @Test
+    void resumesPastFourGbWithIo() throws Exception {
+        FileReceiver receiver = new FileReceiver(findFreePort());
+        assertTransferred(receiver, () -> receiver.receive(),
+                FileSender.Mode.STOP_AND_WAIT, false);
+    }
+
+    @Test
+    void resumesPastFourGbWithNio() throws Exception {
+        FileReceiver receiver = new FileReceiver(findFreePort());
+        receiver.isNio = true;
+        assertTransferred(receiver, () -> receiver.receive(),
+                FileSender.Mode.GO_BACK_N, true);
+    }
+
+    @Test
+    void resumesPastFourGbWithServer() throws Exception {
+        FileReceiver receiver = new FileReceiver(findFreePort());
+        assertTransferred(receiver, () -> new ReceiverServer(receiver.portNo,
+                1, receiver.bufferSize, receiver.maxPacketSize,
+                receiver.metrics).run(), FileSender.Mode.SELECTIVE_REPEAT,
+                false);
+    }
+
+    private interface Receive {
+        void run() throws IOException;
+    }
+
+    /**
+     * Resume the sparse file from RESUME_OFFSET, starting the sequence
+     * numbers just short of a wraparound, and check the part sent
+     * @param receiver
+     * @param receive runs the receiver until it is done, or forever
+     * @param mode
+     * @param isNio for the sender
+     * @throws Exception
+     */
+    private void assertTransferred(FileReceiver receiver, Receive receive,
+            FileSender.Mode mode, boolean isNio) throws Exception {
+        Path source = dir.resolve("source.bin");
+        Path destination = dir.resolve("out.bin");
+        byte[] tail = new byte[(int) (SOURCE_LENGTH - RESUME_OFFSET)];
+        new Random(1).nextBytes(tail);
+        try (RandomAccessFile file = new RandomAccessFile(source.toFile(),
+                "rw")) {
+            file.setLength(SOURCE_LENGTH);
+            file.seek(RESUME_OFFSET);
+            file.write(tail);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(
+                destination.toFile(), "rw")) {
+            file.setLength(RESUME_OFFSET);
+            // the fingerprint is made up, as the real one reads 4 GB
+            CheckpointJournal journal = new CheckpointJournal(
+                    CheckpointJournal.getPath(destination.toString(), 0),
+                    SOURCE_LENGTH, FINGERPRINT, Long.MAX_VALUE);
+            journal.commit(RESUME_OFFSET, file.getChannel());
+            journal.close(false);
+        }
+
+        // a receiver lingers after the transfer, and a server never
+        // returns, so leave them to end with the tests
+        Thread thread = new Thread(() -> {
+            try {
+                receive.run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        FileSender sender = new FileSender(source.toString(), "localhost",
+                String.valueOf(receiver.portNo), destination.toString());
+        sender.mode = mode;
+        sender.isNio = isNio;
+        sender.isResumeOffered = true;
+        sender.fingerprint = FINGERPRINT;
+        sender.initialSeqNo = INITIAL_SEQ_NO;
+        // a digest would read the 4 GB kept on both sides
+        sender.digestAlgorithm = SynOptions.DIGEST_NONE;
+        sender.send();
+
+        assertEquals(RESUME_OFFSET, sender.bytesSkipped);
+        try (FileChannel file = FileChannel.open(destination,
+                StandardOpenOption.READ)) {
+            assertEquals(SOURCE_LENGTH, file.size());
+            ByteBuffer received = ByteBuffer.allocate(tail.length);
+            while (received.hasRemaining()
+                    && file.read(received, RESUME_OFFSET
+                            + received.position()) > 0) {
+                // read up to the end
+            }
+            assertArrayEquals(tail, received.array());
+        }
+    }
+
+    private static String findFreePort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return String.valueOf(socket.getLocalPort());
+        }
+    }
+}